@@ -165,7 +165,9 @@ public final class Processor {
 	/**
 	 * Set the page table pointer. All further address translations will use the
 	 * specified page table. The size of the current address space will be
-	 * determined from the length of the page table array.
+	 * determined from the length of the page table array. A superpage entry
+	 * (see <tt>TranslationEntry.numPages</tt>) may be stored in the slot of
+	 * every page it covers.
 	 * 
 	 * @param pageTable the page table to use.
 	 */
@@ -204,7 +206,8 @@ public final class Processor {
 	 * 
 	 * <p>
 	 * The TLB is fully associative, so the location of an entry within the TLB
-	 * does not affect anything.
+	 * does not affect anything. An entry may translate a superpage of several
+	 * pages; see <tt>TranslationEntry.numPages</tt>.
 	 * 
 	 * @param number the index into the TLB.
 	 * @param entry the new contents of the TLB entry.
@@ -212,6 +215,7 @@ public final class Processor {
 	public void writeTLBEntry(int number, TranslationEntry entry) {
 		Lib.assertTrue(usingTLB);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
+		Lib.assertTrue(isValidSize(entry));
 
 		translations[number] = new TranslationEntry(entry);
 	}
@@ -316,11 +320,19 @@ public final class Processor {
 			}
 
 			entry = translations[vpn];
+
+			// a superpage entry must cover every slot it is stored in
+			if (entry.numPages > 1 && (!isValidSize(entry)
+					|| (vpn & -entry.numPages) != entry.vpn)) {
+				Lib.debug(dbgProcessor, "\t\tbad superpage");
+				throw new MipsException(exceptionBusError, vaddr);
+			}
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, look through all TLB entries for one covering vpn
 		else {
 			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
+				int first = vpn & -translations[i].numPages;
+				if (translations[i].valid && translations[i].vpn == first) {
 					entry = translations[i];
 					break;
 				}
@@ -340,6 +352,8 @@ public final class Processor {
 
 		// check if physical page number is out of range
 		int ppn = entry.ppn;
+		if (entry.numPages > 1)
+			ppn += vpn - entry.vpn;
 		if (ppn < 0 || ppn >= numPhysPages) {
 			Lib.debug(dbgProcessor, "\t\tbad ppn");
 			throw new MipsException(exceptionBusError, vaddr);
@@ -357,6 +371,19 @@ public final class Processor {
 		return paddr;
 	}
 
+	/**
+	 * Test if a translation entry's page count is a power of two that its
+	 * virtual and physical page numbers are multiples of.
+	 * 
+	 * @param entry the translation entry.
+	 * @return <tt>true</tt> if the entry may be used.
+	 */
+	private static boolean isValidSize(TranslationEntry entry) {
+		int n = entry.numPages;
+		return n > 0 && (n & (n - 1)) == 0 && entry.vpn % n == 0
+				&& entry.ppn % n == 0;
+	}
+
 	/**
 	 * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
 	 * and return the result.
@@ -23,6 +23,8 @@ public class StubFileSystem implements FileSystem {
 	public StubFileSystem(Privilege privilege, File directory) {
 		this.privilege = privilege;
 		this.directory = directory;
+
+		maxOpenFiles = Config.getInteger("StubFileSystem.maxOpenFiles", 0);
 	}
 
 	public OpenFile open(String name, boolean truncate) {
@@ -78,7 +80,7 @@ public class StubFileSystem implements FileSystem {
 
 			final File f = new File(directory, name);
 
-			if (openCount == maxOpenFiles)
+			if (maxOpenFiles > 0 && openCount == maxOpenFiles)
 				throw new IOException();
 
 			privilege.doPrivileged(new Runnable() {
@@ -168,7 +170,8 @@ public class StubFileSystem implements FileSystem {
 
 	private int openCount = 0;
 
-	private static final int maxOpenFiles = 16;
+	/** The most files open at once, or 0 for no limit but the host's. */
+	private int maxOpenFiles;
 
 	private Privilege privilege;
 
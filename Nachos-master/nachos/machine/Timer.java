@@ -51,6 +51,22 @@ public final class Timer {
 		this.handler = handler;
 	}
 
+	/**
+	 * Schedule a one-shot interrupt to occur after the specified number of
+	 * ticks, in addition to the periodic timer interrupt. The one-shot
+	 * interrupt cannot be cancelled; its handler must tolerate firing after the
+	 * event it was scheduled for has gone away.
+	 * 
+	 * @param delay the number of ticks until the interrupt, which must be
+	 * positive.
+	 * @param handler the interrupt handler to call.
+	 */
+	public void scheduleOneShot(long delay, Runnable handler) {
+		Lib.assertTrue(delay > 0 && handler != null);
+
+		privilege.interrupt.schedule(delay, "one-shot timer", handler);
+	}
+
 	/**
 	 * Get the current time.
 	 * 
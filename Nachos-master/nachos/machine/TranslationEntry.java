@@ -48,6 +48,7 @@ public final class TranslationEntry {
 		readOnly = entry.readOnly;
 		used = entry.used;
 		dirty = entry.dirty;
+		numPages = entry.numPages;
 	}
 
 	/** The virtual page number. */
@@ -78,4 +79,12 @@ public final class TranslationEntry {
 	 * user program.
 	 */
 	public boolean dirty;
+
+	/**
+	 * The number of pages this entry translates, starting with <tt>vpn</tt>
+	 * and <tt>ppn</tt>. An entry for more than one page is a superpage: the
+	 * number must be a power of two, <tt>vpn</tt> and <tt>ppn</tt> must be
+	 * multiples of it, and the other fields apply to every page.
+	 */
+	public int numPages = 1;
 }
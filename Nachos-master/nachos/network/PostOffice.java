@@ -13,22 +13,32 @@ import nachos.threads.*;
  * The post office uses a "postal worker" thread to wait for messages to arrive
  * from the network and to place them in the appropriate queues. This cannot be
  * done in the receive interrupt handler because each queue (implemented with a
- * <tt>SynchList</tt>) is protected by a lock.
+ * <tt>BoundedSynchList</tt>) is protected by a lock.
+ * 
+ * <p>
+ * Each mailbox holds at most <tt>PostOffice.mailboxCapacity</tt> messages
+ * (default 64). Mail that arrives for a full mailbox is dropped, as the network
+ * itself may drop packets, so that a fast sender cannot make the mailbox grow
+ * without limit or stall delivery to the other ports.
  */
 public class PostOffice {
 	/**
-	 * Allocate a new post office, using an array of <tt>SynchList</tt>s.
+	 * Allocate a new post office, using an array of <tt>BoundedSynchList</tt>s.
 	 * Register the interrupt handlers with the network hardware and start the
 	 * "postal worker" thread.
 	 */
 	public PostOffice() {
 		messageReceived = new Semaphore(0);
 		messageSent = new Semaphore(0);
-		sendLock = new Lock();
+		sendLock = new Lock("PostOffice.sendLock");
 
-		queues = new SynchList[MailMessage.portLimit];
+		int mailboxCapacity = Config.getInteger("PostOffice.mailboxCapacity", 64);
+		@SuppressWarnings("unchecked")
+		BoundedSynchList<MailMessage>[] queues =
+			(BoundedSynchList<MailMessage>[]) new BoundedSynchList<?>[MailMessage.portLimit];
+		this.queues = queues;
 		for (int i = 0; i < queues.length; i++)
-			queues[i] = new SynchList();
+			queues[i] = new BoundedSynchList<MailMessage>(mailboxCapacity);
 
 		Runnable receiveHandler = new Runnable() {
 			public void run() {
@@ -63,7 +73,7 @@ public class PostOffice {
 
 		Lib.debug(dbgNet, "waiting for mail on port " + port);
 
-		MailMessage mail = (MailMessage) queues[port].removeFirst();
+		MailMessage mail = queues[port].removeFirst();
 
 		if (Lib.test(dbgNet))
 			System.out.println("got mail on port " + port + ": " + mail);
@@ -94,10 +104,25 @@ public class PostOffice {
 						+ ": " + mail);
 
 			// atomically add message to the mailbox and wake a waiting thread
-			queues[mail.dstPort].add(mail);
+			if (!queues[mail.dstPort].offer(mail))
+				Lib.debug(dbgNet, "mailbox full, dropped mail to port "
+						+ mail.dstPort);
 		}
 	}
 
+	/**
+	 * Return the mailbox of the specified port, for its drop and high-water
+	 * counters.
+	 * 
+	 * @param port the local port.
+	 * @return the queue of messages waiting on that port.
+	 */
+	public BoundedSynchList<MailMessage> getMailbox(int port) {
+		Lib.assertTrue(port >= 0 && port < queues.length);
+
+		return queues[port];
+	}
+
 	/**
 	 * Called when a packet has arrived and can be dequeued from the network
 	 * link.
@@ -130,7 +155,7 @@ public class PostOffice {
 		messageSent.V();
 	}
 
-	private SynchList[] queues;
+	private BoundedSynchList<MailMessage>[] queues;
 
 	private Semaphore messageReceived; // V'd when a message can be dequeued
 
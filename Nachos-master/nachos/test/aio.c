@@ -0,0 +1,106 @@
+/* aio.c
+ *
+ *	Test io_setup() and io_enter(). Two writes to different parts of a
+ *	file are submitted together, and then a read of the whole file, and
+ *	each completion is matched to its request through user_data.
+ *
+ *	Run by "make check" under proj2 and proj3. Prints "aio: ok" when every
+ *	check passes.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define FILENAME	"aio.tmp"
+#define ENTRIES		4
+
+struct io_sqe sqes[ENTRIES];
+struct io_cqe cqes[ENTRIES];
+struct io_ring ring;
+
+char buf[32];
+
+static int failures = 0;
+
+static void check(int ok, char *what)
+{
+  if (!ok) {
+    printf("aio: FAILED %s\n", what);
+    failures++;
+  }
+}
+
+static void queue(int opcode, int fd, char *data, int count, int pos,
+		  int user_data)
+{
+  struct io_sqe *sqe = &sqes[ring.sq_tail % ENTRIES];
+
+  sqe->opcode = opcode;
+  sqe->fd = fd;
+  sqe->buf = data;
+  sqe->count = count;
+  sqe->pos = pos;
+  sqe->user_data = user_data;
+  ring.sq_tail++;
+}
+
+/* Consume one completion, and return its result if it is for user_data. */
+static int consume(int user_data)
+{
+  struct io_cqe *cqe;
+
+  if (ring.cq_head == ring.cq_tail)
+    return -2;
+
+  cqe = &cqes[ring.cq_head % ENTRIES];
+  ring.cq_head++;
+  return (cqe->user_data == user_data) ? cqe->result : -3;
+}
+
+int main(int argc, char** argv)
+{
+  struct io_cqe *cqe;
+  int fd, seen;
+
+  fd = creat(FILENAME);
+  check(fd != -1, "creat");
+
+  ring.sqes = sqes;
+  ring.cqes = cqes;
+  check(io_setup(&ring, ENTRIES) == 0, "io_setup");
+  check(io_setup(&ring, ENTRIES) == -1, "second io_setup");
+
+  /* the writes may complete in either order */
+  queue(IO_WRITE, fd, "hello ", 6, 0, 1);
+  queue(IO_WRITE, fd, "world\n", 6, 6, 2);
+  check(io_enter(2, 2) == 2, "io_enter of the writes");
+  check(ring.sq_head == 2, "sq_head");
+  check(ring.cq_tail - ring.cq_head == 2, "write completions");
+
+  seen = 0;
+  while (ring.cq_head != ring.cq_tail) {
+    cqe = &cqes[ring.cq_head % ENTRIES];
+    check(cqe->result == 6, "write result");
+    seen |= cqe->user_data;
+    ring.cq_head++;
+  }
+  check(seen == 3, "write user_data");
+
+  queue(IO_READ, fd, buf, sizeof(buf), 0, 3);
+  check(io_enter(1, 1) == 1, "io_enter of the read");
+  check(consume(3) == 12, "read result");
+  check(strncmp(buf, "hello world\n", 12) == 0, "read data");
+
+  /* a request for a bad descriptor completes with -1 */
+  queue(IO_READ, -1, buf, sizeof(buf), 0, 4);
+  check(io_enter(1, 1) == 1, "io_enter of a bad request");
+  check(consume(4) == -1, "bad request result");
+
+  close(fd);
+  unlink(FILENAME);
+
+  if (failures == 0)
+    printf("aio: ok\n");
+  return failures;
+}
@@ -0,0 +1,90 @@
+/* forkcow.c
+ *
+ *	Test fork(). The child starts with a copy of the parent's memory and
+ *	open files, and writes by either process are not seen by the other,
+ *	although their pages are shared until the first write.
+ *
+ *	Needs fork(), which a VMProcess does not support, so "make check" runs
+ *	it only under proj2. Prints "forkcow: ok" when every check passes.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define FILENAME	"forkcow.tmp"
+#define PAGES		3
+#define PAGESIZE	1024
+
+int value = 1;
+char pages[PAGES*PAGESIZE];
+
+static int failures = 0;
+
+static void check(int ok, char *what)
+{
+  if (!ok) {
+    printf("forkcow: FAILED %s\n", what);
+    failures++;
+  }
+}
+
+static int child(int fd)
+{
+  int i;
+
+  /* the child sees the parent's memory as it was at fork() */
+  if (value != 1)
+    return 1;
+  for (i=0; i<PAGES*PAGESIZE; i++) {
+    if (pages[i] != 'p')
+      return 2;
+  }
+
+  value = 2;
+  pages[PAGESIZE] = 'c';
+
+  /* and inherits its descriptors */
+  if (write(fd, "child", 5) != 5)
+    return 3;
+
+  return 10 + value;
+}
+
+int main(int argc, char** argv)
+{
+  char buf[8];
+  int fd, pid, status;
+
+  memset(pages, 'p', sizeof(pages));
+
+  fd = creat(FILENAME);
+  check(fd != -1, "creat");
+
+  pid = fork();
+  if (pid == 0)
+    exit(child(fd));
+  check(pid > 0, "fork");
+
+  /* the parent writes a page that the child only reads */
+  pages[0] = 'q';
+
+  check(join(pid, &status) != -1, "join");
+  check(status == 12, "child status");
+  check(join(pid, &status) == -1, "second join");
+
+  check(value == 1, "parent value");
+  check(pages[PAGESIZE] == 'p', "parent page");
+  check(pages[0] == 'q', "parent write");
+
+  close(fd);
+  fd = open(FILENAME);
+  check(read(fd, buf, sizeof(buf)) == 5 && strncmp(buf, "child", 5) == 0,
+	"child write to an inherited descriptor");
+  close(fd);
+  unlink(FILENAME);
+
+  if (failures == 0)
+    printf("forkcow: ok\n");
+  return failures;
+}
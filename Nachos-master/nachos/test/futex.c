@@ -0,0 +1,79 @@
+/* futex.c
+ *
+ *	Test wait() and wake(). A wait() on a word that does not hold the
+ *	expected value returns at once, and threads sleeping on a word are
+ *	woken by wake() once the word has changed.
+ *
+ *	Run by "make check" under proj2 and proj3. Prints "futex: ok" when
+ *	every check passes.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define NTHREADS	3
+#define SPIN		20000
+
+volatile int flag = 0;
+volatile int started[NTHREADS];
+
+static int failures = 0;
+
+static void check(int ok, char *what)
+{
+  if (!ok) {
+    printf("futex: FAILED %s\n", what);
+    failures++;
+  }
+}
+
+static int waiter(void *arg)
+{
+  int id = (int) arg;
+
+  started[id] = 1;
+  while (flag == 0)
+    wait((int *) &flag, 0);
+
+  return flag + id;
+}
+
+int main(int argc, char** argv)
+{
+  int tids[NTHREADS];
+  int i, woken, status;
+
+  check(wait((int *) &flag, 1) == 1, "wait on a changed word");
+  check(wait((int *) ((char *) &flag + 1), 0) == -1, "wait on an unaligned word");
+  check(wake((int *) ((char *) &flag + 1), 1) == -1, "wake on an unaligned word");
+  check(wake((int *) &flag, 1) == 0, "wake with no waiters");
+
+  for (i=0; i<NTHREADS; i++) {
+    tids[i] = thread_create(waiter, (void *) i);
+    check(tids[i] != -1, "thread_create");
+  }
+
+  /* let the waiters reach wait() before the word changes */
+  for (i=0; i<NTHREADS; i++) {
+    while (!started[i])
+      ;
+  }
+  for (i=0; i<SPIN; i++)
+    ;
+
+  flag = 10;
+  woken = wake((int *) &flag, NTHREADS);
+  check(woken >= 0 && woken <= NTHREADS, "wake count");
+
+  for (i=0; i<NTHREADS; i++) {
+    check(thread_join(tids[i], &status) == 0, "thread_join");
+    check(status == 10 + i, "waiter status");
+  }
+
+  check(wake((int *) &flag, NTHREADS) == 0, "wake after the waiters left");
+
+  if (failures == 0)
+    printf("futex: ok\n");
+  return failures;
+}
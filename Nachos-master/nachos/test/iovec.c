@@ -0,0 +1,72 @@
+/* iovec.c
+ *
+ *	Test readv() and writev(). Several buffers are written to a file in
+ *	one call, and read back into buffers of different sizes.
+ *
+ *	Run by "make check" under proj2 and proj3. Prints "iovec: ok" when
+ *	every check passes.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define FILENAME	"iovec.tmp"
+
+char head[4];
+char tail[20];
+
+static int failures = 0;
+
+static void check(int ok, char *what)
+{
+  if (!ok) {
+    printf("iovec: FAILED %s\n", what);
+    failures++;
+  }
+}
+
+int main(int argc, char** argv)
+{
+  struct iovec iov[4];
+  int fd;
+
+  fd = creat(FILENAME);
+  check(fd != -1, "creat");
+
+  /* an empty buffer in the middle is skipped */
+  iov[0].iov_base = "scatter";
+  iov[0].iov_len = 7;
+  iov[1].iov_base = "/";
+  iov[1].iov_len = 1;
+  iov[2].iov_base = tail;
+  iov[2].iov_len = 0;
+  iov[3].iov_base = "gather\n";
+  iov[3].iov_len = 7;
+  check(writev(fd, iov, 4) == 15, "writev");
+  check(writev(fd, iov, 65) == -1, "writev of too many buffers");
+  close(fd);
+
+  fd = open(FILENAME);
+  check(fd != -1, "open");
+
+  /* the first buffer is filled before the second */
+  iov[0].iov_base = head;
+  iov[0].iov_len = sizeof(head);
+  iov[1].iov_base = tail;
+  iov[1].iov_len = sizeof(tail);
+  check(readv(fd, iov, 2) == 15, "readv");
+  check(strncmp(head, "scat", 4) == 0, "first buffer");
+  check(strncmp(tail, "ter/gather\n", 11) == 0, "second buffer");
+
+  check(readv(fd, iov, 2) == 0, "readv at end of file");
+  check(readv(fd, iov, 65) == -1, "readv of too many buffers");
+  check(readv(-1, iov, 2) == -1, "readv of a bad descriptor");
+
+  close(fd);
+  unlink(FILENAME);
+
+  if (failures == 0)
+    printf("iovec: ok\n");
+  return failures;
+}
@@ -0,0 +1,81 @@
+/* mmap.c
+ *
+ *	Test mmap(). A file is mapped into free pages at the top of the address
+ *	space, read and written through memory, and the writes are checked in
+ *	the file after the descriptor is closed.
+ *
+ *	Needs nachos.vm, so "make check" runs it only under proj3. Prints
+ *	"mmap: ok" when every check passes.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define FILENAME	"mmap.tmp"
+#define PAGESIZE	1024
+#define MAXPAGES	256
+#define LENGTH		1500	/* two pages, the second partly used */
+
+char buf[LENGTH];
+
+static int failures = 0;
+
+static void check(int ok, char *what)
+{
+  if (!ok) {
+    printf("mmap: FAILED %s\n", what);
+    failures++;
+  }
+}
+
+int main(int argc, char** argv)
+{
+  char *map;
+  int fd, i, vpn, length;
+
+  for (i=0; i<LENGTH; i++)
+    buf[i] = 'a' + i%26;
+
+  fd = creat(FILENAME);
+  check(fd != -1, "creat");
+  check(write(fd, buf, LENGTH) == LENGTH, "write");
+
+  check(mmap(fd, (char *) (MAXPAGES/2*PAGESIZE + 4)) == -1,
+	"mmap at an unaligned address");
+  check(mmap(-1, (char *) (MAXPAGES/2*PAGESIZE)) == -1,
+	"mmap of a bad descriptor");
+
+  /* the pages used by the program and its stack cannot be mapped over */
+  length = -1;
+  for (vpn=MAXPAGES-1; vpn>=0 && length==-1; vpn--) {
+    map = (char *) (vpn*PAGESIZE);
+    length = mmap(fd, map);
+  }
+  check(length == LENGTH, "mmap");
+  if (length != LENGTH)
+    return 1;
+
+  check(mmap(fd, map) == -1, "second mmap of a descriptor");
+  check(read(fd, buf, 1) == -1, "read of a mapped descriptor");
+
+  /* pages are read from the file as they are touched */
+  check(map[0] == 'a' && map[LENGTH-1] == buf[LENGTH-1], "read through memory");
+
+  map[1] = 'Z';
+  map[PAGESIZE+100] = 'Y';
+
+  /* closing the descriptor writes the dirty pages back */
+  close(fd);
+
+  fd = open(FILENAME);
+  check(read(fd, buf, LENGTH) == LENGTH, "read back");
+  check(buf[0] == 'a' && buf[1] == 'Z' && buf[2] == 'c', "first page written back");
+  check(buf[PAGESIZE+100] == 'Y', "second page written back");
+  close(fd);
+  unlink(FILENAME);
+
+  if (failures == 0)
+    printf("mmap: ok\n");
+  return failures;
+}
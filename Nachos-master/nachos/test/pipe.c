@@ -0,0 +1,88 @@
+/* pipe.c
+ *
+ *	Test pipe(). A forked child writes more than the pipe can buffer, so
+ *	it blocks until the parent reads, and the parent checks every byte and
+ *	sees end of file once the child closes its end.
+ *
+ *	Needs fork(), which a VMProcess does not support, so "make check" runs
+ *	it only under proj2. Prints "pipe: ok" when every check passes.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define TOTAL		10000	/* more than the default Pipe.capacity */
+#define BUFSIZE		512
+
+char buf[BUFSIZE];
+
+static int failures = 0;
+
+static void check(int ok, char *what)
+{
+  if (!ok) {
+    printf("pipe: FAILED %s\n", what);
+    failures++;
+  }
+}
+
+static int writer(int fd)
+{
+  int i, j, amount;
+
+  for (i=0; i<TOTAL; i+=amount) {
+    amount = min(BUFSIZE, TOTAL-i);
+    for (j=0; j<amount; j++)
+      buf[j] = (i+j) % 251;
+    if (write(fd, buf, amount) != amount)
+      return 1;
+  }
+
+  close(fd);
+  return 0;
+}
+
+int main(int argc, char** argv)
+{
+  int fds[2];
+  int pid, status, total, bad, amount, j;
+
+  check(pipe(fds) == 0, "pipe");
+
+  pid = fork();
+  if (pid == 0) {
+    close(fds[0]);
+    exit(writer(fds[1]));
+  }
+  check(pid > 0, "fork");
+
+  /* the read end sees end of file only once every write end is closed */
+  close(fds[1]);
+
+  total = 0;
+  bad = 0;
+  while ((amount = read(fds[0], buf, BUFSIZE)) > 0) {
+    for (j=0; j<amount; j++) {
+      if (buf[j] != (char) ((total+j) % 251))
+	bad++;
+    }
+    total += amount;
+  }
+  check(amount == 0, "end of file");
+  check(total == TOTAL, "bytes read");
+  check(bad == 0, "bytes in order");
+
+  check(join(pid, &status) != -1 && status == 0, "writer status");
+  close(fds[0]);
+
+  /* a pipe with no reader refuses writes */
+  check(pipe(fds) == 0, "second pipe");
+  close(fds[0]);
+  check(write(fds[1], buf, 1) == -1, "write with no reader");
+  close(fds[1]);
+
+  if (failures == 0)
+    printf("pipe: ok\n");
+  return failures;
+}
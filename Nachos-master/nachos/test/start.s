@@ -67,3 +67,38 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(cpulimit, syscallCpuLimit)
+	SYSCALLSTUB(wait, syscallWait)
+	SYSCALLSTUB(wake, syscallWake)
+	SYSCALLSTUB(thread_join, syscallThreadJoin)
+	SYSCALLSTUB(thread_exit, syscallThreadExit)
+	SYSCALLSTUB(readv, syscallReadv)
+	SYSCALLSTUB(writev, syscallWritev)
+	SYSCALLSTUB(fork, syscallFork)
+	SYSCALLSTUB(pipe, syscallPipe)
+	SYSCALLSTUB(io_setup, syscallIOSetup)
+	SYSCALLSTUB(io_enter, syscallIOEnter)
+
+/* -------------------------------------------------------------
+ * thread_create
+ *	Passes __thread_start to the kernel in $a2 (r6). The new
+ *	thread starts there with arg in r4 and func in r5, calls
+ *	func(arg), and exits with its return value.
+ * -------------------------------------------------------------
+ */
+
+	.globl	thread_create
+	.ent	thread_create
+thread_create:
+	la	$6,__thread_start
+	addiu	$2,$0,syscallThreadCreate
+	syscall
+	j	$31
+	.end	thread_create
+
+	.ent	__thread_start
+__thread_start:
+	jalr	$5
+	addu	$4,$2,$0
+	jal	thread_exit	/* never returns */
+	.end	__thread_start
@@ -25,6 +25,18 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallCpuLimit		13
+#define syscallWait		14
+#define syscallWake		15
+#define syscallThreadCreate	16
+#define syscallThreadJoin	17
+#define syscallThreadExit	18
+#define syscallReadv		19
+#define syscallWritev		20
+#define syscallFork		21
+#define syscallPipe		22
+#define syscallIOSetup		23
+#define syscallIOEnter		24
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -257,6 +269,186 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/**
+ * Limit the user threads of this process to quota ticks of processor time in
+ * every period of period ticks. A thread that uses up the quota is suspended
+ * until the next period begins. A quota of 0 removes the limit.
+ *
+ * Returns 0 on success, or -1 if quota is negative or larger than period.
+ */
+int cpulimit(int quota, int period);
+
+/**
+ * Sleep until another thread calls wake() on addr, but only if the word at
+ * addr still holds expected when the kernel checks it. The check and the sleep
+ * are atomic with respect to wake(), so a wake() that follows a change to the
+ * word is never missed.
+ *
+ * These calls are only for the slow path of a lock or counter kept in user
+ * memory: a thread updates the word itself, calls wait() only when it has to
+ * block, and the thread that releases calls wake() only if the word shows that
+ * someone may be waiting. Uncontended operations never enter the kernel.
+ *
+ * Waiters are keyed by the physical address of the word, so processes sharing
+ * a physical page can use the same word.
+ *
+ * Returns 0 if the caller slept and was woken, 1 if the word did not hold
+ * expected, or -1 if addr is not a valid, word-aligned address.
+ */
+int wait(int *addr, int expected);
+
+/**
+ * Wake up to n threads sleeping in wait() on addr, oldest first.
+ *
+ * Returns the number of threads woken, or -1 if addr is not a valid,
+ * word-aligned address.
+ */
+int wake(int *addr, int n);
+
+/**
+ * Start a new thread in this process that calls func(arg). The thread shares
+ * the process's memory and open files, and gets a stack of its own. If func
+ * returns, the thread exits with its return value as the status.
+ *
+ * Returns a thread ID, unique within the process, or -1 if the thread could
+ * not be created. The first thread of a process has ID 0.
+ */
+int thread_create(int (*func)(void *), void *arg);
+
+/**
+ * Wait for the thread tid of this process to exit, and store the status it
+ * passed to thread_exit() at status, unless status is 0. Each thread can be
+ * joined at most once, and a thread cannot join itself.
+ *
+ * Returns 0 on success, or -1 if tid is not a joinable thread.
+ */
+int thread_join(int tid, int *status);
+
+/**
+ * Terminate the calling thread. If it is the last thread of the process, the
+ * process exits with the specified status. exit(), by contrast, terminates
+ * every thread of the process.
+ */
+void thread_exit(int status);
+
+/**
+ * One buffer of a readv() or writev() call.
+ */
+struct iovec {
+    void *iov_base;	/* start of the buffer */
+    int iov_len;	/* number of bytes in the buffer */
+};
+
+/**
+ * Read from fd into the iovcnt buffers described by iov, filling each buffer
+ * before moving on to the next, as a single read() of the total size would.
+ * At most 64 buffers may be given.
+ *
+ * Returns the total number of bytes read, which is less than the total size
+ * if the end of the file was reached, or -1 on error.
+ */
+int readv(int fd, struct iovec *iov, int iovcnt);
+
+/**
+ * Write the iovcnt buffers described by iov to fd, in order, as a single
+ * write() of the buffers laid end to end would. At most 64 buffers may be
+ * given.
+ *
+ * Returns the total number of bytes written, or -1 on error.
+ */
+int writev(int fd, struct iovec *iov, int iovcnt);
+
+/**
+ * Create a new child process that is a copy of the calling process, with a
+ * copy of its open file descriptors and one thread, a copy of the calling
+ * thread. The two processes share memory copy-on-write, so creating the child
+ * copies no pages, and each page is copied when either process first writes
+ * to it.
+ *
+ * Returns 0 in the child, and the child's process ID in the parent, which can
+ * join() the child like one created by exec(). Returns -1 if the child could
+ * not be created.
+ */
+int fork();
+
+/**
+ * Create a pipe: a one-way channel whose read end is returned in fds[0] and
+ * whose write end is returned in fds[1]. Bytes written to fds[1] are read from
+ * fds[0] in the same order. The kernel buffers a bounded number of bytes, so
+ * write() blocks while the pipe is full, and read() blocks while it is empty.
+ * Once every descriptor for the write end is closed, read() returns 0 when the
+ * pipe is empty; once every descriptor for the read end is closed, write()
+ * fails. Both ends are inherited by fork().
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int pipe(int fds[2]);
+
+/* ASYNCHRONOUS I/O SYSCALLS: io_setup(), io_enter() */
+
+/* Opcodes of a struct io_sqe. */
+#define IO_READ		0
+#define IO_WRITE	1
+
+/**
+ * One request in the submission queue: read or write count bytes between fd
+ * and buf, starting at byte pos of the file, or at the file pointer if pos is
+ * negative. user_data is copied to the request's completion.
+ */
+struct io_sqe {
+    int opcode;		/* IO_READ or IO_WRITE */
+    int fd;
+    void *buf;
+    int count;
+    int pos;
+    int user_data;
+};
+
+/**
+ * One completion in the completion queue. result is what read() or write()
+ * would have returned.
+ */
+struct io_cqe {
+    int user_data;
+    int result;
+};
+
+/**
+ * A submission queue and a completion queue shared by the program and the
+ * kernel. Each is an array of the same number of slots, used as a ring: slot
+ * i % entries holds entry i. The program fills sqes[sq_tail % entries] and
+ * then advances sq_tail; the kernel advances sq_head as it takes requests.
+ * The kernel fills cqes[cq_tail % entries] and then advances cq_tail; the
+ * program advances cq_head as it consumes completions.
+ */
+struct io_ring {
+    int sq_head;	/* advanced by the kernel */
+    int sq_tail;	/* advanced by the program */
+    int cq_head;	/* advanced by the program */
+    int cq_tail;	/* advanced by the kernel */
+    struct io_sqe *sqes;
+    struct io_cqe *cqes;
+};
+
+/**
+ * Set up asynchronous I/O for this process through ring, whose sqes and cqes
+ * arrays must each have entries slots (at most 256). The kernel sets the four
+ * counters to 0. A process can call io_setup() only once.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int io_setup(struct io_ring *ring, int entries);
+
+/**
+ * Start up to to_submit of the requests queued in the submission queue, and
+ * then wait until at least min_complete completions are ready to consume, or
+ * until no request is left in flight. Requests run concurrently in the kernel
+ * and may complete in any order. exit() waits for requests in flight.
+ *
+ * Returns the number of requests started, or -1 if an error occurred.
+ */
+int io_enter(int to_submit, int min_complete);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
@@ -0,0 +1,79 @@
+/* threads.c
+ *
+ *	Test thread_create(), thread_join() and thread_exit(). Several threads
+ *	sum parts of a shared array, and the first thread joins each of them
+ *	for its result.
+ *
+ *	Run by "make check" under proj2 and proj3. Prints "threads: ok" when
+ *	every check passes.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define NTHREADS	4
+#define N		100
+
+int data[N];
+int sums[NTHREADS];
+
+static int failures = 0;
+
+static void check(int ok, char *what)
+{
+  if (!ok) {
+    printf("threads: FAILED %s\n", what);
+    failures++;
+  }
+}
+
+static int sum(void *arg)
+{
+  int id = (int) arg;
+  int i, total = 0;
+
+  for (i=id; i<N; i+=NTHREADS)
+    total += data[i];
+  sums[id] = total;
+
+  /* the last thread exits explicitly, the others return */
+  if (id == NTHREADS-1)
+    thread_exit(total);
+
+  return total;
+}
+
+int main(int argc, char** argv)
+{
+  int tids[NTHREADS];
+  int i, status, total;
+
+  for (i=0; i<N; i++)
+    data[i] = i;
+
+  for (i=0; i<NTHREADS; i++) {
+    tids[i] = thread_create(sum, (void *) i);
+    check(tids[i] > 0, "thread_create");
+  }
+
+  total = 0;
+  for (i=0; i<NTHREADS; i++) {
+    check(thread_join(tids[i], &status) == 0, "thread_join");
+    check(status == sums[i], "thread status");
+    total += status;
+  }
+  check(total == N*(N-1)/2, "total");
+
+  check(thread_join(tids[0], &status) == -1, "second thread_join");
+  check(thread_join(0, &status) == -1, "thread_join of itself");
+  check(thread_join(1000, &status) == -1, "thread_join of a bad tid");
+
+  /* a thread can be joined without collecting its status */
+  tids[0] = thread_create(sum, (void *) 0);
+  check(tids[0] > 0 && thread_join(tids[0], 0) == 0, "thread_join without status");
+
+  if (failures == 0)
+    printf("threads: ok\n");
+  return failures;
+}
@@ -2,11 +2,22 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.PriorityQueue;
-
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ * 
+ * <p>
+ * Pending wakeups are kept in a binary min-heap ordered by wake time, so adding
+ * a wakeup and removing the earliest one take O(log n) time. Besides the
+ * periodic timer interrupt, the alarm programs a one-shot timer interrupt for
+ * the earliest wakeup, so that sleeping threads are made ready on the exact
+ * tick they asked for.
+ * 
+ * <p>
+ * The same heap holds timeouts: handlers that run in interrupt context once
+ * their time passes, unless they are cancelled first. Timed waits on
+ * synchronization primitives are built on them with
+ * <tt>sleepWithTimeout()</tt>.
  */
 public class Alarm {
 	/**
@@ -23,39 +34,28 @@ public class Alarm {
 			}
 		});
 		
-		pq = new PriorityQueue<KnappThread>(3, new KnappThread.Comparer<KnappThread>());
+		oneShotHandler = new Runnable() {
+			public void run() {
+				wakeExpired();
+			}
+		};
 	}
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
 	 * periodically (approximately every 500 clock ticks). Causes the current
 	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * should be run. If the current thread has used up its CPU bandwidth quota,
+	 * it is throttled instead.
 	 */
 	public void timerInterrupt() {
 		
-		KnappThread currKnapp = pq.peek();
+		wakeExpired();
 		
-		while ( currKnapp != null )
-		{
-			if (Machine.timer().getTime() >= currKnapp.getWakeTime())
-			{
-				Lib.assertTrue(currKnapp.getThreadToWake() != null);
-				Machine.interrupt().disable();
-				
-//				System.out.println("Current time: " + Machine.timer().getTime() + "\n"
-//						+ "Wait time: " + currKnapp.getWakeTime());
-				
-				pq.poll();
-				
-				currKnapp.getThreadToWake().ready();
-				
-				currKnapp = pq.peek();
-			}
-			else
-			{
-				break;
-			}
+		CPUBandwidth bandwidth = KThread.currentThread().cpuBandwidth;
+		if (bandwidth != null && bandwidth.overQuota()) {
+			bandwidth.throttle();
+			return;
 		}
 		
 		KThread.currentThread().yield();
@@ -74,26 +74,299 @@ public class Alarm {
 	 * @see nachos.machine.Timer#getTime()
 	 */
 	public void waitUntil(long x) {
-		// for now, cheat just to get something working (busy waiting is bad)
-		// dk instead probably put thread in waiting queue
-//		long wakeTime = Machine.timer().getTime() + x;
-//		while (wakeTime > Machine.timer().getTime())
-//			KThread.yield();
+		if (x <= 0)
+			return;
 		
-		wakeTime(x);
+		boolean status = Machine.interrupt().disable();
+		
+		KnappThread newKnapp = new KnappThread(KThread.currentThread(),
+				Machine.timer().getTime() + x, numKnapps++);
+		insert(newKnapp);
+		programOneShot();
+		
+		if (SchedulerTrace.enabled)
+			SchedulerTrace.blockingOn(this);
+		KThread.currentThread().sleep();
+		Machine.interrupt().restore(status);
 	}
 	
-	private void wakeTime(long x)
-	{
-		KnappThread newKnapp = new KnappThread(KThread.currentThread(),
-				Machine.timer().getTime() + x);
-		pq.add(newKnapp);
+	/**
+	 * Run the specified handler, with interrupts disabled, once at least
+	 * <i>x</i> ticks have passed. The handler must not block.
+	 * 
+	 * @param x the minimum number of clock ticks to wait, which must be
+	 * positive.
+	 * @param handler the handler to run.
+	 * @return the pending timeout, which can be passed to <tt>cancel()</tt>.
+	 */
+	public KnappThread setTimeout(long x, Runnable handler) {
+		Lib.assertTrue(x > 0 && handler != null);
 		
 		boolean status = Machine.interrupt().disable();
-		KThread.currentThread().sleep();
+		
+		KnappThread newKnapp = new KnappThread(handler,
+				Machine.timer().getTime() + x, numKnapps++);
+		insert(newKnapp);
+		programOneShot();
+		
+		Machine.interrupt().restore(status);
+		return newKnapp;
+	}
+	
+	/**
+	 * Cancel a timeout returned by <tt>setTimeout()</tt>, in O(log n) time.
+	 * 
+	 * @param timeout the timeout to cancel.
+	 * @return <tt>true</tt> if the timeout was pending, <tt>false</tt> if its
+	 * handler has already run or it was already cancelled.
+	 */
+	public boolean cancel(KnappThread timeout) {
+		boolean status = Machine.interrupt().disable();
+		
+		boolean pending = (timeout.heapIndex >= 0);
+		if (pending)
+		{
+			removeAt(timeout.heapIndex);
+			numCancelled++;
+		}
+		
 		Machine.interrupt().restore(status);
+		return pending;
+	}
+	
+	/**
+	 * Put the current thread to sleep until it is woken from the specified
+	 * queue, or until <i>x</i> ticks have passed. The caller must already have
+	 * added the current thread to <tt>waitQueue</tt> with
+	 * <tt>waitForAccess()</tt>, and interrupts must be disabled. On timeout,
+	 * the thread is removed from the queue, so it is never also given access.
+	 * 
+	 * @param waitQueue the queue the current thread is waiting in.
+	 * @param x the maximum number of clock ticks to wait.
+	 * @return <tt>true</tt> if the thread was woken from the queue,
+	 * <tt>false</tt> if the wait timed out.
+	 */
+	public boolean sleepWithTimeout(ThreadQueue waitQueue, long x) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		
+		numTimedWaits++;
+		
+		TimedWait wait = new TimedWait(waitQueue, KThread.currentThread());
+		
+		// nothing to wait for, so abandon the wait at once
+		if (x <= 0)
+		{
+			wait.run();
+			if (wait.expired)
+				numTimeouts++;
+			return !wait.expired;
+		}
+		
+		KnappThread timeout = new KnappThread(wait,
+				Machine.timer().getTime() + x, numKnapps++);
+		insert(timeout);
+		programOneShot();
+		
+		if (!wait.expired)
+			KThread.sleep();
+		
+		if (wait.expired)
+			numTimeouts++;
+		else if (timeout.heapIndex >= 0)
+			removeAt(timeout.heapIndex);
+		
+		return !wait.expired;
+	}
+	
+	/**
+	 * Return the number of timed waits started with <tt>sleepWithTimeout()</tt>.
+	 */
+	public long getNumTimedWaits() {
+		return numTimedWaits;
+	}
+	
+	/**
+	 * Return the number of timed waits that ended because they timed out.
+	 */
+	public long getNumTimeouts() {
+		return numTimeouts;
+	}
+	
+	/**
+	 * Return the number of timeouts cancelled with <tt>cancel()</tt>.
+	 */
+	public long getNumCancelled() {
+		return numCancelled;
+	}
+	
+	/**
+	 * Ready every thread whose wake time has passed, then make sure a one-shot
+	 * interrupt is programmed for the next wakeup. Called with interrupts
+	 * disabled from both the periodic and the one-shot timer interrupt.
+	 */
+	private void wakeExpired()
+	{
+		Lib.assertTrue(Machine.interrupt().disabled());
+		
+		long time = Machine.timer().getTime();
+		
+		while (size > 0 && heap[0].getWakeTime() <= time)
+		{
+			KnappThread currKnapp = removeAt(0);
+			
+			if (currKnapp.getHandler() != null)
+			{
+				currKnapp.getHandler().run();
+				continue;
+			}
+			
+			Lib.assertTrue(currKnapp.getThreadToWake() != null);
+			currKnapp.getThreadToWake().ready();
+		}
+		
+		programOneShot();
+	}
+	
+	/**
+	 * Program a one-shot interrupt for the earliest wakeup, unless one that
+	 * fires no later is already pending.
+	 */
+	private void programOneShot()
+	{
+		if (size == 0)
+			return;
+		
+		long time = Machine.timer().getTime();
+		long wakeTime = heap[0].getWakeTime();
+		
+		if (oneShotTime > time && oneShotTime <= wakeTime)
+			return;
+		
+		oneShotTime = wakeTime;
+		Machine.timer().scheduleOneShot(wakeTime - time, oneShotHandler);
+	}
+	
+	private void insert(KnappThread knapp)
+	{
+		if (size == heap.length)
+		{
+			KnappThread[] bigger = new KnappThread[heap.length * 2];
+			System.arraycopy(heap, 0, bigger, 0, size);
+			heap = bigger;
+		}
+		
+		knapp.heapIndex = size;
+		heap[size++] = knapp;
+		siftUp(knapp.heapIndex);
 	}
 	
-	private static PriorityQueue<KnappThread> pq;
+	private KnappThread removeAt(int i)
+	{
+		KnappThread knapp = heap[i];
+		
+		size--;
+		if (i != size)
+		{
+			move(heap[size], i);
+			heap[size] = null;
+			siftDown(i);
+			siftUp(i);
+		}
+		else
+		{
+			heap[size] = null;
+		}
+		
+		knapp.heapIndex = -1;
+		return knapp;
+	}
+	
+	private void siftUp(int i)
+	{
+		KnappThread knapp = heap[i];
+		
+		while (i > 0)
+		{
+			int parent = (i - 1) / 2;
+			if (!knapp.before(heap[parent]))
+				break;
+			
+			move(heap[parent], i);
+			i = parent;
+		}
+		
+		move(knapp, i);
+	}
+	
+	private void siftDown(int i)
+	{
+		KnappThread knapp = heap[i];
+		
+		while (true)
+		{
+			int child = 2 * i + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && heap[child + 1].before(heap[child]))
+				child++;
+			if (!heap[child].before(knapp))
+				break;
+			
+			move(heap[child], i);
+			i = child;
+		}
+		
+		move(knapp, i);
+	}
+	
+	private void move(KnappThread knapp, int i)
+	{
+		heap[i] = knapp;
+		knapp.heapIndex = i;
+	}
+	
+	/**
+	 * Ends a timed wait by taking the thread back out of the queue it is
+	 * waiting in. If the thread is no longer there, it has already been woken
+	 * and the timeout does nothing.
+	 */
+	private static class TimedWait implements Runnable {
+		TimedWait(ThreadQueue waitQueue, KThread thread) {
+			this.waitQueue = waitQueue;
+			this.thread = thread;
+		}
+		
+		public void run() {
+			if (waitQueue.remove(thread))
+			{
+				expired = true;
+				if (thread != KThread.currentThread())
+					thread.ready();
+			}
+		}
+		
+		private ThreadQueue waitQueue;
+		
+		private KThread thread;
+		
+		boolean expired = false;
+	}
+	
+	private KnappThread[] heap = new KnappThread[16];
+	
+	private int size = 0;
+	
+	private long numKnapps = 0;
+	
+	/** Time of the latest one-shot interrupt programmed, or 0. */
+	private long oneShotTime = 0;
+	
+	private Runnable oneShotHandler;
+	
+	private long numTimedWaits = 0;
+	
+	private long numTimeouts = 0;
+	
+	private long numCancelled = 0;
 	
 }
@@ -0,0 +1,215 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A synchronized queue that holds at most a fixed number of objects.
+ *
+ * <p>
+ * The queue is a ring of object references, so adding and removing never
+ * allocate. When the queue is full, <tt>add()</tt> blocks until there is room
+ * and <tt>offer()</tt> drops the object instead. <tt>removeUpTo()</tt> drains
+ * several objects in one call. The number of dropped objects and the largest
+ * number of objects ever queued are kept for tuning the capacity.
+ */
+public class BoundedSynchList<T> {
+	/**
+	 * Allocate a new bounded synchronized queue.
+	 *
+	 * @param capacity the maximum number of objects in the queue.
+	 */
+	public BoundedSynchList(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		@SuppressWarnings("unchecked")
+		T[] ring = (T[]) new Object[capacity];
+		this.ring = ring;
+		lock = new Lock("BoundedSynchList.lock");
+		listEmpty = new Condition2(lock);
+		listFull = new Condition2(lock);
+	}
+
+	/**
+	 * Add the specified object to the end of the queue, blocking until there is
+	 * room if necessary. If another thread is waiting to remove, it is woken
+	 * up.
+	 *
+	 * @param o the object to add. Must not be <tt>null</tt>.
+	 */
+	public void add(T o) {
+		Lib.assertTrue(o != null);
+
+		lock.acquire();
+		while (count == ring.length)
+			listFull.sleep();
+		append(o);
+		lock.release();
+	}
+
+	/**
+	 * Add the specified object to the end of the queue if there is room, and
+	 * drop it otherwise. Never blocks for room, so it may be used by threads
+	 * that must keep going, such as a network delivery thread.
+	 *
+	 * @param o the object to add. Must not be <tt>null</tt>.
+	 * @return <tt>true</tt> if the object was added, <tt>false</tt> if it was
+	 * dropped.
+	 */
+	public boolean offer(T o) {
+		Lib.assertTrue(o != null);
+
+		boolean added;
+
+		lock.acquire();
+		if (count == ring.length) {
+			numDropped++;
+			added = false;
+		}
+		else {
+			append(o);
+			added = true;
+		}
+		lock.release();
+
+		return added;
+	}
+
+	/**
+	 * Remove an object from the front of the queue, blocking until the queue is
+	 * non-empty if necessary.
+	 *
+	 * @return the element removed from the front of the queue.
+	 */
+	public T removeFirst() {
+		T o;
+
+		lock.acquire();
+		while (count == 0)
+			listEmpty.sleep();
+
+		o = ring[head];
+		ring[head] = null;
+		head = (head + 1) % ring.length;
+		count--;
+
+		listFull.wake();
+		lock.release();
+
+		return o;
+	}
+
+	/**
+	 * Remove up to <i>n</i> objects from the front of the queue, blocking until
+	 * the queue is non-empty if necessary, and store them in <i>buffer</i> in
+	 * order.
+	 *
+	 * @param buffer the array to store the removed objects in.
+	 * @param n the maximum number of objects to remove; must be positive and
+	 * no more than <tt>buffer.length</tt>.
+	 * @return the number of objects removed, which is at least 1.
+	 */
+	public int removeUpTo(T[] buffer, int n) {
+		Lib.assertTrue(n > 0 && n <= buffer.length);
+
+		lock.acquire();
+		while (count == 0)
+			listEmpty.sleep();
+
+		int amount = Math.min(n, count);
+		for (int i = 0; i < amount; i++) {
+			buffer[i] = ring[head];
+			ring[head] = null;
+			head = (head + 1) % ring.length;
+		}
+		count -= amount;
+
+		for (int i = 0; i < amount; i++)
+			listFull.wake();
+		lock.release();
+
+		return amount;
+	}
+
+	/**
+	 * Return the number of objects in the queue. The value may be stale by the
+	 * time it is used.
+	 *
+	 * @return the number of queued objects.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Return the number of objects dropped by <tt>offer()</tt> because the
+	 * queue was full.
+	 *
+	 * @return the number of dropped objects.
+	 */
+	public int getNumDropped() {
+		return numDropped;
+	}
+
+	/**
+	 * Return the largest number of objects that have been in the queue at
+	 * once.
+	 *
+	 * @return the high-water mark.
+	 */
+	public int getHighWaterMark() {
+		return highWaterMark;
+	}
+
+	private void append(T o) {
+		ring[(head + count) % ring.length] = o;
+		count++;
+		highWaterMark = Math.max(highWaterMark, count);
+
+		listEmpty.wake();
+	}
+
+	/**
+	 * Test that this module is working.
+	 */
+	public static void selfTest() {
+		final BoundedSynchList<Integer> list = new BoundedSynchList<Integer>(4);
+
+		KThread producer = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < 20; i++)
+					list.add(Integer.valueOf(i));
+			}
+		}).setName("bounded producer");
+		producer.fork();
+
+		Integer[] buffer = new Integer[3];
+		for (int expected = 0; expected < 20;) {
+			int n = list.removeUpTo(buffer, buffer.length);
+			for (int i = 0; i < n; i++)
+				Lib.assertTrue(buffer[i].intValue() == expected++);
+		}
+		producer.join();
+
+		for (int i = 0; i < 6; i++)
+			list.offer(Integer.valueOf(i));
+		Lib.assertTrue(list.getNumDropped() == 2);
+		Lib.assertTrue(list.getHighWaterMark() == 4);
+		Lib.assertTrue(list.removeFirst().intValue() == 0);
+	}
+
+	private T[] ring;
+
+	private int head = 0;
+
+	private int count = 0;
+
+	private int numDropped = 0;
+
+	private int highWaterMark = 0;
+
+	private Lock lock;
+
+	private Condition2 listEmpty;
+
+	private Condition2 listFull;
+}
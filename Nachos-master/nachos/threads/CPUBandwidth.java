@@ -0,0 +1,252 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A CPU bandwidth limit shared by a group of threads. The threads in the group
+ * may hold the processor for at most <i>quota</i> ticks in each period of
+ * <i>period</i> ticks. Once the quota of the current period is used up, a
+ * thread of the group that is interrupted by the timer is throttled: it sleeps
+ * on the alarm until the next period begins.
+ *
+ * <p>
+ * A <tt>KThread</tt> belongs to a group when its <tt>cpuBandwidth</tt> field
+ * refers to the group. Time is charged to the group from the moment one of its
+ * threads is switched in until it is switched out. Only one thread runs at a
+ * time, so a single start time per group is enough.
+ *
+ * <p>
+ * A group with a quota of zero has no limit; its usage is still recorded.
+ */
+public class CPUBandwidth {
+	/**
+	 * Allocate a new group with no limit.
+	 */
+	public CPUBandwidth() {
+		periodStart = Machine.timer().getTime();
+	}
+
+	/**
+	 * Set the limit of this group. The current period ends and a new one
+	 * begins immediately.
+	 *
+	 * @param quota the number of ticks the group may run per period, or 0 to
+	 * remove the limit.
+	 * @param period the length of a period, in ticks.
+	 * @return <tt>true</tt> if the limit was valid and is now in effect.
+	 */
+	public boolean setLimit(long quota, long period) {
+		if (quota < 0 || (quota > 0 && (period <= 0 || quota > period)))
+			return false;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		this.quota = quota;
+		this.period = period;
+		startPeriod(Machine.timer().getTime());
+
+		Machine.interrupt().restore(intStatus);
+		return true;
+	}
+
+	/**
+	 * Called when a thread of this group receives the processor.
+	 */
+	void startRunning() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		runningSince = Machine.timer().getTime();
+	}
+
+	/**
+	 * Called when a thread of this group gives up the processor. Charges the
+	 * ticks it ran since <tt>startRunning()</tt>.
+	 */
+	void stopRunning() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long time = Machine.timer().getTime();
+		if (runningSince >= 0) {
+			charge(time - runningSince, time);
+			runningSince = -1;
+		}
+	}
+
+	/**
+	 * Test whether the running thread of this group has used up the quota of
+	 * the current period.
+	 *
+	 * @return <tt>true</tt> if the group should be throttled.
+	 */
+	boolean overQuota() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (quota == 0)
+			return false;
+
+		long time = Machine.timer().getTime();
+		if (runningSince >= 0) {
+			charge(time - runningSince, time);
+			runningSince = time;
+		}
+
+		return used >= quota;
+	}
+
+	/**
+	 * Put the current thread, which belongs to this group, to sleep until the
+	 * start of the next period.
+	 */
+	void throttle() {
+		Lib.assertTrue(KThread.currentThread().cpuBandwidth == this);
+
+		long time = Machine.timer().getTime();
+		long wait = periodStart + period - time;
+		if (wait <= 0)
+			return;
+
+		numThrottled++;
+		throttledTicks += wait;
+
+		Lib.debug(dbgBandwidth, "Throttling " + KThread.currentThread()
+				+ " for " + wait + " ticks");
+
+		ThreadedKernel.alarm.waitUntil(wait);
+	}
+
+	/**
+	 * Charge <i>ticks</i> that ended at <i>time</i>. If a period boundary fell
+	 * within them, a new period begins, and only the ticks after the boundary
+	 * count against its quota.
+	 */
+	private void charge(long ticks, long time) {
+		totalTicks += ticks;
+
+		if (quota > 0 && time >= periodStart + period) {
+			startPeriod(time - (time - periodStart) % period);
+			ticks = Math.min(ticks, time - periodStart);
+		}
+
+		used += ticks;
+	}
+
+	private void startPeriod(long time) {
+		periodStart = time;
+		used = 0;
+		numPeriods++;
+	}
+
+	/**
+	 * Return the quota of this group.
+	 *
+	 * @return the ticks allowed per period, or 0 if there is no limit.
+	 */
+	public long getQuota() {
+		return quota;
+	}
+
+	/**
+	 * Return the period of this group.
+	 *
+	 * @return the length of a period, in ticks.
+	 */
+	public long getPeriod() {
+		return period;
+	}
+
+	/**
+	 * Return the total number of ticks charged to this group.
+	 *
+	 * @return the ticks during which a thread of this group held the processor.
+	 */
+	public long getTotalTicks() {
+		return totalTicks;
+	}
+
+	/**
+	 * Return the number of times a thread of this group was throttled.
+	 *
+	 * @return the number of throttles.
+	 */
+	public int getNumThrottled() {
+		return numThrottled;
+	}
+
+	/**
+	 * Return the total number of ticks threads of this group spent throttled.
+	 *
+	 * @return the throttled ticks.
+	 */
+	public long getThrottledTicks() {
+		return throttledTicks;
+	}
+
+	/**
+	 * Test that this module is working.
+	 */
+	public static void selfTest() {
+		// ticks that span period boundaries are split at the last of them
+		CPUBandwidth group = new CPUBandwidth();
+		group.quota = 100;
+		group.period = 1000;
+		group.startPeriod(0);
+
+		group.charge(300, 1200);
+		Lib.assertTrue(group.periodStart == 1000 && group.used == 200);
+		group.charge(50, 1250);
+		Lib.assertTrue(group.periodStart == 1000 && group.used == 250);
+		group.charge(2500, 3750);
+		Lib.assertTrue(group.periodStart == 3000 && group.used == 750);
+		Lib.assertTrue(group.totalTicks == 2850);
+
+		// a thread that never blocks gets about its quota of each period
+		final long quota = 2500, period = 10000;
+		final int periods = 8;
+		final CPUBandwidth limited = new CPUBandwidth();
+		Lib.assertTrue(limited.setLimit(quota, period));
+
+		final long end = Machine.timer().getTime() + periods * period;
+		KThread spinner = new KThread(new Runnable() {
+			public void run() {
+				while (Machine.timer().getTime() < end)
+					KThread.yield();
+			}
+		}).setName("bandwidth spinner");
+		spinner.cpuBandwidth = limited;
+		spinner.fork();
+		spinner.join();
+
+		// each period may overrun its quota by up to one timer interrupt
+		Lib.assertTrue(limited.getNumThrottled() >= periods - 1);
+		Lib.assertTrue(limited.getTotalTicks() <= (periods + 1)
+				* (quota + 2 * Stats.TimerTicks));
+	}
+
+	public String toString() {
+		return "quota " + quota + "/" + period + ", ran " + totalTicks
+				+ " ticks, periods " + numPeriods + ", throttled "
+				+ numThrottled + " times for " + throttledTicks + " ticks";
+	}
+
+	private long quota = 0;
+
+	private long period = 0;
+
+	private long periodStart;
+
+	/** Ticks charged in the current period. */
+	private long used = 0;
+
+	/** When the running thread of this group was switched in, or -1. */
+	private long runningSince = -1;
+
+	private long totalTicks = 0;
+
+	private int numPeriods = 0;
+
+	private int numThrottled = 0;
+
+	private long throttledTicks = 0;
+
+	private static final char dbgBandwidth = 'b';
+}
@@ -0,0 +1,277 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>channel</i> carries 32-bit words from any number of speakers to any
+ * number of listeners, in FIFO order.
+ *
+ * <p>
+ * A channel with a positive capacity buffers up to that many words in a ring,
+ * so a speaker only blocks while the ring is full, and a listener only blocks
+ * while it is empty. Bulk <tt>speak()</tt> and <tt>listen()</tt> move as many
+ * words as fit per lock acquisition, rather than one word per rendezvous.
+ *
+ * <p>
+ * A channel with capacity 0 is a rendezvous channel with the semantics of
+ * <tt>Communicator</tt>: <tt>speak()</tt> does not return until listeners have
+ * received every word it was given. Listeners copy straight out of the
+ * speaker's array.
+ *
+ * <p>
+ * The words of a single bulk <tt>speak()</tt> may be split across several
+ * listeners, and a speaker that has to wait for room may be interleaved with
+ * other speakers.
+ */
+public class Channel {
+	/**
+	 * Allocate a new channel with the capacity given by the
+	 * <tt>Channel.capacity</tt> key in <tt>nachos.conf</tt> (default 64).
+	 */
+	public Channel() {
+		this(Config.getInteger("Channel.capacity", 64));
+	}
+
+	/**
+	 * Allocate a new channel.
+	 *
+	 * @param capacity the number of words the channel can buffer, or 0 for a
+	 * rendezvous channel.
+	 */
+	public Channel(int capacity) {
+		Lib.assertTrue(capacity >= 0);
+
+		this.capacity = capacity;
+		if (capacity > 0)
+			ring = new int[capacity];
+
+		lock = new Lock();
+		notEmpty = new Condition2(lock);
+		notFull = new Condition2(lock);
+	}
+
+	/**
+	 * Send a single word through this channel.
+	 *
+	 * @param word the integer to transfer.
+	 */
+	public void speak(int word) {
+		speak(new int[] { word }, 0, 1);
+	}
+
+	/**
+	 * Send every word in the specified array through this channel.
+	 *
+	 * @param words the integers to transfer.
+	 */
+	public void speak(int[] words) {
+		speak(words, 0, words.length);
+	}
+
+	/**
+	 * Send <i>length</i> words, starting at <i>words[offset]</i>, through this
+	 * channel. Returns once every word is in the buffer or, for a rendezvous
+	 * channel, once every word has been received.
+	 *
+	 * @param words the array holding the integers to transfer.
+	 * @param offset the index of the first integer to transfer.
+	 * @param length the number of integers to transfer.
+	 */
+	public void speak(int[] words, int offset, int length) {
+		Lib.assertTrue(offset >= 0 && length >= 0
+				&& offset + length <= words.length);
+
+		lock.acquire();
+
+		if (capacity == 0)
+			handOff(words, offset, length);
+		else
+			enqueue(words, offset, length);
+
+		lock.release();
+	}
+
+	/**
+	 * Wait for a word to arrive through this channel and return it.
+	 *
+	 * @return the integer transferred.
+	 */
+	public int listen() {
+		int[] word = new int[1];
+		listen(word, 0, 1);
+		return word[0];
+	}
+
+	/**
+	 * Wait for words to arrive through this channel and store them in the
+	 * specified array.
+	 *
+	 * @param words the array to fill.
+	 * @return the number of integers received, which is at least 1.
+	 */
+	public int listen(int[] words) {
+		return listen(words, 0, words.length);
+	}
+
+	/**
+	 * Wait for at least one word to arrive through this channel, then receive
+	 * up to <i>length</i> words into <i>words</i>, starting at <i>offset</i>.
+	 * Does not wait for more words once some are received.
+	 *
+	 * @param words the array to store the integers in.
+	 * @param offset the index to store the first integer at.
+	 * @param length the maximum number of integers to receive, which must be
+	 * positive.
+	 * @return the number of integers received.
+	 */
+	public int listen(int[] words, int offset, int length) {
+		Lib.assertTrue(offset >= 0 && length > 0
+				&& offset + length <= words.length);
+
+		lock.acquire();
+
+		while (available() == 0)
+			notEmpty.sleep();
+
+		int amount;
+		if (capacity == 0) {
+			amount = Math.min(length, pendingLength);
+			System.arraycopy(pending, pendingOffset, words, offset, amount);
+			pendingOffset += amount;
+			pendingLength -= amount;
+
+			// the speaker sleeps on notFull until its words are all taken
+			if (pendingLength == 0)
+				notFull.wakeAll();
+		}
+		else {
+			amount = Math.min(length, count);
+			int first = Math.min(amount, capacity - head);
+			System.arraycopy(ring, head, words, offset, first);
+			System.arraycopy(ring, 0, words, offset + first, amount - first);
+			head = (head + amount) % capacity;
+			count -= amount;
+
+			notFull.wake();
+		}
+
+		if (available() > 0)
+			notEmpty.wake();
+
+		lock.release();
+		return amount;
+	}
+
+	/**
+	 * Copy words into the ring, waiting for room as needed.
+	 */
+	private void enqueue(int[] words, int offset, int length) {
+		while (length > 0) {
+			while (count == capacity)
+				notFull.sleep();
+
+			int amount = Math.min(length, capacity - count);
+			int tail = (head + count) % capacity;
+			int first = Math.min(amount, capacity - tail);
+			System.arraycopy(words, offset, ring, tail, first);
+			System.arraycopy(words, offset + first, ring, 0, amount - first);
+			count += amount;
+			offset += amount;
+			length -= amount;
+
+			notEmpty.wake();
+		}
+
+		if (count < capacity)
+			notFull.wake();
+	}
+
+	/**
+	 * Publish words for listeners to copy directly, and wait until they have
+	 * all been taken. Only one speaker publishes at a time.
+	 */
+	private void handOff(int[] words, int offset, int length) {
+		while (pending != null)
+			notFull.sleep();
+
+		if (length > 0) {
+			pending = words;
+			pendingOffset = offset;
+			pendingLength = length;
+
+			notEmpty.wake();
+
+			while (pendingLength > 0)
+				notFull.sleep();
+
+			pending = null;
+		}
+
+		// let the next speaker publish
+		notFull.wakeAll();
+	}
+
+	/**
+	 * Return the number of words a listener could take right now.
+	 */
+	private int available() {
+		return (capacity == 0) ? pendingLength : count;
+	}
+
+	/**
+	 * Tests whether this module is working.
+	 */
+	public static void selfTest() {
+		final int numWords = 200;
+
+		for (int capacity = 0; capacity <= 16; capacity += 16) {
+			final Channel channel = new Channel(capacity);
+
+			KThread speaker = new KThread(new Runnable() {
+				public void run() {
+					int[] words = new int[7];
+					for (int next = 0; next < numWords;) {
+						int n = Math.min(words.length, numWords - next);
+						for (int i = 0; i < n; i++)
+							words[i] = next++;
+						channel.speak(words, 0, n);
+					}
+				}
+			}).setName("channel speaker");
+			speaker.fork();
+
+			int[] words = new int[5];
+			for (int expected = 0; expected < numWords;) {
+				int n = channel.listen(words);
+				for (int i = 0; i < n; i++)
+					Lib.assertTrue(words[i] == expected++);
+			}
+
+			speaker.join();
+		}
+	}
+
+	private int capacity;
+
+	private Lock lock;
+
+	/** Listeners wait here for words. */
+	private Condition2 notEmpty;
+
+	/** Speakers wait here for room, or for their words to be taken. */
+	private Condition2 notFull;
+
+	// buffered mode
+	private int[] ring;
+
+	private int head = 0;
+
+	private int count = 0;
+
+	// rendezvous mode
+	private int[] pending = null;
+
+	private int pendingOffset = 0;
+
+	private int pendingLength = 0;
+}
@@ -7,7 +7,10 @@ import nachos.machine.*;
  * synchronization.
  * 
  * <p>
- * You must implement this.
+ * Woken threads are not made ready. Instead they are moved straight from this
+ * condition variable's queue onto the wait queue of the associated lock (wait
+ * morphing), so that each runs only once the lock has been handed to it,
+ * rather than running just to block on the lock again.
  * 
  * @see nachos.threads.Condition
  */
@@ -42,13 +45,48 @@ public class Condition2 {
 		sleepQueue.waitForAccess(KThread.currentThread());
 	
 		conditionLock.release();
+		if (SchedulerTrace.enabled)
+			SchedulerTrace.blockingOn(this);
 		KThread.sleep();
-		conditionLock.acquire();
+		
+		// wake() queued us on the lock, which release() has handed to us
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 	
 		//restores initial status
 		Machine.interrupt().restore(initStatus);
 	}
 
+	/**
+	 * Like <tt>sleep()</tt>, but give up waiting for a wake after <i>ticks</i>
+	 * clock ticks. The lock is reacquired in either case.
+	 * 
+	 * @param ticks the maximum number of clock ticks to sleep.
+	 * @return <tt>true</tt> if the thread was woken, <tt>false</tt> if it
+	 * timed out.
+	 */
+	public boolean sleepFor(long ticks) {
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+		if (ticks <= 0)
+			return false;
+
+		boolean initStatus = Machine.interrupt().disable();
+		
+		sleepQueue.waitForAccess(KThread.currentThread());
+	
+		conditionLock.release();
+		if (SchedulerTrace.enabled)
+			SchedulerTrace.blockingOn(this);
+		boolean woken = ThreadedKernel.alarm.sleepWithTimeout(sleepQueue, ticks);
+		
+		// a timed out thread was never moved onto the lock's queue
+		if (!woken)
+			conditionLock.acquire();
+	
+		Machine.interrupt().restore(initStatus);
+		return woken;
+	}
+
 	/**
 	 * Wake up at most one thread sleeping on this condition variable. The
 	 * current thread must hold the associated lock.
@@ -62,10 +100,10 @@ public class Condition2 {
 		//remove the first thread from the set of sleep threads
 		KThread nextThread = sleepQueue.nextThread();
 		
-		//if it exists, disable interrupt and "wake" it by calling ready()
+		//if it exists, make it wait for the lock we are holding
 		if(nextThread!=null)
 		{
-			nextThread.ready();
+			conditionLock.waitForLock(nextThread);
 		}
 		
 		//restores initial status
@@ -85,7 +123,7 @@ public class Condition2 {
 		
 		while(nextThread!=null)
 		{
-			nextThread.ready();
+			conditionLock.waitForLock(nextThread);
 			nextThread = sleepQueue.nextThread();
 		}
 		
@@ -148,5 +186,91 @@ public class Condition2 {
 
     public static void selfTest() {
         new InterlockTest();
+        sleepForTest();
+        wakeAllTest();
+    }
+
+    // wakeAll() moves every sleeper straight onto the lock's queue, so they
+    // acquire the lock one at a time in the order they went to sleep, before
+    // a thread that asks for the lock after the wakeAll()
+    private static void wakeAllTest() {
+        final int numSleepers = 4;
+        final Lock lock = new Lock();
+        final Condition2 cond = new Condition2(lock);
+        final int[] slept = new int[numSleepers];
+        final int[] acquired = new int[numSleepers + 1];
+        final int[] counts = new int[2];
+        KThread[] threads = new KThread[numSleepers + 1];
+
+        for (int i = 0; i < numSleepers; i++) {
+            final int id = i;
+            threads[i] = new KThread(new Runnable() {
+                public void run() {
+                    lock.acquire();
+                    slept[counts[0]++] = id;
+                    cond.sleep();
+                    acquired[counts[1]++] = id;
+                    lock.release();
+                }
+            }).setName("wakeAll sleeper " + i);
+            threads[i].fork();
+        }
+
+        lock.acquire();
+        while (counts[0] < numSleepers) {
+            lock.release();
+            KThread.yield();
+            lock.acquire();
+        }
+        cond.wakeAll();
+
+        threads[numSleepers] = new KThread(new Runnable() {
+            public void run() {
+                lock.acquire();
+                acquired[counts[1]++] = numSleepers;
+                lock.release();
+            }
+        }).setName("wakeAll latecomer");
+        threads[numSleepers].fork();
+
+        // let the latecomer queue on the lock behind the sleepers
+        KThread.yield();
+        lock.release();
+
+        for (int i = 0; i <= numSleepers; i++)
+            threads[i].join();
+
+        Lib.assertTrue(counts[1] == numSleepers + 1);
+        for (int i = 0; i < numSleepers; i++)
+            Lib.assertTrue(acquired[i] == slept[i]);
+        Lib.assertTrue(acquired[numSleepers] == numSleepers);
+    }
+
+    // sleepFor() times out if nobody wakes it, and returns early if someone
+    // does; either way the lock is held again when it returns
+    private static void sleepForTest() {
+        final Lock lock = new Lock();
+        final Condition2 cond = new Condition2(lock);
+
+        lock.acquire();
+        long start = Machine.timer().getTime();
+        Lib.assertTrue(!cond.sleepFor(0));
+        Lib.assertTrue(!cond.sleepFor(1000));
+        Lib.assertTrue(lock.isHeldByCurrentThread());
+        Lib.assertTrue(Machine.timer().getTime() - start >= 1000);
+
+        new KThread(new Runnable() {
+            public void run() {
+                lock.acquire();
+                cond.wake();
+                lock.release();
+            }
+        }).setName("sleepFor waker").fork();
+
+        start = Machine.timer().getTime();
+        Lib.assertTrue(cond.sleepFor(100000));
+        Lib.assertTrue(lock.isHeldByCurrentThread());
+        Lib.assertTrue(Machine.timer().getTime() - start < 100000);
+        lock.release();
     }
 }
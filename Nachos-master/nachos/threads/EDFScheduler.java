@@ -0,0 +1,523 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * A scheduler that runs periodic threads in earliest-deadline-first order,
+ * ahead of all other (best-effort) threads.
+ *
+ * <p>
+ * A thread joins the EDF class by calling <tt>setPeriodic()</tt> with its
+ * period, its relative deadline, and its budget (the worst-case number of
+ * ticks one job needs). Registration is subject to an admission test: the
+ * total density (<i>budget</i> / min(<i>deadline</i>, <i>period</i>)) of all
+ * periodic threads may not exceed <tt>EDFScheduler.maxUtilization</tt>, which
+ * defaults to 1.0. A thread that fails the test stays a best-effort thread.
+ *
+ * <p>
+ * A periodic thread ends each job by calling <tt>waitForNextPeriod()</tt>,
+ * which sleeps on the alarm until the next release. The absolute deadline of a
+ * job is its release time plus the relative deadline; a job that completes
+ * after its absolute deadline counts as a deadline miss.
+ *
+ * <p>
+ * Threads that are not periodic are scheduled by a best-effort scheduler,
+ * selected by <tt>EDFScheduler.bestEffort</tt> (round-robin by default).
+ * Whenever a periodic thread is waiting on a queue, it is chosen before any
+ * best-effort thread. Periodic threads do not take part in priority donation.
+ */
+public class EDFScheduler extends Scheduler {
+	/**
+	 * Allocate a new EDF scheduler, and the best-effort scheduler it falls
+	 * back on.
+	 */
+	public EDFScheduler() {
+		String bestEffortName = Config.getString("EDFScheduler.bestEffort",
+				"nachos.threads.RoundRobinScheduler");
+		bestEffort = (Scheduler) Lib.constructObject(bestEffortName);
+
+		maxUtilization = Config.getDouble("EDFScheduler.maxUtilization", 1.0);
+	}
+
+	/**
+	 * Allocate a new thread queue. Periodic threads are kept in deadline
+	 * order; all other threads are passed to a queue of the best-effort
+	 * scheduler.
+	 *
+	 * @param transferPriority passed on to the best-effort queue.
+	 * @return a new EDF thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new DeadlineQueue(bestEffort.newThreadQueue(transferPriority));
+	}
+
+	public int getPriority(KThread thread) {
+		return bestEffort.getPriority(thread);
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return bestEffort.getEffectivePriority(thread);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		bestEffort.setPriority(thread, priority);
+	}
+
+	public boolean increasePriority() {
+		return bestEffort.increasePriority();
+	}
+
+	public boolean decreasePriority() {
+		return bestEffort.decreasePriority();
+	}
+
+	/**
+	 * Move the specified thread into the EDF class. The first job of the
+	 * thread is released immediately. If the thread is already periodic, its
+	 * parameters are replaced.
+	 *
+	 * @param thread the thread to make periodic.
+	 * @param period the number of ticks between releases.
+	 * @param deadline the number of ticks after a release by which the job
+	 * must complete.
+	 * @param budget the worst-case number of ticks needed by a job.
+	 * @return <tt>true</tt> if the thread passed the admission test.
+	 */
+	public boolean setPeriodic(KThread thread, long period, long deadline,
+			long budget) {
+		Lib.assertTrue(period > 0 && deadline > 0 && budget > 0);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		PeriodicState old = periodic.get(thread);
+		double density = (double) budget / Math.min(deadline, period);
+		double newUtilization = utilization + density
+				- (old != null ? old.density : 0.0);
+
+		boolean admitted = newUtilization <= maxUtilization;
+		if (admitted) {
+			PeriodicState state = new PeriodicState(period, deadline, density);
+			if (old != null) {
+				state.jobs = old.jobs;
+				state.misses = old.misses;
+
+				// a queued waiter keeps the deadline it started waiting with
+				state.waiter = old.waiter;
+				if (state.waiter != null)
+					state.waiter.state = state;
+			}
+
+			periodic.put(thread, state);
+			utilization = newUtilization;
+		}
+		else {
+			Lib.debug(dbgEDF, "Rejected periodic thread " + thread
+					+ ": utilization would be " + newUtilization);
+		}
+
+		Machine.interrupt().restore(intStatus);
+		return admitted;
+	}
+
+	/**
+	 * Return the specified thread to the best-effort class, releasing its
+	 * share of the processor. If the thread is waiting in a queue, it moves to
+	 * the best-effort part of that queue. A periodic thread that finishes is
+	 * removed from the EDF class automatically.
+	 *
+	 * @param thread the thread to remove from the EDF class.
+	 */
+	public void clearPeriodic(KThread thread) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		PeriodicState state = periodic.remove(thread);
+		if (state != null) {
+			utilization -= state.density;
+
+			Waiter waiter = state.waiter;
+			if (waiter != null) {
+				waiter.queue.removeAt(waiter.index);
+				waiter.queue.bestEffortQueue.waitForAccess(thread);
+			}
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Forget a finished thread, releasing its share of the processor if it
+	 * was periodic.
+	 *
+	 * @param thread the thread that has finished.
+	 */
+	public void threadFinished(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		clearPeriodic(thread);
+		bestEffort.threadFinished(thread);
+	}
+
+	/**
+	 * End the current job of the current thread, which must be periodic, and
+	 * sleep until its next release. If the job missed its deadline, the miss
+	 * is counted. If the next release has already passed, returns immediately.
+	 */
+	public void waitForNextPeriod() {
+		KThread thread = KThread.currentThread();
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		PeriodicState state = periodic.get(thread);
+		Lib.assertTrue(state != null);
+
+		long time = Machine.timer().getTime();
+
+		state.jobs++;
+		if (time > state.absoluteDeadline) {
+			state.misses++;
+			numMisses++;
+			Lib.debug(dbgEDF, "Deadline miss: " + thread + " finished at "
+					+ time + ", deadline " + state.absoluteDeadline);
+		}
+
+		state.release += state.period;
+		state.absoluteDeadline = state.release + state.deadline;
+
+		Machine.interrupt().restore(intStatus);
+
+		if (state.release > time)
+			ThreadedKernel.alarm.waitUntil(state.release - time);
+	}
+
+	/**
+	 * Return the number of deadlines the specified thread has missed.
+	 *
+	 * @param thread the periodic thread.
+	 * @return the number of jobs that finished after their deadline, or 0 if
+	 * the thread is not periodic.
+	 */
+	public int getDeadlineMisses(KThread thread) {
+		PeriodicState state = periodic.get(thread);
+		return (state == null) ? 0 : state.misses;
+	}
+
+	/**
+	 * Return the number of deadlines missed by all periodic threads.
+	 *
+	 * @return the total number of deadline misses.
+	 */
+	public int getDeadlineMisses() {
+		return numMisses;
+	}
+
+	/**
+	 * Return the fraction of the processor reserved by periodic threads.
+	 *
+	 * @return the total density of all admitted periodic threads.
+	 */
+	public double getUtilization() {
+		return utilization;
+	}
+
+	/**
+	 * Test that this module is working. Uses a scheduler of its own, so it
+	 * works whatever scheduler the kernel runs.
+	 */
+	public static void selfTest() {
+		EDFScheduler edf = new EDFScheduler();
+		ThreadQueue queue = edf.newThreadQueue(false);
+
+		long[] deadlines = { 400, 100, 300, 200 };
+		KThread[] threads = new KThread[deadlines.length];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new KThread().setName("edf test " + i);
+			Lib.assertTrue(edf.setPeriodic(threads[i], 1000, deadlines[i], 10));
+		}
+		KThread bestEffort = new KThread().setName("edf test best effort");
+		Lib.assertTrue(!edf.setPeriodic(bestEffort, 100, 100, 100));
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		// periodic threads come out by deadline, ahead of best-effort ones
+		queue.waitForAccess(bestEffort);
+		for (int i = 0; i < threads.length; i++)
+			queue.waitForAccess(threads[i]);
+		int[] order = { 1, 3, 2, 0 };
+		for (int i = 0; i < order.length; i++)
+			Lib.assertTrue(queue.nextThread() == threads[order[i]]);
+		Lib.assertTrue(queue.nextThread() == bestEffort);
+		Lib.assertTrue(queue.nextThread() == null);
+
+		// a waiter can be removed from the middle of the heap
+		for (int i = 0; i < threads.length; i++)
+			queue.waitForAccess(threads[i]);
+		Lib.assertTrue(queue.remove(threads[2]));
+		Lib.assertTrue(!queue.remove(threads[2]));
+		Lib.assertTrue(queue.nextThread() == threads[1]);
+		Lib.assertTrue(queue.nextThread() == threads[3]);
+		Lib.assertTrue(queue.nextThread() == threads[0]);
+
+		// a finished thread gives back its share of the processor
+		for (int i = 0; i < threads.length; i++)
+			edf.threadFinished(threads[i]);
+		Lib.assertTrue(edf.periodic.isEmpty());
+		Lib.assertTrue(Math.abs(edf.getUtilization()) < 1e-9);
+
+		Machine.interrupt().restore(intStatus);
+
+		// each job is released one period after the last
+		KThread current = KThread.currentThread();
+		Lib.assertTrue(edf.setPeriodic(current, 500, 500, 10));
+		long start = Machine.timer().getTime();
+		for (int job = 1; job <= 2; job++) {
+			edf.waitForNextPeriod();
+			Lib.assertTrue(Machine.timer().getTime() >= start + job * 500);
+		}
+		Lib.assertTrue(edf.getDeadlineMisses(current) == 0);
+		edf.clearPeriodic(current);
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that dequeues periodic threads by earliest
+	 * absolute deadline, and only then asks the best-effort queue.
+	 *
+	 * <p>
+	 * Periodic waiters are kept in a binary heap. Each waiter records its
+	 * index in the heap, and the thread's <tt>PeriodicState</tt> points to its
+	 * waiter, so <tt>remove()</tt> finds a thread without searching.
+	 */
+	private class DeadlineQueue extends ThreadQueue {
+		DeadlineQueue(ThreadQueue bestEffortQueue) {
+			this.bestEffortQueue = bestEffortQueue;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			PeriodicState state = periodic.get(thread);
+			if (state == null) {
+				bestEffortQueue.waitForAccess(thread);
+				return;
+			}
+
+			Lib.assertTrue(state.waiter == null);
+			Waiter waiter = new Waiter(thread, state, state.absoluteDeadline,
+					numWaiters++);
+			state.waiter = waiter;
+			waiter.queue = this;
+
+			if (size == heap.length) {
+				Waiter[] larger = new Waiter[2 * heap.length];
+				System.arraycopy(heap, 0, larger, 0, size);
+				heap = larger;
+			}
+			heap[size] = waiter;
+			waiter.index = size++;
+			siftUp(waiter.index);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (size > 0) {
+				KThread thread = heap[0].thread;
+				removeAt(0);
+				return thread;
+			}
+
+			return bestEffortQueue.nextThread();
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			bestEffortQueue.acquire(thread);
+		}
+
+		public void share(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			bestEffortQueue.share(thread);
+		}
+
+		public void release(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			bestEffortQueue.release(thread);
+		}
+
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			PeriodicState state = periodic.get(thread);
+			if (state != null && state.waiter != null
+					&& state.waiter.queue == this) {
+				removeAt(state.waiter.index);
+				return true;
+			}
+
+			return bestEffortQueue.remove(thread);
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < size; i++)
+				System.out.print(heap[i].thread + " ");
+
+			bestEffortQueue.print();
+		}
+
+		/**
+		 * Take the waiter at index <i>i</i> out of the heap.
+		 */
+		void removeAt(int i) {
+			Waiter removed = heap[i];
+			removed.state.waiter = null;
+			removed.queue = null;
+
+			Waiter last = heap[--size];
+			heap[size] = null;
+			if (i == size)
+				return;
+
+			heap[i] = last;
+			last.index = i;
+			siftDown(i);
+			if (heap[i] == last)
+				siftUp(i);
+		}
+
+		private void siftUp(int i) {
+			Waiter waiter = heap[i];
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (comparator.compare(heap[parent], waiter) <= 0)
+					break;
+
+				heap[i] = heap[parent];
+				heap[i].index = i;
+				i = parent;
+			}
+			heap[i] = waiter;
+			waiter.index = i;
+		}
+
+		private void siftDown(int i) {
+			Waiter waiter = heap[i];
+			while (2 * i + 1 < size) {
+				int child = 2 * i + 1;
+				if (child + 1 < size
+						&& comparator.compare(heap[child + 1], heap[child]) < 0)
+					child++;
+				if (comparator.compare(waiter, heap[child]) <= 0)
+					break;
+
+				heap[i] = heap[child];
+				heap[i].index = i;
+				i = child;
+			}
+			heap[i] = waiter;
+			waiter.index = i;
+		}
+
+		private ThreadQueue bestEffortQueue;
+
+		/** The periodic waiters, as a binary heap ordered by deadline. */
+		private Waiter[] heap = new Waiter[4];
+
+		private int size = 0;
+	}
+
+	/**
+	 * A periodic thread waiting in a <tt>DeadlineQueue</tt>, with the deadline
+	 * it had when it started waiting.
+	 */
+	private static class Waiter {
+		Waiter(KThread thread, PeriodicState state, long deadline, long order) {
+			this.thread = thread;
+			this.state = state;
+			this.deadline = deadline;
+			this.order = order;
+		}
+
+		KThread thread;
+
+		PeriodicState state;
+
+		long deadline;
+
+		long order;
+
+		/** The queue the thread waits in, and its index in the heap. */
+		DeadlineQueue queue;
+
+		int index;
+	}
+
+	/**
+	 * Orders waiters by deadline, breaking ties first-come first-serve.
+	 */
+	private static class WaiterComparator implements Comparator<Waiter> {
+		public int compare(Waiter w1, Waiter w2) {
+			if (w1.deadline != w2.deadline)
+				return (w1.deadline < w2.deadline) ? -1 : 1;
+			else if (w1.order != w2.order)
+				return (w1.order < w2.order) ? -1 : 1;
+			else
+				return 0;
+		}
+	}
+
+	/**
+	 * The EDF parameters and statistics of a periodic thread.
+	 */
+	private static class PeriodicState {
+		PeriodicState(long period, long deadline, double density) {
+			this.period = period;
+			this.deadline = deadline;
+			this.density = density;
+
+			release = Machine.timer().getTime();
+			absoluteDeadline = release + deadline;
+		}
+
+		long period;
+
+		long deadline;
+
+		double density;
+
+		/** The release time of the current job. */
+		long release;
+
+		/** The time by which the current job must complete. */
+		long absoluteDeadline;
+
+		int jobs = 0;
+
+		int misses = 0;
+
+		/** The thread's place in a <tt>DeadlineQueue</tt>, if it is waiting. */
+		Waiter waiter = null;
+	}
+
+	private Scheduler bestEffort;
+
+	private HashMap<KThread, PeriodicState> periodic = new HashMap<KThread, PeriodicState>();
+
+	private double maxUtilization;
+
+	private double utilization = 0.0;
+
+	private long numWaiters = 0;
+
+	private WaiterComparator comparator = new WaiterComparator();
+
+	private int numMisses = 0;
+
+	private static final char dbgEDF = 'e';
+}
@@ -115,6 +115,16 @@ public class KThread {
 		return name;
 	}
 
+	/**
+	 * Get the numerical ID of this thread, which no other thread has. This ID
+	 * is used for debugging purposes only.
+	 * 
+	 * @return the ID of this thread.
+	 */
+	public int getID() {
+		return id;
+	}
+
 	/**
 	 * Get the full name of this thread. This includes its name along with its
 	 * numerical ID. This name is used for debugging purposes only.
@@ -202,6 +212,12 @@ public class KThread {
 		toBeDestroyed = currentThread;
 
 		currentThread.status = statusFinished;
+
+		ThreadedKernel.scheduler.threadFinished(currentThread);
+
+		if (SchedulerTrace.enabled)
+			SchedulerTrace.record(SchedulerTrace.eventFinish, currentThread,
+					null);
 		
 		if (currentThread.threadToWait != null)
 		{
@@ -258,9 +274,14 @@ public class KThread {
 
 		Lib.assertTrue(Machine.interrupt().disabled());
 
-		if (currentThread.status != statusFinished)
+		if (currentThread.status != statusFinished) {
 			currentThread.status = statusBlocked;
 
+			if (SchedulerTrace.enabled)
+				SchedulerTrace.record(SchedulerTrace.eventSleep,
+						currentThread, null);
+		}
+
 		runNextThread();
 	}
 
@@ -278,6 +299,9 @@ public class KThread {
 		if (this != idleThread)
 			readyQueue.waitForAccess(this);
 
+		if (SchedulerTrace.enabled)
+			SchedulerTrace.record(SchedulerTrace.eventReady, this, readyQueue);
+
 		Machine.autoGrader().readyThread(this);
 	}
 
@@ -301,6 +325,8 @@ public class KThread {
 		}
 		
 		threadToWait = currentThread;
+		if (SchedulerTrace.enabled)
+			SchedulerTrace.blockingOn(this);
 		threadToWait.sleep();
 		
 		Machine.interrupt().restore(status);
@@ -373,6 +399,9 @@ public class KThread {
 		Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
 				+ " to: " + toString());
 
+		if (SchedulerTrace.enabled)
+			SchedulerTrace.record(SchedulerTrace.eventRun, this, null);
+
 		currentThread = this;
 
 		tcb.contextSwitch();
@@ -395,6 +424,9 @@ public class KThread {
 
 		status = statusRunning;
 
+		if (cpuBandwidth != null)
+			cpuBandwidth.startRunning();
+
 		if (toBeDestroyed != null) {
 			toBeDestroyed.tcb.destroy();
 			toBeDestroyed.tcb = null;
@@ -403,12 +435,15 @@ public class KThread {
 	}
 
 	/**
-	 * Prepare this thread to give up the processor. Kernel threads do not need
-	 * to do anything here.
+	 * Prepare this thread to give up the processor. Kernel threads only need to
+	 * charge their CPU bandwidth group, if they belong to one.
 	 */
 	protected void saveState() {
 		Lib.assertTrue(Machine.interrupt().disabled());
 		Lib.assertTrue(this == currentThread);
+
+		if (cpuBandwidth != null)
+			cpuBandwidth.stopRunning();
 	}
 
 	private static class PingTest implements Runnable {
@@ -470,6 +505,13 @@ public class KThread {
 	 */
 	public Object schedulingState = null;
 
+	/**
+	 * The CPU bandwidth group this thread is charged to, or <tt>null</tt>.
+	 * 
+	 * @see nachos.threads.CPUBandwidth
+	 */
+	public CPUBandwidth cpuBandwidth = null;
+
 	private static final int statusNew = 0;
 
 	private static final int statusReady = 1;
@@ -1,17 +1,33 @@
-
 package nachos.threads;
 
-import java.util.Comparator;
-
+/**
+ * A pending timer in the alarm's heap: the thread to wake (or the handler to
+ * run), when to do it, and where the entry currently sits in the heap.
+ */
 public class KnappThread {
 
 	private /*static*/ KThread threadToWake;
 	private /*static*/ long wakeTime;
+	private Runnable handler;
+	
+	/** Breaks ties between equal wake times, first-come first-serve. */
+	private long order;
 	
-	public KnappThread(KThread t, long time)
+	/** Position of this entry in the alarm's heap, or -1 if not queued. */
+	int heapIndex = -1;
+	
+	public KnappThread(KThread t, long time, long order)
 	{
 		this.threadToWake = t;
 		this.wakeTime = time;
+		this.order = order;
+	}
+	
+	public KnappThread(Runnable handler, long time, long order)
+	{
+		this.handler = handler;
+		this.wakeTime = time;
+		this.order = order;
 	}
 	
 	public KThread getThreadToWake()
@@ -19,31 +35,28 @@ public class KnappThread {
 		return this.threadToWake;
 	}
 	
+	/**
+	 * Returns the handler to run instead of waking a thread, or null.
+	 */
+	public Runnable getHandler()
+	{
+		return handler;
+	}
+	
 	public long getWakeTime()
 	{
 		return wakeTime;
 	}
 	
-	public static class Comparer<T> implements Comparator<T>
+	/**
+	 * Tests whether this wakeup is due before another one.
+	 */
+	public boolean before(KnappThread other)
 	{
-		public int compare(T t1, T t2)
-		{
-			KnappThread thread1 = (KnappThread) t1;
-			KnappThread thread2 = (KnappThread) t2;
-			
-			if (thread1.getWakeTime() < thread2.getWakeTime())
-				return -1;
-			else if (thread1.getWakeTime() > thread2.getWakeTime())
-				return 1;
-			else
-				return 0;
-		}
-		
-		public boolean equals(Object v1)
-		{
-			// We should never use this method
-			return false;
-		}
+		if (wakeTime != other.wakeTime)
+			return wakeTime < other.wakeTime;
+		else
+			return order < other.order;
 	}
 	
 }
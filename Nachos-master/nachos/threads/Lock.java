@@ -23,6 +23,21 @@ public class Lock {
 	 * Allocate a new lock. The lock will initially be <i>free</i>.
 	 */
 	public Lock() {
+		this(null);
+	}
+
+	/**
+	 * Allocate a new named lock. The lock will initially be <i>free</i>. The
+	 * name identifies the lock in the lock profile.
+	 * 
+	 * @param name the name of this lock.
+	 * 
+	 * @see nachos.threads.LockProfile
+	 */
+	public Lock(String name) {
+		this.name = name;
+		profile = LockProfile.create((name != null) ? name : "(unnamed Lock)",
+				true);
 	}
 
 	/**
@@ -35,13 +50,20 @@ public class Lock {
 		boolean intStatus = Machine.interrupt().disable();
 		KThread thread = KThread.currentThread();
 
+		if (profile != null)
+			profile.request(thread, lockHolder != null);
+
 		if (lockHolder != null) {
 			waitQueue.waitForAccess(thread);
+			if (SchedulerTrace.enabled)
+				SchedulerTrace.blockingOn(this);
 			KThread.sleep();
 		}
 		else {
 			waitQueue.acquire(thread);
 			lockHolder = thread;
+			if (profile != null)
+				profile.granted(thread);
 		}
 
 		Lib.assertTrue(lockHolder == thread);
@@ -49,6 +71,68 @@ public class Lock {
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Atomically acquire this lock, giving up after <i>ticks</i> clock ticks.
+	 * If <i>ticks</i> is not positive, only acquires the lock if it is free.
+	 * The current thread must not already hold this lock.
+	 * 
+	 * @param ticks the maximum number of clock ticks to wait.
+	 * @return <tt>true</tt> if the lock was acquired, <tt>false</tt> if the
+	 * wait timed out.
+	 */
+	public boolean tryAcquire(long ticks) {
+		Lib.assertTrue(!isHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+		boolean acquired = true;
+
+		if (profile != null)
+			profile.request(thread, lockHolder != null);
+
+		if (lockHolder == null) {
+			waitQueue.acquire(thread);
+			lockHolder = thread;
+			if (profile != null)
+				profile.granted(thread);
+		}
+		else if (ticks > 0) {
+			waitQueue.waitForAccess(thread);
+			if (SchedulerTrace.enabled)
+				SchedulerTrace.blockingOn(this);
+			acquired = ThreadedKernel.alarm.sleepWithTimeout(waitQueue, ticks);
+		}
+		else {
+			acquired = false;
+		}
+
+		if (!acquired && profile != null)
+			profile.abandoned(thread);
+
+		Lib.assertTrue(acquired == (lockHolder == thread));
+
+		Machine.interrupt().restore(intStatus);
+		return acquired;
+	}
+
+	/**
+	 * Add a sleeping thread to this lock's wait queue, as if it had called
+	 * <tt>acquire()</tt>. The thread is made ready when the lock is handed to
+	 * it. Used by <tt>Condition2</tt> to move woken threads onto the lock.
+	 * The current thread must hold this lock, and interrupts must be disabled.
+	 * 
+	 * @param thread the sleeping thread to queue.
+	 */
+	void waitForLock(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(isHeldByCurrentThread());
+
+		if (profile != null)
+			profile.request(thread, true);
+
+		waitQueue.waitForAccess(thread);
+	}
+
 	/**
 	 * Atomically release this lock, allowing other threads to acquire it.
 	 */
@@ -57,8 +141,14 @@ public class Lock {
 
 		boolean intStatus = Machine.interrupt().disable();
 
-		if ((lockHolder = waitQueue.nextThread()) != null)
+		if (profile != null)
+			profile.released();
+
+		if ((lockHolder = waitQueue.nextThread()) != null) {
+			if (profile != null)
+				profile.granted(lockHolder);
 			lockHolder.ready();
+		}
 
 		Machine.interrupt().restore(intStatus);
 	}
@@ -72,6 +162,47 @@ public class Lock {
 		return (lockHolder == KThread.currentThread());
 	}
 
+	/**
+	 * Return the name of this lock.
+	 * 
+	 * @return the name given to this lock, or <tt>null</tt>.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Test that <tt>tryAcquire()</tt> times out while the lock is held, and
+	 * acquires the lock once it is released before the timeout.
+	 */
+	public static void selfTest() {
+		final Lock lock = new Lock("Lock.selfTest");
+		final boolean[] acquired = new boolean[3];
+
+		lock.acquire();
+		KThread tryer = new KThread(new Runnable() {
+			public void run() {
+				acquired[0] = lock.tryAcquire(0);
+				acquired[1] = lock.tryAcquire(1000);
+				acquired[2] = lock.tryAcquire(1000000);
+				if (acquired[2])
+					lock.release();
+			}
+		}).setName("Lock.selfTest tryer");
+		tryer.fork();
+
+		// hold the lock past the first timed wait, but not the second
+		ThreadedKernel.alarm.waitUntil(3000);
+		lock.release();
+		tryer.join();
+
+		Lib.assertTrue(!acquired[0] && !acquired[1] && acquired[2]);
+	}
+
+	private String name;
+
+	private LockProfile profile;
+
 	private KThread lockHolder = null;
 
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
@@ -0,0 +1,233 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TreeMap;
+
+/**
+ * Contention statistics for one <tt>Lock</tt> or <tt>Semaphore</tt>.
+ *
+ * <p>
+ * Profiling is turned on by the <tt>LockProfile.enabled</tt> key in
+ * <tt>nachos.conf</tt>. When it is off, locks and semaphores get no profile
+ * and pay one <tt>null</tt> test per operation. When it is on, every lock and
+ * semaphore created after the kernel initializes records its acquisitions,
+ * contended acquisitions, wait ticks (from the request until access is
+ * granted), timeouts, and hold ticks. Semaphores only record hold ticks if
+ * they start at 1, that is, if they are used as a mutex.
+ *
+ * <p>
+ * The statistics are added up by name as they are recorded, so all instances
+ * with one name (all the per-page locks of all processes, for example) share
+ * one set of totals, and the memory used does not grow with the number of
+ * locks ever created. Each instance keeps only the state of its current
+ * holder and waiters. <tt>report()</tt>, called when the kernel terminates,
+ * prints one line per name, sorted by total wait.
+ */
+public class LockProfile {
+	/**
+	 * Allocate a new profile.
+	 *
+	 * @param name the name of the lock or semaphore.
+	 * @param trackHold <tt>true</tt> if hold times should be recorded.
+	 * @param totals the totals of every instance with this name, or
+	 * <tt>null</tt> if this profile holds them.
+	 */
+	private LockProfile(String name, boolean trackHold, LockProfile totals) {
+		this.name = name;
+		this.trackHold = trackHold;
+		this.totals = (totals == null) ? this : totals;
+	}
+
+	/**
+	 * Read the profiling configuration. Called by
+	 * <tt>ThreadedKernel.initialize()</tt>.
+	 */
+	static void initialize() {
+		enabled = Config.getBoolean("LockProfile.enabled", false);
+	}
+
+	/**
+	 * Return a new profile for a lock or semaphore, or <tt>null</tt> if
+	 * profiling is off.
+	 *
+	 * @param name the name of the lock or semaphore.
+	 * @param trackHold <tt>true</tt> if hold times should be recorded.
+	 * @return the profile, or <tt>null</tt>.
+	 */
+	static LockProfile create(String name, boolean trackHold) {
+		if (!enabled)
+			return null;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		LockProfile totals = byName.get(name);
+		if (totals == null) {
+			totals = new LockProfile(name, trackHold, null);
+			byName.put(name, totals);
+		}
+		totals.instances++;
+
+		Machine.interrupt().restore(intStatus);
+
+		return new LockProfile(name, trackHold, totals);
+	}
+
+	/**
+	 * Record that a thread asked for access. If the request is contended, the
+	 * thread's wait starts now. Interrupts must be disabled.
+	 *
+	 * @param thread the requesting thread.
+	 * @param contended <tt>true</tt> if the thread has to wait.
+	 */
+	void request(KThread thread, boolean contended) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		totals.acquisitions++;
+		if (contended) {
+			totals.numContended++;
+			waitStart.put(thread, Long.valueOf(Machine.timer().getTime()));
+		}
+	}
+
+	/**
+	 * Record that a thread was granted access. Ends its wait, if it had to
+	 * wait, and starts its hold. Interrupts must be disabled.
+	 *
+	 * @param thread the thread granted access.
+	 */
+	void granted(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long time = Machine.timer().getTime();
+
+		Long start = waitStart.remove(thread);
+		if (start != null) {
+			long wait = time - start.longValue();
+			totals.totalWait += wait;
+			totals.maxWait = Math.max(totals.maxWait, wait);
+		}
+
+		if (trackHold)
+			holdStart = time;
+	}
+
+	/**
+	 * Record that a thread stopped waiting without being granted access.
+	 * Interrupts must be disabled.
+	 *
+	 * @param thread the thread that timed out.
+	 */
+	void abandoned(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Long start = waitStart.remove(thread);
+		if (start != null)
+			totals.totalWait += Machine.timer().getTime() - start.longValue();
+
+		totals.numTimeouts++;
+	}
+
+	/**
+	 * Record that the holder gave up access. Interrupts must be disabled.
+	 */
+	void released() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (holdStart >= 0) {
+			long hold = Machine.timer().getTime() - holdStart;
+			totals.totalHold += hold;
+			totals.maxHold = Math.max(totals.maxHold, hold);
+			holdStart = -1;
+		}
+	}
+
+	/**
+	 * Print the statistics of every profiled lock and semaphore, grouped by
+	 * name. Does nothing if profiling is off.
+	 */
+	static void report() {
+		if (!enabled)
+			return;
+
+		// sort by name first, so equal waits are listed by name
+		ArrayList<LockProfile> sums = new ArrayList<LockProfile>(
+				new TreeMap<String, LockProfile>(byName).values());
+		Collections.sort(sums, new Comparator<LockProfile>() {
+			public int compare(LockProfile p1, LockProfile p2) {
+				if (p1.totalWait != p2.totalWait)
+					return (p1.totalWait > p2.totalWait) ? -1 : 1;
+				else
+					return 0;
+			}
+		});
+
+		System.out.println("Lock profile (ticks):");
+		System.out.println(pad("name", -28) + pad("inst", 6) + pad("acq", 9)
+				+ pad("contend", 9) + pad("timeout", 9) + pad("wait", 10)
+				+ pad("maxwait", 9) + pad("hold", 10) + pad("maxhold", 9));
+
+		for (Iterator<LockProfile> i = sums.iterator(); i.hasNext();) {
+			LockProfile sum = i.next();
+			System.out.println(pad(sum.name, -28) + pad("" + sum.instances, 6)
+					+ pad("" + sum.acquisitions, 9)
+					+ pad("" + sum.numContended, 9)
+					+ pad("" + sum.numTimeouts, 9) + pad("" + sum.totalWait, 10)
+					+ pad("" + sum.maxWait, 9)
+					+ pad(sum.trackHold ? "" + sum.totalHold : "-", 10)
+					+ pad(sum.trackHold ? "" + sum.maxHold : "-", 9));
+		}
+	}
+
+	/**
+	 * Pad a string with spaces to the specified width: on the left if
+	 * <i>width</i> is positive, on the right if it is negative.
+	 */
+	private static String pad(String s, int width) {
+		StringBuffer buf = new StringBuffer();
+		for (int i = s.length(); i < Math.abs(width); i++)
+			buf.append(' ');
+
+		return (width < 0) ? s + buf : buf + s;
+	}
+
+	private String name;
+
+	private boolean trackHold;
+
+	/** The profile holding the totals for this name; itself, if it does. */
+	private LockProfile totals;
+
+	/** The number of instances created with this name, in the totals. */
+	private int instances = 0;
+
+	private long acquisitions = 0;
+
+	private long numContended = 0;
+
+	private long numTimeouts = 0;
+
+	private long totalWait = 0;
+
+	private long maxWait = 0;
+
+	private long totalHold = 0;
+
+	private long maxHold = 0;
+
+	/** When the current holder was granted access, or -1. */
+	private long holdStart = -1;
+
+	/** When each waiting thread made its request. */
+	private HashMap<KThread, Long> waitStart = new HashMap<KThread, Long>();
+
+	private static boolean enabled = false;
+
+	/** The totals of each name. */
+	private static HashMap<String, LockProfile> byName = new HashMap<String, LockProfile>();
+}
@@ -5,6 +5,8 @@ import nachos.machine.*;
 import java.util.TreeSet;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -143,10 +145,72 @@ public class PriorityScheduler extends Scheduler {
 			getThreadState(thread).acquire(this);
 		}
 
+		public void share(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getThreadState(thread).share(this);
+		}
+
+		public void release(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getThreadState(thread).release(this);
+		}
+
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			ThreadState next = pickNextThread();
+			if (next == null) {
+				if (holder != null)
+					holder.release(this);
+				return null;
+			}
+
+			waitQueue.remove(next);
+			next.waitingOn = null;
+			// the sharing holders lose the donation of the thread that left
+			if (transferPriority)
+				invalidateSharers();
+			next.acquire(this);
+
+			return next.thread;
+		}
+
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (state.waitingOn != this)
+				return false;
+
+			waitQueue.remove(state);
+			state.waitingOn = null;
+
+			if (transferPriority)
+				invalidateHolders();
+
+			return true;
+		}
+
+		/**
+		 * Forget the cached effective priorities of every thread holding this
+		 * queue's resource, after its waiting threads have changed.
+		 */
+		protected void invalidateHolders() {
+			if (holder != null)
+				holder.invalidate();
+			invalidateSharers();
+		}
+
+		/**
+		 * Forget the cached effective priorities of the threads sharing this
+		 * queue's resource.
+		 */
+		protected void invalidateSharers() {
+			if (sharers.isEmpty())
+				return;
+
+			for (Iterator<ThreadState> i = sharers.iterator(); i.hasNext();)
+				i.next().invalidate();
 		}
 
 		/**
@@ -156,13 +220,41 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			ThreadState next = null;
+
+			// the first thread of the highest priority has waited longest
+			for (Iterator<ThreadState> i = waitQueue.iterator(); i.hasNext();) {
+				ThreadState state = i.next();
+				if (next == null
+						|| state.getEffectivePriority() > next
+								.getEffectivePriority())
+					next = state;
+			}
+
+			return next;
+		}
+
+		/**
+		 * Return the highest effective priority of the threads waiting in this
+		 * queue, or <tt>priorityMinimum</tt> if there are none.
+		 */
+		protected int getDonation() {
+			int donation = priorityMinimum;
+
+			for (Iterator<ThreadState> i = waitQueue.iterator(); i.hasNext();)
+				donation = Math.max(donation, i.next().getEffectivePriority());
+
+			return donation;
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (Iterator<ThreadState> i = waitQueue.iterator(); i.hasNext();) {
+				ThreadState state = i.next();
+				System.out.print(state.thread + " ("
+						+ state.getEffectivePriority() + ") ");
+			}
 		}
 
 		/**
@@ -170,6 +262,15 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/** The threads waiting in this queue, in the order they arrived. */
+		protected LinkedList<ThreadState> waitQueue = new LinkedList<ThreadState>();
+
+		/** The thread that last received access, or <tt>null</tt>. */
+		protected ThreadState holder = null;
+
+		/** The threads sharing access through <tt>share()</tt>. */
+		protected LinkedHashSet<ThreadState> sharers = new LinkedHashSet<ThreadState>();
 	}
 
 	/**
@@ -207,8 +308,52 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			if (effectivePriority == invalidPriority) {
+				effectivePriority = priority;
+
+				for (Iterator<PriorityQueue> i = acquired.iterator(); i.hasNext();) {
+					PriorityQueue queue = i.next();
+					if (queue.transferPriority)
+						effectivePriority = Math.max(effectivePriority,
+								queue.getDonation());
+				}
+			}
+
+			return effectivePriority;
+		}
+
+		/**
+		 * Forget the cached effective priority of the associated thread, and of
+		 * every thread it is donating to. Each thread on the chain is marked
+		 * with a new epoch, so that a cycle of donations (a deadlock) ends the
+		 * walk instead of looping forever.
+		 */
+		protected void invalidate() {
+			invalidate(++invalidateEpoch);
+		}
+
+		/**
+		 * Walk the donation chain for <tt>invalidate()</tt>. The chain only
+		 * branches where a queue has sharing holders, and only those branches
+		 * recurse.
+		 */
+		private void invalidate(int epoch) {
+			ThreadState state = this;
+			while (state != null && state.invalidatedIn != epoch) {
+				state.invalidatedIn = epoch;
+				state.effectivePriority = invalidPriority;
+
+				PriorityQueue queue = state.waitingOn;
+				if (queue == null || !queue.transferPriority)
+					break;
+
+				if (!queue.sharers.isEmpty()) {
+					for (Iterator<ThreadState> i = queue.sharers.iterator(); i
+							.hasNext();)
+						i.next().invalidate(epoch);
+				}
+				state = queue.holder;
+			}
 		}
 
 		/**
@@ -222,7 +367,7 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			invalidate();
 		}
 
 		/**
@@ -238,7 +383,13 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(waitingOn == null);
+
+			waitingOn = waitQueue;
+			waitQueue.waitQueue.add(this);
+
+			if (waitQueue.transferPriority)
+				waitQueue.invalidateHolders();
 		}
 
 		/**
@@ -252,7 +403,49 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			if (waitQueue.holder == this)
+				return;
+
+			if (waitQueue.holder != null)
+				waitQueue.holder.release(waitQueue);
+
+			waitQueue.sharers.remove(this);
+			waitQueue.holder = this;
+			acquired.add(waitQueue);
+			invalidate();
+		}
+
+		/**
+		 * Called when the associated thread shares access to whatever is
+		 * guarded by <tt>waitQueue</tt> with any other holders.
+		 *
+		 * @see nachos.threads.ThreadQueue#share
+		 */
+		public void share(PriorityQueue waitQueue) {
+			if (waitQueue.holder == this)
+				waitQueue.holder = null;
+			else if (!waitQueue.sharers.add(this))
+				return;
+
+			waitQueue.sharers.add(this);
+			acquired.add(waitQueue);
+			invalidate();
+		}
+
+		/**
+		 * Called when the associated thread no longer holds whatever is guarded
+		 * by <tt>waitQueue</tt>.
+		 *
+		 * @see nachos.threads.ThreadQueue#release
+		 */
+		public void release(PriorityQueue waitQueue) {
+			if (waitQueue.holder == this)
+				waitQueue.holder = null;
+			else if (!waitQueue.sharers.remove(this))
+				return;
+
+			acquired.remove(waitQueue);
+			invalidate();
 		}
 
 		/** The thread with which this object is associated. */
@@ -260,5 +453,25 @@ public class PriorityScheduler extends Scheduler {
 
 		/** The priority of the associated thread. */
 		protected int priority;
+
+		/**
+		 * The cached effective priority of the associated thread, or
+		 * <tt>invalidPriority</tt> if it must be recomputed.
+		 */
+		protected int effectivePriority = invalidPriority;
+
+		/** The epoch of the last <tt>invalidate()</tt> that reached this state. */
+		protected int invalidatedIn = 0;
+
+		/** The queues whose resources the associated thread holds. */
+		protected HashSet<PriorityQueue> acquired = new HashSet<PriorityQueue>();
+
+		/** The queue the associated thread is waiting in, or <tt>null</tt>. */
+		protected PriorityQueue waitingOn = null;
 	}
+
+	/** Counts <tt>invalidate()</tt> walks; see <tt>ThreadState.invalidate()</tt>. */
+	private int invalidateEpoch = 0;
+
+	private static final int invalidPriority = -1;
 }
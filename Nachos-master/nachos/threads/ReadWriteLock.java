@@ -0,0 +1,369 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedHashSet;
+
+/**
+ * A <tt>ReadWriteLock</tt> is a lock that may be held either by any number of
+ * readers at once, or by a single writer.
+ *
+ * <p>
+ * Writers have preference: once a writer is waiting, new readers wait too, so
+ * a stream of readers cannot starve writers. When a writer releases the lock,
+ * the next writer gets it before any waiting reader, unless the lock is
+ * <i>fair</i>. A fair lock instead admits every waiting reader first, so that
+ * readers and writers take turns and neither class can starve the other.
+ * Fairness is chosen when the lock is created; by default it comes from the
+ * <tt>ReadWriteLock.fair</tt> key in <tt>nachos.conf</tt>.
+ *
+ * <p>
+ * Waiting readers and writers are kept in <tt>ThreadQueue</tt>s that transfer
+ * priority, and every thread holding the lock is registered with both queues
+ * through <tt>share()</tt>, so a priority scheduler donates the priority of
+ * waiting threads to the writer, or to every reader. Holders come and go
+ * without disturbing the threads waiting in either queue.
+ *
+ * <p>
+ * Like <tt>Lock</tt>, a read-write lock must be released by the thread that
+ * acquired it, and may not be acquired recursively.
+ */
+public class ReadWriteLock {
+	/**
+	 * Allocate a new read-write lock, using the configured fairness. The lock
+	 * will initially be <i>free</i>.
+	 */
+	public ReadWriteLock() {
+		this(Config.getBoolean("ReadWriteLock.fair", false));
+	}
+
+	/**
+	 * Allocate a new read-write lock. The lock will initially be <i>free</i>.
+	 *
+	 * @param fair <tt>true</tt> if writers should hand the lock to waiting
+	 * readers before waiting writers.
+	 */
+	public ReadWriteLock(boolean fair) {
+		this.fair = fair;
+	}
+
+	/**
+	 * Atomically acquire this lock for reading. The current thread must not
+	 * already hold this lock.
+	 */
+	public void acquireRead() {
+		Lib.assertTrue(!isHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		if (writer == null && numWaitingWriters == 0) {
+			readers.add(thread);
+			share(thread);
+		}
+		else {
+			numWaitingReaders++;
+			readQueue.waitForAccess(thread);
+			if (SchedulerTrace.enabled)
+				SchedulerTrace.blockingOn(this);
+			KThread.sleep();
+		}
+
+		Lib.assertTrue(readers.contains(thread));
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Atomically acquire this lock for writing. The current thread must not
+	 * already hold this lock.
+	 */
+	public void acquireWrite() {
+		Lib.assertTrue(!isHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		if (writer == null && readers.isEmpty()) {
+			writer = thread;
+			writeQueue.acquire(thread);
+			readQueue.share(thread);
+		}
+		else {
+			numWaitingWriters++;
+			writeQueue.waitForAccess(thread);
+			if (SchedulerTrace.enabled)
+				SchedulerTrace.blockingOn(this);
+			KThread.sleep();
+		}
+
+		Lib.assertTrue(writer == thread);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Atomically release this lock, which the current thread holds for
+	 * reading.
+	 */
+	public void releaseRead() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+		Lib.assertTrue(readers.remove(thread));
+		unshare(thread);
+
+		// the last reader out hands over to a writer, if one is waiting
+		if (readers.isEmpty())
+			admitWriter();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Atomically release this lock, which the current thread holds for
+	 * writing.
+	 */
+	public void releaseWrite() {
+		Lib.assertTrue(isWriteHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		writer = null;
+		unshare(KThread.currentThread());
+
+		if (fair && numWaitingReaders > 0)
+			admitReaders();
+		else if (!admitWriter())
+			admitReaders();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Test if the current thread holds this lock for reading.
+	 *
+	 * @return true if the current thread is one of the readers.
+	 */
+	public boolean isReadHeldByCurrentThread() {
+		return readers.contains(KThread.currentThread());
+	}
+
+	/**
+	 * Test if the current thread holds this lock for writing.
+	 *
+	 * @return true if the current thread is the writer.
+	 */
+	public boolean isWriteHeldByCurrentThread() {
+		return (writer == KThread.currentThread());
+	}
+
+	/**
+	 * Test if the current thread holds this lock, for reading or writing.
+	 *
+	 * @return true if the current thread holds this lock.
+	 */
+	public boolean isHeldByCurrentThread() {
+		return isWriteHeldByCurrentThread() || isReadHeldByCurrentThread();
+	}
+
+	/**
+	 * Hand the lock to the next waiting writer, if there is one.
+	 *
+	 * @return <tt>true</tt> if a writer now holds the lock.
+	 */
+	private boolean admitWriter() {
+		writer = writeQueue.nextThread();
+		if (writer == null)
+			return false;
+
+		numWaitingWriters--;
+		readQueue.share(writer);
+		writer.ready();
+		return true;
+	}
+
+	/**
+	 * Hand the lock to every waiting reader.
+	 */
+	private void admitReaders() {
+		KThread thread;
+		while ((thread = readQueue.nextThread()) != null) {
+			numWaitingReaders--;
+			readers.add(thread);
+			share(thread);
+			thread.ready();
+		}
+	}
+
+	/**
+	 * Register a new holder of this lock with both wait queues, so that
+	 * waiting threads donate their priority to it.
+	 */
+	private void share(KThread thread) {
+		readQueue.share(thread);
+		writeQueue.share(thread);
+	}
+
+	/**
+	 * Tell both wait queues that a thread no longer holds this lock.
+	 */
+	private void unshare(KThread thread) {
+		readQueue.release(thread);
+		writeQueue.release(thread);
+	}
+
+	/**
+	 * Test that this module is working.
+	 */
+	public static void selfTest() {
+		final ReadWriteLock lock = new ReadWriteLock(false);
+		final StringBuffer trace = new StringBuffer();
+
+		class Client implements Runnable {
+			Client(String name, boolean writing) {
+				this.name = name;
+				this.writing = writing;
+			}
+
+			public void run() {
+				if (writing)
+					lock.acquireWrite();
+				else
+					lock.acquireRead();
+
+				trace.append(name);
+				KThread.yield();
+				trace.append(name);
+
+				if (writing)
+					lock.releaseWrite();
+				else
+					lock.releaseRead();
+			}
+
+			private String name;
+
+			private boolean writing;
+		}
+
+		// two readers overlap; the writer waits for both, and the reader that
+		// comes after the writer waits for the writer. Each client is forked
+		// only once the one before it has the lock or is waiting, so that
+		// timer preemption cannot change who arrives first.
+		KThread a = new KThread(new Client("a", false)).setName("rw reader a");
+		KThread b = new KThread(new Client("b", false)).setName("rw reader b");
+		KThread w = new KThread(new Client("W", true)).setName("rw writer W");
+		KThread c = new KThread(new Client("c", false)).setName("rw reader c");
+
+		lock.acquireRead();
+		a.fork();
+		b.fork();
+		while (trace.indexOf("a") < 0 || trace.indexOf("b") < 0)
+			KThread.yield();
+		w.fork();
+		while (lock.numWaitingWriters == 0)
+			KThread.yield();
+		c.fork();
+		while (lock.numWaitingReaders == 0)
+			KThread.yield();
+		lock.releaseRead();
+
+		a.join();
+		b.join();
+		w.join();
+		c.join();
+
+		// the readers may interleave, but the writer runs alone between them
+		String order = trace.toString();
+		Lib.assertTrue(order.length() == 8);
+		Lib.assertTrue(order.indexOf("WW") >= 0);
+		Lib.assertTrue(order.lastIndexOf('a') < order.indexOf('W')
+				&& order.lastIndexOf('b') < order.indexOf('W'));
+		Lib.assertTrue(order.indexOf('c') > order.lastIndexOf('W'));
+
+		// a free lock has no holders, so the next writer gets it at once
+		lock.acquireWrite();
+		Lib.assertTrue(lock.isWriteHeldByCurrentThread());
+		lock.releaseWrite();
+		Lib.assertTrue(lock.writer == null && lock.readers.isEmpty());
+
+		if (ThreadedKernel.scheduler instanceof PriorityScheduler)
+			donationTest();
+	}
+
+	/**
+	 * Test that a waiting writer donates its priority to every reader holding
+	 * the lock, and to none of them once they release it.
+	 */
+	private static void donationTest() {
+		final ReadWriteLock lock = new ReadWriteLock(false);
+		final Semaphore hold = new Semaphore(0);
+
+		KThread reader = new KThread(new Runnable() {
+			public void run() {
+				lock.acquireRead();
+				hold.P();
+				lock.releaseRead();
+			}
+		}).setName("rw donation reader");
+
+		KThread writer = new KThread(new Runnable() {
+			public void run() {
+				lock.acquireWrite();
+				lock.releaseWrite();
+			}
+		}).setName("rw donation writer");
+
+		lock.acquireRead();
+		reader.fork();
+		while (lock.readers.size() < 2)
+			KThread.yield();
+
+		Scheduler scheduler = ThreadedKernel.scheduler;
+		int max = PriorityScheduler.priorityMaximum;
+
+		boolean intStatus = Machine.interrupt().disable();
+		scheduler.setPriority(writer, max);
+		Machine.interrupt().restore(intStatus);
+
+		writer.fork();
+		while (lock.numWaitingWriters == 0)
+			KThread.yield();
+
+		// both readers get the writer's priority, not just the oldest
+		intStatus = Machine.interrupt().disable();
+		Lib.assertTrue(scheduler.getEffectivePriority() == max);
+		Lib.assertTrue(scheduler.getEffectivePriority(reader) == max);
+		Machine.interrupt().restore(intStatus);
+
+		lock.releaseRead();
+
+		intStatus = Machine.interrupt().disable();
+		Lib.assertTrue(scheduler.getEffectivePriority() == scheduler
+				.getPriority());
+		Lib.assertTrue(scheduler.getEffectivePriority(reader) == max);
+		Machine.interrupt().restore(intStatus);
+
+		hold.V();
+		reader.join();
+		writer.join();
+	}
+
+	private boolean fair;
+
+	private KThread writer = null;
+
+	/** The threads holding this lock for reading, oldest first. */
+	private LinkedHashSet<KThread> readers = new LinkedHashSet<KThread>();
+
+	private int numWaitingReaders = 0;
+
+	private int numWaitingWriters = 0;
+
+	private ThreadQueue readQueue = ThreadedKernel.scheduler
+			.newThreadQueue(true);
+
+	private ThreadQueue writeQueue = ThreadedKernel.scheduler
+			.newThreadQueue(true);
+}
@@ -2,7 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
 import java.util.Iterator;
 
 /**
@@ -53,7 +53,19 @@ public class RoundRobinScheduler extends Scheduler {
 			if (waitQueue.isEmpty())
 				return null;
 
-			return (KThread) waitQueue.removeFirst();
+			Iterator<KThread> i = waitQueue.iterator();
+			KThread thread = i.next();
+			i.remove();
+			return thread;
+		}
+
+		/**
+		 * Remove a waiting thread in constant time.
+		 */
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			return waitQueue.remove(thread);
 		}
 
 		/**
@@ -77,6 +89,6 @@ public class RoundRobinScheduler extends Scheduler {
 				System.out.print((KThread) i.next() + " ");
 		}
 
-		private LinkedList<KThread> waitQueue = new LinkedList<KThread>();
+		private LinkedHashSet<KThread> waitQueue = new LinkedHashSet<KThread>();
 	}
 }
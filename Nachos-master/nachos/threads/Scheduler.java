@@ -151,4 +151,15 @@ public abstract class Scheduler {
 	public boolean decreasePriority() {
 		return false;
 	}
+
+	/**
+	 * Notify this scheduler that the specified thread has finished, so that it
+	 * can forget any state it keeps for the thread. Called by
+	 * <tt>KThread.finish()</tt> with interrupts disabled.
+	 * 
+	 * @param thread the thread that has finished.
+	 */
+	public void threadFinished(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+	}
 }
@@ -0,0 +1,313 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Records scheduler events in a fixed-size ring buffer, and writes them out in
+ * the Chrome trace event format (readable by <tt>chrome://tracing</tt> and
+ * Perfetto) when the kernel terminates.
+ *
+ * <p>
+ * <tt>KThread</tt> records an event whenever a thread becomes ready, starts
+ * running, goes to sleep, or finishes. Synchronization primitives call
+ * <tt>blockingOn()</tt> just before putting a thread to sleep, so that the
+ * sleep event names the lock, semaphore, or condition variable the thread is
+ * waiting for. Once the buffer is full, the oldest events are overwritten.
+ *
+ * <p>
+ * Tracing is controlled by these <tt>nachos.conf</tt> keys:
+ * <tt>SchedulerTrace.enabled</tt> (default <tt>false</tt>),
+ * <tt>SchedulerTrace.capacity</tt> (number of events kept, default 8192), and
+ * <tt>SchedulerTrace.file</tt> (default <tt>sched.json</tt>, written with the
+ * kernel's file system, or to standard output if there is none). Every call
+ * site tests <tt>enabled</tt> first, so a disabled trace costs one field read
+ * per event.
+ *
+ * <p>
+ * The buffer keeps the IDs and names of threads, and the class and identity of
+ * the objects they wait for, never references to the threads or objects
+ * themselves, so that tracing does not keep finished threads alive.
+ */
+public final class SchedulerTrace {
+	/**
+	 * Allocate a ring buffer that keeps the last <i>capacity</i> events.
+	 */
+	private SchedulerTrace(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		this.capacity = capacity;
+		times = new long[capacity];
+		types = new byte[capacity];
+		threadIds = new int[capacity];
+		threadNames = new String[capacity];
+		objectClasses = new Class<?>[capacity];
+		objectIds = new int[capacity];
+		objectNames = new String[capacity];
+	}
+
+	/**
+	 * Read the trace configuration and allocate the ring buffer. Called by
+	 * <tt>ThreadedKernel.initialize()</tt> before the first thread is created.
+	 */
+	static void initialize() {
+		enabled = Config.getBoolean("SchedulerTrace.enabled", false);
+		if (!enabled)
+			return;
+
+		trace = new SchedulerTrace(Config.getInteger(
+				"SchedulerTrace.capacity", 8192));
+	}
+
+	/**
+	 * Record that the current thread is about to sleep waiting for the
+	 * specified object. The next sleep event of this thread names the object.
+	 * Interrupts must be disabled.
+	 *
+	 * @param object the lock, semaphore, condition variable, or thread being
+	 * waited for.
+	 */
+	static void blockingOn(Object object) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		blockingOn = object;
+	}
+
+	/**
+	 * Record an event. Interrupts must be disabled.
+	 *
+	 * @param type one of the <tt>event</tt> constants.
+	 * @param thread the thread the event happened to.
+	 * @param object the queue or object involved, or <tt>null</tt>.
+	 */
+	static void record(byte type, KThread thread, Object object) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (type == eventSleep) {
+			object = blockingOn;
+			blockingOn = null;
+		}
+
+		trace.add(Machine.timer().getTime(), type, thread, object);
+	}
+
+	/**
+	 * Write the recorded events to the trace file. Called by
+	 * <tt>ThreadedKernel.terminate()</tt>.
+	 */
+	static void dump() {
+		if (!enabled)
+			return;
+
+		// build the report with the buffer frozen, then write it out with
+		// interrupts restored, since the file system may block
+		boolean intStatus = Machine.interrupt().disable();
+		enabled = false;
+
+		String json = trace.toJSON();
+		int numEvents = trace.count;
+
+		Machine.interrupt().restore(intStatus);
+
+		String fileName = Config.getString("SchedulerTrace.file", "sched.json");
+		OpenFile file = null;
+		if (ThreadedKernel.fileSystem != null) {
+			ThreadedKernel.fileSystem.remove(fileName);
+			file = ThreadedKernel.fileSystem.open(fileName, true);
+		}
+
+		if (file != null) {
+			byte[] bytes = json.getBytes();
+			file.write(bytes, 0, bytes.length);
+			file.close();
+			System.out.println("Scheduler trace: " + numEvents + " events ("
+					+ trace.numDropped + " dropped) written to " + fileName);
+		}
+		else {
+			System.out.println(json);
+		}
+	}
+
+	/**
+	 * Add an event to the ring buffer, overwriting the oldest if it is full.
+	 */
+	private void add(long time, byte type, KThread thread, Object object) {
+		times[next] = time;
+		types[next] = type;
+		threadIds[next] = thread.getID();
+		threadNames[next] = thread.getName();
+
+		if (object instanceof KThread) {
+			KThread target = (KThread) object;
+			objectClasses[next] = KThread.class;
+			objectIds[next] = target.getID();
+			objectNames[next] = target.getName();
+		}
+		else {
+			objectClasses[next] = (object == null) ? null : object.getClass();
+			objectIds[next] = System.identityHashCode(object);
+			objectNames[next] = null;
+		}
+
+		if (++next == capacity)
+			next = 0;
+		if (count < capacity)
+			count++;
+		else
+			numDropped++;
+	}
+
+	/**
+	 * Convert the buffer to a Chrome trace. Each thread gets its own track of
+	 * back-to-back "ready", "running", and "blocked" slices, named by thread
+	 * ID. Timestamps are in ticks.
+	 */
+	private String toJSON() {
+		StringBuffer buf = new StringBuffer();
+		buf.append("{\"displayTimeUnit\":\"ns\",\"traceEvents\":[");
+
+		HashSet<Integer> named = new HashSet<Integer>();
+		HashMap<Integer, String> open = new HashMap<Integer, String>();
+		boolean first = true;
+
+		int start = (count < capacity) ? 0 : next;
+		for (int n = 0; n < count; n++) {
+			int i = (start + n) % capacity;
+			Integer tid = Integer.valueOf(threadIds[i]);
+
+			if (named.add(tid)) {
+				first = append(buf, first, "{\"ph\":\"M\",\"name\":\"thread_name\""
+						+ ",\"pid\":1,\"tid\":" + tid + ",\"args\":{\"name\":\""
+						+ escape(threadNames[i] + " (#" + tid + ")") + "\"}}");
+			}
+
+			String slice = open.remove(tid);
+			if (slice != null)
+				first = append(buf, first, slice(times[i], tid, "E", slice));
+
+			switch (types[i]) {
+			case eventReady:
+				slice = "ready";
+				break;
+			case eventRun:
+				slice = "running";
+				break;
+			case eventSleep:
+				slice = (objectClasses[i] == null) ? "blocked" : "blocked on "
+						+ describe(i);
+				break;
+			default:
+				slice = null;
+				break;
+			}
+
+			if (slice != null) {
+				open.put(tid, slice);
+				first = append(buf, first, slice(times[i], tid, "B", slice));
+			}
+		}
+
+		buf.append("]}");
+		return buf.toString();
+	}
+
+	/**
+	 * Describe the object of the event in slot <i>i</i>.
+	 */
+	private String describe(int i) {
+		if (objectNames[i] != null)
+			return "join " + objectNames[i] + " (#" + objectIds[i] + ")";
+
+		String name = objectClasses[i].getName();
+		name = name.substring(name.lastIndexOf('.') + 1);
+		return name + "@" + Integer.toHexString(objectIds[i]);
+	}
+
+	private static boolean append(StringBuffer buf, boolean first, String event) {
+		if (!first)
+			buf.append(",\n");
+		buf.append(event);
+		return false;
+	}
+
+	private static String slice(long time, Integer tid, String phase,
+			String name) {
+		return "{\"ph\":\"" + phase + "\",\"name\":\"" + escape(name)
+				+ "\",\"pid\":1,\"tid\":" + tid + ",\"ts\":" + time + "}";
+	}
+
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	/**
+	 * Test that this module is working, on a small buffer of its own.
+	 */
+	public static void selfTest() {
+		KThread thread = new KThread().setName("trace \"t\"");
+		KThread target = new KThread().setName("trace target");
+		int id = thread.getID();
+
+		// the first event is overwritten, so the ready slice is never opened
+		SchedulerTrace test = new SchedulerTrace(3);
+		test.add(10, eventReady, thread, null);
+		test.add(20, eventRun, thread, null);
+		test.add(30, eventSleep, thread, target);
+		test.add(40, eventFinish, thread, null);
+		Lib.assertTrue(test.count == 3 && test.numDropped == 1);
+
+		String blocked = "blocked on join trace target (#" + target.getID()
+				+ ")";
+		String expected = "{\"displayTimeUnit\":\"ns\",\"traceEvents\":["
+				+ "{\"ph\":\"M\",\"name\":\"thread_name\",\"pid\":1,\"tid\":" + id
+				+ ",\"args\":{\"name\":\"trace \\\"t\\\" (#" + id + ")\"}},\n"
+				+ slice(20, Integer.valueOf(id), "B", "running") + ",\n"
+				+ slice(30, Integer.valueOf(id), "E", "running") + ",\n"
+				+ slice(30, Integer.valueOf(id), "B", blocked) + ",\n"
+				+ slice(40, Integer.valueOf(id), "E", blocked) + "]}";
+		Lib.assertTrue(test.toJSON().equals(expected));
+
+		Lib.assertTrue(slice(20, Integer.valueOf(id), "B", "running").equals(
+				"{\"ph\":\"B\",\"name\":\"running\",\"pid\":1,\"tid\":" + id
+						+ ",\"ts\":20}"));
+	}
+
+	/** Whether events are being recorded. */
+	static boolean enabled = false;
+
+	static final byte eventReady = 0, eventRun = 1, eventSleep = 2,
+			eventFinish = 3;
+
+	/** The trace being recorded, if <tt>enabled</tt> was ever set. */
+	private static SchedulerTrace trace = null;
+
+	private static Object blockingOn = null;
+
+	private int capacity;
+
+	private long[] times;
+
+	private byte[] types;
+
+	private int[] threadIds;
+
+	private String[] threadNames;
+
+	/** The class of each event's object, or <tt>null</tt> if it has none. */
+	private Class<?>[] objectClasses;
+
+	/** A thread's ID, or else the identity hash code of the object. */
+	private int[] objectIds;
+
+	/** The name of the thread being joined, or <tt>null</tt>. */
+	private String[] objectNames;
+
+	/** Index of the slot the next event is written to. */
+	private int next = 0;
+
+	private int count = 0;
+
+	private int numDropped = 0;
+}
@@ -28,7 +28,23 @@ public class Semaphore {
 	 * @param initialValue the initial value of this semaphore.
 	 */
 	public Semaphore(int initialValue) {
+		this(initialValue, null);
+	}
+
+	/**
+	 * Allocate a new named semaphore. The name identifies the semaphore in the
+	 * lock profile.
+	 * 
+	 * @param initialValue the initial value of this semaphore.
+	 * @param name the name of this semaphore.
+	 * 
+	 * @see nachos.threads.LockProfile
+	 */
+	public Semaphore(int initialValue, String name) {
 		value = initialValue;
+		this.name = name;
+		profile = LockProfile.create((name != null) ? name
+				: "(unnamed Semaphore)", initialValue == 1);
 	}
 
 	/**
@@ -37,8 +53,16 @@ public class Semaphore {
 	public void P() {
 		boolean intStatus = Machine.interrupt().disable();
 
+		if (profile != null) {
+			profile.request(KThread.currentThread(), value == 0);
+			if (value != 0)
+				profile.granted(KThread.currentThread());
+		}
+
 		if (value == 0) {
 			waitQueue.waitForAccess(KThread.currentThread());
+			if (SchedulerTrace.enabled)
+				SchedulerTrace.blockingOn(this);
 			KThread.sleep();
 		}
 		else {
@@ -48,6 +72,48 @@ public class Semaphore {
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Atomically wait for this semaphore to become non-zero and decrement it,
+	 * giving up after <i>ticks</i> clock ticks. If <i>ticks</i> is not
+	 * positive, only tests the semaphore.
+	 * 
+	 * @param ticks the maximum number of clock ticks to wait.
+	 * @return <tt>true</tt> if the semaphore was decremented, <tt>false</tt>
+	 * if the wait timed out.
+	 */
+	public boolean P(long ticks) {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean acquired = true;
+
+		if (profile != null) {
+			profile.request(KThread.currentThread(), value == 0);
+			if (value != 0)
+				profile.granted(KThread.currentThread());
+		}
+
+		if (value == 0) {
+			if (ticks > 0) {
+				waitQueue.waitForAccess(KThread.currentThread());
+				if (SchedulerTrace.enabled)
+					SchedulerTrace.blockingOn(this);
+				acquired = ThreadedKernel.alarm.sleepWithTimeout(waitQueue,
+						ticks);
+			}
+			else {
+				acquired = false;
+			}
+		}
+		else {
+			value--;
+		}
+
+		if (!acquired && profile != null)
+			profile.abandoned(KThread.currentThread());
+
+		Machine.interrupt().restore(intStatus);
+		return acquired;
+	}
+
 	/**
 	 * Atomically increment this semaphore and wake up at most one other thread
 	 * sleeping on this semaphore.
@@ -55,8 +121,13 @@ public class Semaphore {
 	public void V() {
 		boolean intStatus = Machine.interrupt().disable();
 
+		if (profile != null)
+			profile.released();
+
 		KThread thread = waitQueue.nextThread();
 		if (thread != null) {
+			if (profile != null)
+				profile.granted(thread);
 			thread.ready();
 		}
 		else {
@@ -97,10 +168,40 @@ public class Semaphore {
 			ping.V();
 			pong.P();
 		}
+
+		// a timed P() gives up if nobody calls V() in time
+		final Semaphore timed = new Semaphore(0);
+		long start = Machine.timer().getTime();
+		Lib.assertTrue(!timed.P(0));
+		Lib.assertTrue(!timed.P(1000));
+		Lib.assertTrue(Machine.timer().getTime() - start >= 1000);
+
+		// and returns as soon as V() is called before the timeout
+		new KThread(new Runnable() {
+			public void run() {
+				timed.V();
+			}
+		}).setName("timed V").fork();
+		start = Machine.timer().getTime();
+		Lib.assertTrue(timed.P(100000));
+		Lib.assertTrue(Machine.timer().getTime() - start < 100000);
+	}
+
+	/**
+	 * Return the name of this semaphore.
+	 * 
+	 * @return the name given to this semaphore, or <tt>null</tt>.
+	 */
+	public String getName() {
+		return name;
 	}
 
 	private int value;
 
+	private String name;
+
+	private LockProfile profile;
+
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
 			.newThreadQueue(false);
 }
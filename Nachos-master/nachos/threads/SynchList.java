@@ -13,7 +13,7 @@ public class SynchList {
 	 */
 	public SynchList() {
 		list = new LinkedList<Object>();
-		lock = new Lock();
+		lock = new Lock("SynchList.lock");
 		listEmpty = new Condition(lock);
 	}
 
@@ -1,5 +1,7 @@
 package nachos.threads;
 
+import nachos.machine.*;
+
 /**
  * Schedules access to some sort of resource with limited access constraints. A
  * thread queue can be used to share this limited access among multiple threads.
@@ -90,6 +92,51 @@ public abstract class ThreadQueue {
 	 */
 	public abstract void acquire(KThread thread);
 
+	/**
+	 * Notify this thread queue that the specified thread holds the resource
+	 * together with any other holders, as when several readers hold a lock.
+	 * Unlike <tt>acquire()</tt>, this method may be called while threads are
+	 * waiting, and does not take access from the other holders. If the
+	 * limited access object transfers priority, waiting threads donate
+	 * priority to every holder.
+	 *
+	 * <p>
+	 * If the thread received access from <tt>acquire()</tt> or
+	 * <tt>nextThread()</tt>, it becomes one of the sharing holders, so that
+	 * the next thread given access does not take its donation away. Queues
+	 * that do not transfer priority need not override this method.
+	 *
+	 * @param thread the thread that now shares access.
+	 */
+	public void share(KThread thread) {
+	}
+
+	/**
+	 * Notify this thread queue that the specified thread no longer holds the
+	 * resource, whether it received access from <tt>acquire()</tt>,
+	 * <tt>nextThread()</tt> or <tt>share()</tt>. Waiting threads stop donating
+	 * priority to it. Queues that do not transfer priority need not override
+	 * this method.
+	 *
+	 * @param thread the thread that has given up access.
+	 */
+	public void release(KThread thread) {
+	}
+
+	/**
+	 * Remove a thread that is waiting for access from this queue, without
+	 * giving it access. Used to abandon a wait that timed out. Queues that
+	 * support timed waits must override this method.
+	 * 
+	 * @param thread the thread to remove.
+	 * @return <tt>true</tt> if the thread was waiting in this queue and has
+	 * been removed, <tt>false</tt> if it was not waiting.
+	 */
+	public boolean remove(KThread thread) {
+		Lib.assertNotReached("ThreadQueue does not support remove()");
+		return false;
+	}
+
 	/**
 	 * Print out all the threads waiting for access, in no particular order.
 	 */
@@ -32,6 +32,9 @@ public class ThreadedKernel extends Kernel {
 		else
 			fileSystem = null;
 
+		SchedulerTrace.initialize();
+		LockProfile.initialize();
+
 		// start threading
 		new KThread(null);
 
@@ -52,8 +55,15 @@ public class ThreadedKernel extends Kernel {
 
 		KThread.selfTest();
 		Semaphore.selfTest();
+		Lock.selfTest();
 		SynchList.selfTest();
+		BoundedSynchList.selfTest();
 		Condition2.selfTest();
+		CPUBandwidth.selfTest();
+		SchedulerTrace.selfTest();
+		Channel.selfTest();
+		ReadWriteLock.selfTest();
+		EDFScheduler.selfTest();
 		//Communicator.selfTest(); //
 		if (Machine.bank() != null) {
 			ElevatorBank.selfTest();
@@ -71,6 +81,9 @@ public class ThreadedKernel extends Kernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		LockProfile.report();
+		SchedulerTrace.dump();
+
 		Machine.halt();
 	}
 
@@ -97,4 +110,6 @@ public class ThreadedKernel extends Kernel {
 	private static Rider dummy6 = null;
 
 	private static ElevatorController dummy7 = null;
+
+	private static EDFScheduler dummy8 = null;
 }
@@ -0,0 +1,365 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.LinkedList;
+
+/**
+ * The kernel half of asynchronous I/O for one process: the <tt>io_setup()</tt>
+ * and <tt>io_enter()</tt> system calls.
+ *
+ * <p>
+ * The process keeps a <tt>struct io_ring</tt> in its own memory, holding a
+ * submission queue and a completion queue of <i>entries</i> slots each. It
+ * queues requests by filling submission slots and advancing <tt>sq_tail</tt>,
+ * then calls <tt>io_enter()</tt>, which hands the new requests to a pool of
+ * kernel worker threads and returns without waiting for them, unless asked
+ * to. As each request finishes, its worker stores the result in the next
+ * completion slot and advances <tt>cq_tail</tt>; the process consumes
+ * completions by advancing <tt>cq_head</tt>. Completions that find the
+ * completion queue full are kept in the kernel until there is room.
+ *
+ * <p>
+ * The worker pool is shared by every process and started on first use. Its
+ * size is given by the <tt>AsyncIO.workers</tt> key in <tt>nachos.conf</tt>
+ * (default 4). A request on a file with no file system, such as a pipe, may
+ * wait for another process indefinitely, so it gets a thread of its own
+ * instead of holding a pool worker. Each request holds a reference to its
+ * open file, so closing the descriptor does not close the file under it. A
+ * process that exits closes its descriptors first, so that a request waiting
+ * on a pipe the process itself writes sees end of file. It then cancels the
+ * requests no worker has started, wakes the ones waiting on pipes, and waits
+ * for the rest, since they refer to its memory.
+ */
+public class AsyncIO {
+	/**
+	 * Attach asynchronous I/O to a process, using the <tt>struct io_ring</tt>
+	 * at <i>ring</i>. Resets the ring's four counters to 0.
+	 *
+	 * @param process the process making the call.
+	 * @param ring the user address of the ring.
+	 * @param entries the number of slots in each queue.
+	 * @return the new state, or <tt>null</tt> if the ring cannot be used.
+	 */
+	public static AsyncIO setup(UserProcess process, int ring, int entries) {
+		if (entries <= 0 || entries > maxEntries || ring % 4 != 0)
+			return null;
+
+		byte[] header = new byte[ringSize];
+		if (process.readVirtualMemory(ring, header) != ringSize
+				|| process.writeVirtualMemory(ring, new byte[16]) != 16)
+			return null;
+
+		startWorkers();
+
+		return new AsyncIO(process, ring, entries,
+				Lib.bytesToInt(header, offsetSQEs),
+				Lib.bytesToInt(header, offsetCQEs));
+	}
+
+	private AsyncIO(UserProcess process, int ring, int entries, int sqes,
+			int cqes) {
+		this.process = process;
+		this.ring = ring;
+		this.entries = entries;
+		this.sqes = sqes;
+		this.cqes = cqes;
+
+		lock = new Lock("AsyncIO.lock");
+		completed = new Condition(lock);
+	}
+
+	/**
+	 * Submit up to <i>toSubmit</i> of the requests the process has queued,
+	 * then wait until at least <i>minComplete</i> completions are waiting to
+	 * be consumed, until no request is left in flight, or until the process
+	 * starts to exit.
+	 *
+	 * @param toSubmit the most requests to submit.
+	 * @param minComplete the number of completions to wait for.
+	 * @return the number of requests submitted, or -1 if the ring cannot be
+	 * read.
+	 */
+	public int enter(int toSubmit, int minComplete) {
+		lock.acquire();
+
+		int tail = readInt(ring + offsetSQTail);
+		int queued = tail - sqHead;
+		if (tail == -1 || queued < 0 || queued > entries) {
+			lock.release();
+			return -1;
+		}
+
+		int submitted = Math.min(Math.max(toSubmit, 0), queued);
+		byte[] sqe = new byte[sqeSize];
+		for (int i = 0; i < submitted; i++) {
+			int slot = sqes + (sqHead % entries) * sqeSize;
+			if (process.readVirtualMemory(slot, sqe) != sqeSize) {
+				submitted = i;
+				break;
+			}
+			sqHead++;
+			submit(sqe);
+		}
+		writeInt(ring + offsetSQHead, sqHead);
+
+		flushCompletions();
+		while (cqTail - readInt(ring + offsetCQHead) < minComplete
+				&& inFlight > 0 && !process.isExiting()) {
+			completed.sleep();
+			flushCompletions();
+		}
+
+		lock.release();
+
+		Lib.debug(dbgAsync, "io_enter(" + toSubmit + ", " + minComplete
+				+ ") -> " + submitted);
+		return submitted;
+	}
+
+	/**
+	 * Wake any thread of the process waiting in <tt>enter()</tt>, which stops
+	 * waiting since the process is exiting.
+	 */
+	public void interrupt() {
+		lock.acquire();
+		completed.wakeAll();
+		lock.release();
+	}
+
+	/**
+	 * Cancel the requests that no worker has started, which then complete
+	 * with -1, wake the requests waiting on pipes, which stop waiting, and
+	 * wait until every request in flight has finished. Called
+	 * when the process exits, after its descriptors are closed and before its
+	 * memory is released.
+	 */
+	public void drain() {
+		lock.acquire();
+		cancelled = true;
+		for (Request request : blocking)
+			Pipe.interrupt(request.entry.getFile());
+		while (inFlight > 0)
+			completed.sleep();
+		lock.release();
+	}
+
+	/**
+	 * Return the number of requests that have been handed to the workers.
+	 *
+	 * @return the number of requests submitted.
+	 */
+	public int getNumSubmitted() {
+		return numSubmitted;
+	}
+
+	/**
+	 * Check a request and hand it to the workers, or complete it at once with
+	 * -1 if it is invalid. Called with the lock held.
+	 */
+	private void submit(byte[] sqe) {
+		int opcode = Lib.bytesToInt(sqe, 0);
+		int fd = Lib.bytesToInt(sqe, 4);
+		int buffer = Lib.bytesToInt(sqe, 8);
+		int count = Lib.bytesToInt(sqe, 12);
+		int pos = Lib.bytesToInt(sqe, 16);
+		int userData = Lib.bytesToInt(sqe, 20);
+
+		if (count < 0 || (opcode != opRead && opcode != opWrite)) {
+			pending.add(new int[] { userData, -1 });
+			return;
+		}
+
+		OpenFileTable.Entry entry = process.fileTable.reference(fd);
+		if (entry == null) {
+			pending.add(new int[] { userData, -1 });
+			return;
+		}
+
+		inFlight++;
+		numSubmitted++;
+		Request request = new Request(entry, opcode == opRead, buffer, count,
+				pos, userData);
+
+		if (entry.getFile().getFileSystem() == null) {
+			blocking.add(request);
+			new RequestThread(request).setName("AsyncIO request").fork();
+		}
+		else {
+			requests.add(request);
+		}
+	}
+
+	/**
+	 * Test if a thread is carrying out a request that has been cancelled, so
+	 * that a pipe it waits on should stop waiting.
+	 *
+	 * @param thread the thread to test.
+	 * @return <tt>true</tt> if the thread's request has been cancelled.
+	 */
+	static boolean isCancelled(KThread thread) {
+		return (thread instanceof RequestThread)
+				&& ((RequestThread) thread).request.isCancelled();
+	}
+
+	/**
+	 * Drop a request's reference to its file, record its result, and wake
+	 * any thread waiting for it.
+	 */
+	private void complete(Request request, int result) {
+		UserKernel.openFiles.release(request.entry);
+
+		lock.acquire();
+
+		inFlight--;
+		blocking.remove(request);
+		pending.add(new int[] { request.userData, result });
+		flushCompletions();
+		completed.wakeAll();
+
+		lock.release();
+	}
+
+	/**
+	 * Move as many kept completions as fit into the completion queue. Called
+	 * with the lock held.
+	 */
+	private void flushCompletions() {
+		if (pending.isEmpty())
+			return;
+
+		int head = readInt(ring + offsetCQHead);
+		byte[] cqe = new byte[cqeSize];
+		while (!pending.isEmpty() && cqTail - head < entries) {
+			int[] completion = pending.getFirst();
+			Lib.bytesFromInt(cqe, 0, completion[0]);
+			Lib.bytesFromInt(cqe, 4, completion[1]);
+
+			int slot = cqes + (cqTail % entries) * cqeSize;
+			if (process.writeVirtualMemory(slot, cqe) != cqeSize)
+				break;
+
+			pending.removeFirst();
+			cqTail++;
+		}
+		writeInt(ring + offsetCQTail, cqTail);
+	}
+
+	private int readInt(int vaddr) {
+		byte[] buf = new byte[4];
+		if (process.readVirtualMemory(vaddr, buf) != 4)
+			return -1;
+
+		return Lib.bytesToInt(buf, 0);
+	}
+
+	private void writeInt(int vaddr, int value) {
+		process.writeVirtualMemory(vaddr, Lib.bytesFromInt(value));
+	}
+
+	/**
+	 * Start the worker threads, unless they are already running.
+	 */
+	private static void startWorkers() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (requests == null) {
+			requests = new SynchList();
+
+			int numWorkers = Config.getInteger("AsyncIO.workers", 4);
+			for (int i = 0; i < numWorkers; i++) {
+				new KThread(new Runnable() {
+					public void run() {
+						while (true)
+							((Request) requests.removeFirst()).run();
+					}
+				}).setName("AsyncIO worker " + i).fork();
+			}
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/** One read or write, carried out by a worker. */
+	private class Request implements Runnable {
+		Request(OpenFileTable.Entry entry, boolean reading, int buffer,
+				int count, int pos, int userData) {
+			this.entry = entry;
+			this.reading = reading;
+			this.buffer = buffer;
+			this.count = count;
+			this.pos = pos;
+			this.userData = userData;
+		}
+
+		public void run() {
+			int result = cancelled ? -1 : process.transferFile(
+					entry.getFile(), pos, buffer, count, reading);
+			complete(this, result);
+		}
+
+		boolean isCancelled() {
+			return cancelled;
+		}
+
+		private OpenFileTable.Entry entry;
+
+		private boolean reading;
+
+		private int buffer, count, pos, userData;
+	}
+
+	/** A thread that carries out one request on a pipe. */
+	private static class RequestThread extends KThread {
+		RequestThread(Request request) {
+			super(request);
+			this.request = request;
+		}
+
+		private Request request;
+	}
+
+	/** The opcodes of a <tt>struct io_sqe</tt>. */
+	private static final int opRead = 0, opWrite = 1;
+
+	/** The offsets of the fields of a <tt>struct io_ring</tt>. */
+	private static final int offsetSQHead = 0, offsetSQTail = 4,
+			offsetCQHead = 8, offsetCQTail = 12, offsetSQEs = 16,
+			offsetCQEs = 20, ringSize = 24;
+
+	private static final int sqeSize = 24, cqeSize = 8;
+
+	/** The most slots a queue may have. */
+	public static final int maxEntries = 256;
+
+	private UserProcess process;
+
+	private int ring, entries, sqes, cqes;
+
+	private Lock lock;
+
+	/** Signalled when a request finishes. */
+	private Condition completed;
+
+	/** The kernel's copies of the counters it advances. */
+	private int sqHead = 0, cqTail = 0;
+
+	private int inFlight = 0;
+
+	/** Set when the process exits; requests not yet started are skipped. */
+	private boolean cancelled = false;
+
+	private int numSubmitted = 0;
+
+	/** Requests in flight on their own threads. */
+	private LinkedList<Request> blocking = new LinkedList<Request>();
+
+	/** Completions waiting for room in the completion queue. */
+	private LinkedList<int[]> pending = new LinkedList<int[]>();
+
+	/** Requests waiting for a worker, from every process. */
+	private static SynchList requests = null;
+
+	private static final char dbgAsync = 'A';
+}
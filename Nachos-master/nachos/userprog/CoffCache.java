@@ -0,0 +1,273 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.io.EOFException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A kernel-wide cache of parsed executables, so that running the same program
+ * again does not open and parse its file again, or read its sections from the
+ * file system.
+ *
+ * <p>
+ * Each <tt>Image</tt> holds the parsed <tt>Coff</tt> and a copy of every
+ * section page that has been loaded from it. The cache keeps the
+ * <tt>CoffCache.capacity</tt> most recently executed images (default 8); a
+ * process holds a reference to the image it runs, so an image that falls out
+ * of the cache stays usable until its last process exits.
+ *
+ * <p>
+ * An image is dropped from the cache as soon as its file may have changed:
+ * when the file is created or truncated, unlinked, or written through a file
+ * descriptor or a mapping. Processes already running it keep the old image.
+ * Writes to the console and to pipes, which have no name in a file system,
+ * never touch the cache. A file that changes while it is being parsed by a
+ * miss is counted against its own name only, so the miss does not cache a
+ * stale image but misses on other files are unaffected.
+ */
+public class CoffCache {
+	/**
+	 * Allocate a new, empty cache.
+	 */
+	public CoffCache() {
+		capacity = Config.getInteger("CoffCache.capacity", 8);
+		Lib.assertTrue(capacity >= 0);
+
+		lock = new Lock("CoffCache.lock");
+	}
+
+	/**
+	 * A parsed executable, with the section pages loaded from it so far.
+	 */
+	public static class Image {
+		private Image(Coff coff) {
+			this.coff = coff;
+
+			pages = new byte[coff.getNumSections()][][];
+			for (int s = 0; s < pages.length; s++)
+				pages[s] = new byte[coff.getSection(s).getLength()][];
+		}
+
+		/**
+		 * Return the parsed executable.
+		 *
+		 * @return the executable.
+		 */
+		public Coff getCoff() {
+			return coff;
+		}
+
+		/**
+		 * Load a page of a section into physical memory, like
+		 * <tt>CoffSection.loadPage()</tt>, but from the cached copy if there is
+		 * one.
+		 *
+		 * @param section the section number.
+		 * @param spn the page number within the section.
+		 * @param ppn the physical page to load into.
+		 */
+		public void loadPage(int section, int spn, int ppn) {
+			byte[] memory = Machine.processor().getMemory();
+			byte[] page = pages[section][spn];
+
+			if (page != null) {
+				System.arraycopy(page, 0, memory, ppn * pageSize, pageSize);
+				return;
+			}
+
+			coff.getSection(section).loadPage(spn, ppn);
+
+			page = new byte[pageSize];
+			System.arraycopy(memory, ppn * pageSize, page, 0, pageSize);
+			pages[section][spn] = page;
+		}
+
+		/**
+		 * Drop a process's reference to this image. Called when the process
+		 * exits, or fails to load.
+		 */
+		public void release() {
+			UserKernel.coffCache.release(this);
+		}
+
+		private Coff coff;
+
+		/** The cached pages, by section and page number; null until loaded. */
+		private byte[][][] pages;
+
+		/** The processes running the image, plus one while it is cached. */
+		private int refCount = 1;
+	}
+
+	/**
+	 * Return a referenced image of the named executable, parsing it only if it
+	 * is not already cached.
+	 *
+	 * @param name the name of the executable file.
+	 * @return the image, or <tt>null</tt> if the file could not be opened or
+	 * is not a valid executable.
+	 */
+	public Image open(String name) {
+		lock.acquire();
+
+		Image image = images.get(name);
+		if (image != null) {
+			image.refCount++;
+			numHits++;
+			lock.release();
+
+			Lib.debug(dbgCoff, "cache hit: " + name);
+			return image;
+		}
+
+		numMisses++;
+		Loading loading = loadings.get(name);
+		if (loading == null) {
+			loading = new Loading();
+			loadings.put(name, loading);
+		}
+		loading.numLoaders++;
+		int generation = loading.generation;
+		lock.release();
+
+		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
+		if (executable != null) {
+			try {
+				image = new Image(new Coff(executable));
+			}
+			catch (EOFException e) {
+				executable.close();
+			}
+		}
+
+		lock.acquire();
+
+		if (--loading.numLoaders == 0)
+			loadings.remove(name);
+
+		// another process may have cached it, or the file changed, meanwhile
+		if (image != null && capacity > 0 && !images.containsKey(name)
+				&& loading.generation == generation) {
+			image.refCount++;
+			images.put(name, image);
+			evictExcess();
+		}
+
+		lock.release();
+
+		if (image == null)
+			return null;
+
+		Lib.debug(dbgCoff, "cache miss: " + name);
+		return image;
+	}
+
+	/**
+	 * Drop the cached image of a file that may have changed. Cheap when the
+	 * file is not cached, so it can be called on every write.
+	 *
+	 * @param name the name of the file.
+	 */
+	public void invalidate(String name) {
+		lock.acquire();
+
+		Loading loading = loadings.get(name);
+		if (loading != null)
+			loading.generation++;
+
+		Image image = images.remove(name);
+		if (image != null) {
+			Lib.debug(dbgCoff, "invalidated: " + name);
+			release(image);
+		}
+
+		lock.release();
+	}
+
+	/**
+	 * Drop the cached image of an open file that is being written, unless it
+	 * is not a file in a file system, like the console or a pipe.
+	 *
+	 * @param file the file being written.
+	 */
+	public void invalidate(OpenFile file) {
+		if (file.getFileSystem() != null)
+			invalidate(file.getName());
+	}
+
+	/**
+	 * Return the number of <tt>open()</tt> calls that found their image in
+	 * the cache.
+	 *
+	 * @return the number of hits.
+	 */
+	public int getNumHits() {
+		return numHits;
+	}
+
+	/**
+	 * Return the number of <tt>open()</tt> calls that had to parse the file.
+	 *
+	 * @return the number of misses.
+	 */
+	public int getNumMisses() {
+		return numMisses;
+	}
+
+	private void release(Image image) {
+		boolean held = lock.isHeldByCurrentThread();
+		if (!held)
+			lock.acquire();
+
+		Lib.assertTrue(image.refCount > 0);
+		if (--image.refCount == 0)
+			image.coff.close();
+
+		if (!held)
+			lock.release();
+	}
+
+	/**
+	 * Drop least recently used images until at most <tt>capacity</tt> are
+	 * cached. Called with the lock held.
+	 */
+	private void evictExcess() {
+		Iterator<Image> it = images.values().iterator();
+		while (images.size() > capacity && it.hasNext()) {
+			Image image = it.next();
+			it.remove();
+			release(image);
+		}
+	}
+
+	private int capacity;
+
+	private Lock lock;
+
+	/** The cached images in order of use, least recent first. */
+	private LinkedHashMap<String, Image> images = new LinkedHashMap<String, Image>(
+			16, 0.75f, true);
+
+	/** The names being parsed by misses, so a miss can tell if its file changed. */
+	private HashMap<String, Loading> loadings = new HashMap<String, Loading>();
+
+	/** The misses in progress on one name. */
+	private static class Loading {
+		int numLoaders = 0;
+
+		/** Counts invalidations of the name while it is being parsed. */
+		int generation = 0;
+	}
+
+	private int numHits = 0;
+
+	private int numMisses = 0;
+
+	private static final int pageSize = Processor.pageSize;
+
+	private static final char dbgCoff = 'C';
+}
@@ -0,0 +1,200 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * The file descriptors of one process. Each descriptor refers to an entry in
+ * the kernel's <tt>OpenFileTable</tt>.
+ *
+ * <p>
+ * The table grows as descriptors are allocated, up to the limit given by the
+ * <tt>UserProcess.maxOpenFiles</tt> key in <tt>nachos.conf</tt> (default 1024,
+ * at most 4096). A two-level bitmap finds the lowest free descriptor in
+ * constant time: bit <i>i</i> of <tt>used[w]</tt> is set if descriptor
+ * <tt>64*w + i</tt> is in use, and bit <i>w</i> of <tt>full</tt> is set if
+ * every descriptor in <tt>used[w]</tt> is.
+ *
+ * <p>
+ * The threads of a process share its table, so it has a lock.
+ */
+public class FileDescriptorTable {
+	/**
+	 * Allocate a new, empty descriptor table.
+	 */
+	public FileDescriptorTable() {
+		limit = Config.getInteger("UserProcess.maxOpenFiles", 1024);
+		Lib.assertTrue(limit > 0 && limit <= 64 * 64);
+
+		used = new long[(limit + 63) / 64];
+		entries = new OpenFileTable.Entry[Math.min(limit, 16)];
+		lock = new Lock("FileDescriptorTable.lock");
+
+		// descriptors at or beyond the limit are never free
+		if (limit % 64 != 0)
+			used[used.length - 1] = -1L << (limit % 64);
+		for (int w = used.length; w < 64; w++)
+			full |= 1L << w;
+	}
+
+	/**
+	 * Allocate a copy of another table, for the child of <tt>fork()</tt>. Each
+	 * descriptor in the copy refers to the same open file as in
+	 * <i>other</i>.
+	 *
+	 * @param other the table to copy.
+	 */
+	public FileDescriptorTable(FileDescriptorTable other) {
+		lock = new Lock("FileDescriptorTable.lock");
+
+		other.lock.acquire();
+
+		limit = other.limit;
+		used = other.used.clone();
+		full = other.full;
+		entries = other.entries.clone();
+		for (int fd = 0; fd < entries.length; fd++) {
+			if (entries[fd] != null)
+				UserKernel.openFiles.reference(entries[fd]);
+		}
+
+		other.lock.release();
+	}
+
+	/**
+	 * Give an entry the lowest free descriptor. The caller's reference to the
+	 * entry now belongs to the descriptor.
+	 *
+	 * @param entry the open file.
+	 * @return the descriptor, or -1 if every descriptor is in use.
+	 */
+	public int add(OpenFileTable.Entry entry) {
+		lock.acquire();
+
+		if (full == -1L) {
+			lock.release();
+			return -1;
+		}
+
+		int w = Long.numberOfTrailingZeros(~full);
+		int fd = 64 * w + Long.numberOfTrailingZeros(~used[w]);
+
+		used[w] |= 1L << (fd % 64);
+		if (used[w] == -1L)
+			full |= 1L << w;
+
+		if (fd >= entries.length) {
+			OpenFileTable.Entry[] larger = new OpenFileTable.Entry[Math.min(
+					limit, 2 * entries.length)];
+			System.arraycopy(entries, 0, larger, 0, entries.length);
+			entries = larger;
+		}
+		entries[fd] = entry;
+
+		lock.release();
+		return fd;
+	}
+
+	/**
+	 * Return the file that a descriptor refers to.
+	 *
+	 * @param fd the descriptor.
+	 * @return the open file, or <tt>null</tt> if <i>fd</i> is not in use.
+	 */
+	public OpenFile get(int fd) {
+		lock.acquire();
+		OpenFileTable.Entry entry = (fd < 0 || fd >= entries.length) ? null
+				: entries[fd];
+		lock.release();
+
+		return (entry == null) ? null : entry.getFile();
+	}
+
+	/**
+	 * Return the entry that a descriptor refers to, with a new reference that
+	 * keeps the file open even if the descriptor is closed. The caller must
+	 * drop it with <tt>OpenFileTable.release()</tt>.
+	 *
+	 * @param fd the descriptor.
+	 * @return the referenced entry, or <tt>null</tt> if <i>fd</i> is not in
+	 * use.
+	 */
+	public OpenFileTable.Entry reference(int fd) {
+		lock.acquire();
+		OpenFileTable.Entry entry = (fd < 0 || fd >= entries.length) ? null
+				: entries[fd];
+		if (entry != null)
+			UserKernel.openFiles.reference(entry);
+		lock.release();
+
+		return entry;
+	}
+
+	/**
+	 * Return the files that the descriptors in use refer to.
+	 *
+	 * @return the open files, in descriptor order.
+	 */
+	public OpenFile[] getFiles() {
+		lock.acquire();
+
+		int count = 0;
+		for (int fd = 0; fd < entries.length; fd++) {
+			if (entries[fd] != null)
+				count++;
+		}
+
+		OpenFile[] files = new OpenFile[count];
+		count = 0;
+		for (int fd = 0; fd < entries.length; fd++) {
+			if (entries[fd] != null)
+				files[count++] = entries[fd].getFile();
+		}
+
+		lock.release();
+		return files;
+	}
+
+	/**
+	 * Free a descriptor and drop its reference to the open file.
+	 *
+	 * @param fd the descriptor.
+	 * @return <tt>true</tt> if <i>fd</i> was in use.
+	 */
+	public boolean close(int fd) {
+		lock.acquire();
+
+		if (fd < 0 || fd >= entries.length || entries[fd] == null) {
+			lock.release();
+			return false;
+		}
+
+		OpenFileTable.Entry entry = entries[fd];
+		entries[fd] = null;
+		used[fd / 64] &= ~(1L << (fd % 64));
+		full &= ~(1L << (fd / 64));
+
+		lock.release();
+
+		UserKernel.openFiles.release(entry);
+		return true;
+	}
+
+	/**
+	 * Close every descriptor in the table.
+	 */
+	public void closeAll() {
+		for (int fd = 0; fd < entries.length; fd++)
+			close(fd);
+	}
+
+	private int limit;
+
+	private Lock lock;
+
+	private OpenFileTable.Entry[] entries;
+
+	private long[] used;
+
+	private long full = 0;
+}
@@ -0,0 +1,509 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Arrays;
+
+/**
+ * The kernel's allocator of physical pages (frames).
+ *
+ * <p>
+ * Free frames are kept in a bitmap: bit <i>i</i> of <tt>free[w]</tt> is set
+ * if frame <tt>64*w + i</tt> is free. Single frames are taken from the lowest
+ * word with a free bit, starting at a hint that remembers where the last one
+ * was found. Whole batches can be allocated and freed under one acquisition
+ * of the lock, and <tt>allocateContiguous()</tt> finds a run of adjacent
+ * frames.
+ *
+ * <p>
+ * A frame may be mapped by more than one page table after <tt>fork()</tt>.
+ * The allocator counts the extra mappings of each frame, and a frame only
+ * becomes free when its last mapping is freed. It also counts the pins the
+ * kernel holds on each frame while it reads or writes it by physical address,
+ * so that <tt>fork()</tt> can avoid sharing a frame the kernel is writing.
+ *
+ * <p>
+ * A second bitmap records which free frames are known to hold only zeroes.
+ * Physical memory starts out zeroed; a frame that is freed is not. A kernel
+ * thread started by <tt>startZeroing()</tt> zeroes free frames at the lowest
+ * priority, if the scheduler has priorities, so <tt>allocateZeroed()</tt> can
+ * usually hand out a zeroed frame without clearing it. <tt>allocate()</tt> prefers frames that are not
+ * zeroed, to leave the zeroed ones for the callers that need them.
+ */
+public class FrameAllocator {
+	/**
+	 * Allocate a new allocator with every frame free.
+	 *
+	 * @param numFrames the number of physical pages.
+	 */
+	public FrameAllocator(int numFrames) {
+		this.numFrames = numFrames;
+		numFree = numFrames;
+
+		free = new long[(numFrames + 63) / 64];
+		for (int w = 0; w < free.length; w++)
+			free[w] = -1L;
+		if (numFrames % 64 != 0)
+			free[free.length - 1] = (1L << (numFrames % 64)) - 1;
+
+		zeroed = free.clone();
+		numZeroed = numFree;
+
+		shares = new int[numFrames];
+		pins = new int[numFrames];
+		lock = new Lock("FrameAllocator.lock");
+		dirtied = new Condition(lock);
+	}
+
+	/**
+	 * Start the kernel thread that zeroes free frames in the background.
+	 * Called once, by <tt>UserKernel.initialize()</tt>. The thread only keeps
+	 * running if the scheduler can lower its priority below every other
+	 * thread's. Otherwise, as with <tt>RoundRobinScheduler</tt>, it would
+	 * take turns with user threads, so it finishes at once, and frames are
+	 * zeroed only when <tt>allocateZeroed()</tt> needs them.
+	 */
+	public void startZeroing() {
+		new KThread(new Runnable() {
+			public void run() {
+				if (!ThreadedKernel.scheduler.decreasePriority()) {
+					Lib.debug(dbgFrames, "no idle priority; zeroing on demand");
+					return;
+				}
+
+				// only run when nothing else is ready
+				while (ThreadedKernel.scheduler.decreasePriority())
+					;
+
+				while (true) {
+					zeroOne();
+					KThread.yield();
+				}
+			}
+		}).setName("FrameAllocator zeroer").fork();
+	}
+
+	/**
+	 * Allocate one frame.
+	 *
+	 * @return the frame's physical page number, or -1 if none is free.
+	 */
+	public int allocate() {
+		lock.acquire();
+		int ppn = take(false);
+		lock.release();
+
+		return ppn;
+	}
+
+	/**
+	 * Allocate one frame filled with zeroes.
+	 *
+	 * @return the frame's physical page number, or -1 if none is free.
+	 */
+	public int allocateZeroed() {
+		lock.acquire();
+		int ppn = take(true);
+		lock.release();
+
+		return ppn;
+	}
+
+	/**
+	 * Allocate <i>count</i> frames, not necessarily adjacent, or none at all.
+	 *
+	 * @param count the number of frames.
+	 * @return their physical page numbers, or <tt>null</tt> if fewer than
+	 * <i>count</i> are free.
+	 */
+	public int[] allocate(int count) {
+		return allocate(count, false);
+	}
+
+	/**
+	 * Allocate <i>count</i> frames filled with zeroes, or none at all.
+	 *
+	 * @param count the number of frames.
+	 * @return their physical page numbers, or <tt>null</tt> if fewer than
+	 * <i>count</i> are free.
+	 */
+	public int[] allocateZeroed(int count) {
+		return allocate(count, true);
+	}
+
+	private int[] allocate(int count, boolean zero) {
+		Lib.assertTrue(count >= 0);
+
+		lock.acquire();
+
+		if (count > numFree) {
+			lock.release();
+			return null;
+		}
+
+		int[] ppns = new int[count];
+		for (int i = 0; i < count; i++)
+			ppns[i] = take(zero);
+
+		lock.release();
+		return ppns;
+	}
+
+	/**
+	 * Allocate <i>count</i> adjacent frames, the first of which is a multiple
+	 * of <i>alignment</i>.
+	 *
+	 * @param count the number of frames.
+	 * @param alignment the alignment of the first frame, at least 1.
+	 * @return the physical page number of the first frame, or -1 if there is
+	 * no such run of free frames.
+	 */
+	public int allocateContiguous(int count, int alignment) {
+		Lib.assertTrue(count > 0 && alignment > 0);
+
+		lock.acquire();
+
+		int first = findRun(count, alignment);
+		if (first != -1) {
+			for (int ppn = first; ppn < first + count; ppn++)
+				mark(ppn, false);
+		}
+
+		lock.release();
+		return first;
+	}
+
+	/**
+	 * Allocate frame <i>index</i> of a run of <i>runLength</i> adjacent
+	 * frames that starts at a multiple of <i>runLength</i>, leaving the rest
+	 * of the run for later calls. This lets the VM system give the pages of a
+	 * superpage consecutive frames as they fault in one by one.
+	 *
+	 * @param first the first frame of the run, or -1 to use the lowest aligned
+	 * run of frames that are all free.
+	 * @param runLength the length of the run.
+	 * @param index the frame of the run to allocate.
+	 * @param zero <tt>true</tt> if the frame must be filled with zeroes.
+	 * @return the frame's physical page number, or -1 if it is not free or
+	 * there is no free run.
+	 */
+	public int allocateInRun(int first, int runLength, int index, boolean zero) {
+		Lib.assertTrue(runLength > 0 && index >= 0 && index < runLength);
+
+		lock.acquire();
+
+		if (first == -1)
+			first = findRun(runLength, runLength);
+
+		int ppn = -1;
+		if (first >= 0 && first + index < numFrames && isFree(first + index)) {
+			ppn = first + index;
+			takeAt(ppn, zero);
+		}
+
+		lock.release();
+		return ppn;
+	}
+
+	/**
+	 * Drop one mapping of a frame. The frame becomes free unless another page
+	 * table still maps it.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	public void free(int ppn) {
+		lock.acquire();
+		put(ppn);
+		lock.release();
+	}
+
+	/**
+	 * Drop one mapping of each of a batch of frames, as if by
+	 * <tt>free(int)</tt>.
+	 *
+	 * @param ppns the physical page numbers.
+	 * @param count the number of entries of <i>ppns</i> to free.
+	 */
+	public void free(int[] ppns, int count) {
+		lock.acquire();
+		for (int i = 0; i < count; i++)
+			put(ppns[i]);
+		lock.release();
+	}
+
+	/**
+	 * Record that each of a batch of frames has gained a mapping, in another
+	 * page table that shares it copy-on-write.
+	 *
+	 * @param ppns the physical page numbers.
+	 * @param count the number of entries of <i>ppns</i> to share.
+	 */
+	public void share(int[] ppns, int count) {
+		lock.acquire();
+		for (int i = 0; i < count; i++) {
+			Lib.assertTrue(!isFree(ppns[i]));
+			shares[ppns[i]]++;
+		}
+		lock.release();
+	}
+
+	/**
+	 * Give one mapping of a frame a frame of its own that it can write. If no
+	 * other page table maps the frame, it is returned as it is. Otherwise the
+	 * mapping's share is dropped and a new frame is allocated and filled with
+	 * a copy of the old one.
+	 *
+	 * @param ppn the physical page number.
+	 * @return the frame the mapping now owns, or -1 if a copy was needed and
+	 * no frame is free.
+	 */
+	public int unshare(int ppn) {
+		lock.acquire();
+
+		int owned = ppn;
+		if (shares[ppn] > 0) {
+			owned = take(false);
+			if (owned != -1) {
+				byte[] memory = Machine.processor().getMemory();
+				System.arraycopy(memory, ppn * pageSize, memory, owned
+						* pageSize, pageSize);
+				shares[ppn]--;
+			}
+		}
+
+		lock.release();
+		return owned;
+	}
+
+	/**
+	 * Record that the kernel is accessing a frame by its physical address.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	public void pin(int ppn) {
+		lock.acquire();
+		Lib.assertTrue(!isFree(ppn));
+		pins[ppn]++;
+		lock.release();
+	}
+
+	/**
+	 * Drop one pin taken by <tt>pin()</tt>.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	public void unpin(int ppn) {
+		lock.acquire();
+		Lib.assertTrue(pins[ppn] > 0);
+		pins[ppn]--;
+		lock.release();
+	}
+
+	/**
+	 * Return whether the kernel holds any pin on a frame.
+	 *
+	 * @param ppn the physical page number.
+	 * @return <tt>true</tt> if the frame is pinned.
+	 */
+	public boolean isPinned(int ppn) {
+		return pins[ppn] > 0;
+	}
+
+	/**
+	 * Return the number of free frames.
+	 *
+	 * @return the number of free frames.
+	 */
+	public int getNumFree() {
+		return numFree;
+	}
+
+	/**
+	 * Return the number of free frames that are known to be zeroed.
+	 *
+	 * @return the number of zeroed frames.
+	 */
+	public int getNumZeroed() {
+		return numZeroed;
+	}
+
+	/**
+	 * Return the number of frames the background thread has zeroed.
+	 *
+	 * @return the number of frames zeroed in the background.
+	 */
+	public int getNumZeroedInBackground() {
+		return numZeroedInBackground;
+	}
+
+	/**
+	 * Return the number of frames, free or not.
+	 *
+	 * @return the number of frames.
+	 */
+	public int getNumFrames() {
+		return numFrames;
+	}
+
+	/**
+	 * Take the lowest free frame at or after the hint, zeroed or not as
+	 * <i>zero</i> asks if there is a choice, and zero it if it must be.
+	 * Called with the lock held.
+	 */
+	private int take(boolean zero) {
+		if (numFree == 0)
+			return -1;
+
+		while (free[hint] == 0)
+			hint++;
+
+		int ppn = find(zero ? numZeroed > 0 : numZeroed == numFree);
+		takeAt(ppn, zero);
+		return ppn;
+	}
+
+	/**
+	 * Take a free frame, zeroing it if it must be and is not already.
+	 * Called with the lock held.
+	 */
+	private void takeAt(int ppn, boolean zero) {
+		if (zero && !isZeroed(ppn))
+			fill(ppn);
+
+		mark(ppn, false);
+	}
+
+	/**
+	 * Return the lowest frame that starts a run of <i>count</i> free frames
+	 * and is a multiple of <i>alignment</i>, or -1 if there is none. Called
+	 * with the lock held.
+	 */
+	private int findRun(int count, int alignment) {
+		for (int start = 0; start + count <= numFrames && count <= numFree;
+				start += alignment) {
+			int end = start;
+			while (end < start + count && isFree(end))
+				end++;
+
+			if (end == start + count)
+				return start;
+
+			// no run that overlaps the used frame at end can succeed
+			start = (end / alignment) * alignment;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Return the lowest free frame that is zeroed, or that is not, at or
+	 * after the hint. There must be one. Called with the lock held.
+	 */
+	private int find(boolean zeroedFrame) {
+		for (int w = hint;; w++) {
+			long bits = free[w] & (zeroedFrame ? zeroed[w] : ~zeroed[w]);
+			if (bits != 0)
+				return 64 * w + Long.numberOfTrailingZeros(bits);
+		}
+	}
+
+	/**
+	 * Wait for a free frame that is not zeroed, and zero it.
+	 */
+	private void zeroOne() {
+		lock.acquire();
+
+		while (numZeroed == numFree)
+			dirtied.sleep();
+
+		int ppn = find(false);
+		fill(ppn);
+		zeroed[ppn / 64] |= 1L << (ppn % 64);
+		numZeroed++;
+		numZeroedInBackground++;
+
+		lock.release();
+	}
+
+	private void fill(int ppn) {
+		Arrays.fill(Machine.processor().getMemory(), ppn * pageSize, (ppn + 1)
+				* pageSize, (byte) 0);
+	}
+
+	/**
+	 * Drop one mapping of a frame. Called with the lock held.
+	 */
+	private void put(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < numFrames && !isFree(ppn));
+		Lib.assertTrue(shares[ppn] > 0 || pins[ppn] == 0);
+
+		if (shares[ppn] > 0) {
+			shares[ppn]--;
+		}
+		else {
+			mark(ppn, true);
+			hint = Math.min(hint, ppn / 64);
+			dirtied.wake();
+		}
+	}
+
+	private boolean isFree(int ppn) {
+		return (free[ppn / 64] & (1L << (ppn % 64))) != 0;
+	}
+
+	private boolean isZeroed(int ppn) {
+		return (zeroed[ppn / 64] & (1L << (ppn % 64))) != 0;
+	}
+
+	/**
+	 * Mark a frame free, and not zeroed, or in use. Called with the lock held.
+	 */
+	private void mark(int ppn, boolean isFree) {
+		if (isZeroed(ppn)) {
+			zeroed[ppn / 64] &= ~(1L << (ppn % 64));
+			numZeroed--;
+		}
+
+		if (isFree) {
+			free[ppn / 64] |= 1L << (ppn % 64);
+			numFree++;
+		}
+		else {
+			free[ppn / 64] &= ~(1L << (ppn % 64));
+			numFree--;
+		}
+	}
+
+	private int numFrames;
+
+	private int numFree;
+
+	private int numZeroed;
+
+	private int numZeroedInBackground = 0;
+
+	private Lock lock;
+
+	/** Signalled when a frame is freed, and so needs zeroing. */
+	private Condition dirtied;
+
+	/** The free frames, one bit per frame. */
+	private long[] free;
+
+	/** The free frames that hold only zeroes, one bit per frame. */
+	private long[] zeroed;
+
+	/** The word of <tt>free</tt> to start looking in. */
+	private int hint = 0;
+
+	/** For each frame, the number of page tables mapping it besides one. */
+	private int[] shares;
+
+	/** For each frame, the number of pins the kernel holds on it. */
+	private int[] pins;
+
+	private static final int pageSize = Processor.pageSize;
+
+	private static final char dbgFrames = 'z';
+}
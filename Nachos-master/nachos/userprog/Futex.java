@@ -0,0 +1,247 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * The kernel half of futex-style user synchronization: the <tt>wait()</tt> and
+ * <tt>wake()</tt> system calls.
+ *
+ * <p>
+ * A user program keeps its lock or counter in an ordinary word of its own
+ * memory and updates it without entering the kernel. Only when a thread has to
+ * block does it call <tt>wait(addr, expected)</tt>, and only when a thread may
+ * have blocked does the releaser call <tt>wake(addr, n)</tt>. The kernel
+ * compares the word with <i>expected</i> and puts the caller to sleep as one
+ * atomic step, so a wake that happens between the user's check and the
+ * <tt>wait()</tt> call is never lost: the word has changed, and <tt>wait()</tt>
+ * returns at once.
+ *
+ * <p>
+ * Waiters are keyed by the physical address of the word, so processes that map
+ * the same physical page wait on the same queue. The page stays resident while
+ * anyone waits on it, since the key would otherwise change under the waiters:
+ * each sleeping thread keeps the pin it took on its word until it is woken.
+ */
+public class Futex {
+	/**
+	 * Allocate a new futex table.
+	 */
+	public Futex() {
+	}
+
+	/**
+	 * Put the current thread to sleep on the word at <i>vaddr</i> in
+	 * <i>process</i>, if that word still holds <i>expected</i>.
+	 *
+	 * @param process the process making the call.
+	 * @param vaddr the user address of the word, which must be word aligned.
+	 * @param expected the value the caller last saw in the word.
+	 * @return 0 if the thread slept and was woken, 1 if the word no longer
+	 * held <i>expected</i>, or -1 if <i>vaddr</i> is not a valid address or
+	 * the process is exiting.
+	 */
+	public int wait(UserProcess process, int vaddr, int expected) {
+		int paddr = process.pinUserWord(vaddr);
+		if (paddr < 0)
+			return -1;
+
+		Integer key = Integer.valueOf(paddr);
+		Integer page = Integer.valueOf(Processor.pageFromAddress(paddr));
+		byte[] memory = Machine.processor().getMemory();
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		int result;
+		if (process.isExiting()) {
+			// cancel() has already run, so nothing would wake us
+			result = -1;
+		}
+		else if (Lib.bytesToInt(memory, paddr) != expected) {
+			result = 1;
+		}
+		else {
+			WaitQueue queue = waitQueues.get(key);
+			if (queue == null) {
+				queue = new WaitQueue();
+				waitQueues.put(key, queue);
+			}
+			queue.threads.waitForAccess(KThread.currentThread());
+			queue.size++;
+			waitersPerPage.put(page, Integer.valueOf(numWaiters(page) + 1));
+			numWaits++;
+
+			KThread.sleep();
+
+			// the waker has already dequeued us and dropped the page count
+			result = 0;
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		// each call drops its own pin; a sleeper held its pin while asleep
+		process.unpinUserWord(paddr);
+
+		Lib.debug(dbgFutex, "wait(0x" + Integer.toHexString(vaddr) + ", "
+				+ expected + ") -> " + result);
+		return result;
+	}
+
+	/**
+	 * Wake up to <i>n</i> threads sleeping on the word at <i>vaddr</i> in
+	 * <i>process</i>, in the order they went to sleep.
+	 *
+	 * @param process the process making the call.
+	 * @param vaddr the user address of the word, which must be word aligned.
+	 * @param n the maximum number of threads to wake.
+	 * @return the number of threads woken, or -1 if <i>vaddr</i> is not a
+	 * valid address.
+	 */
+	public int wake(UserProcess process, int vaddr, int n) {
+		int paddr = process.pinUserWord(vaddr);
+		if (paddr < 0)
+			return -1;
+
+		Integer key = Integer.valueOf(paddr);
+		Integer page = Integer.valueOf(Processor.pageFromAddress(paddr));
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		int woken = 0;
+		WaitQueue queue = waitQueues.get(key);
+		if (queue != null) {
+			while (woken < n && queue.size > 0) {
+				queue.threads.nextThread().ready();
+				queue.size--;
+				woken++;
+			}
+
+			if (queue.size == 0)
+				waitQueues.remove(key);
+		}
+
+		if (woken > 0) {
+			int remaining = numWaiters(page) - woken;
+			if (remaining == 0)
+				waitersPerPage.remove(page);
+			else
+				waitersPerPage.put(page, Integer.valueOf(remaining));
+			numWakes += woken;
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		process.unpinUserWord(paddr);
+
+		Lib.debug(dbgFutex, "wake(0x" + Integer.toHexString(vaddr) + ", " + n
+				+ ") -> " + woken);
+		return woken;
+	}
+
+	/**
+	 * Wake every thread of <i>process</i> that is sleeping in <tt>wait()</tt>,
+	 * so that it can die. Called once the process is exiting. Other waiters
+	 * keep their place in their queues.
+	 *
+	 * @param process the exiting process.
+	 */
+	public void cancel(UserProcess process) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Iterator<Map.Entry<Integer, WaitQueue>> i = waitQueues.entrySet()
+				.iterator();
+		while (i.hasNext()) {
+			Map.Entry<Integer, WaitQueue> e = i.next();
+			WaitQueue queue = e.getValue();
+			Integer page = Integer.valueOf(Processor.pageFromAddress(e.getKey()
+					.intValue()));
+
+			// take every waiter off the queue, and put back the others in order
+			int size = queue.size;
+			LinkedList<KThread> others = new LinkedList<KThread>();
+			for (int j = 0; j < size; j++) {
+				KThread thread = queue.threads.nextThread();
+				if (((UThread) thread).process == process) {
+					thread.ready();
+					queue.size--;
+					int remaining = numWaiters(page) - 1;
+					if (remaining == 0)
+						waitersPerPage.remove(page);
+					else
+						waitersPerPage.put(page, Integer.valueOf(remaining));
+				}
+				else {
+					others.add(thread);
+				}
+			}
+			for (KThread thread : others)
+				queue.threads.waitForAccess(thread);
+
+			if (queue.size == 0)
+				i.remove();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Test if any thread is waiting on a word in the specified physical page.
+	 * Such a page must not be evicted.
+	 *
+	 * @param ppn the physical page number.
+	 * @return <tt>true</tt> if the page has waiters.
+	 */
+	public boolean hasWaiters(int ppn) {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean result = (numWaiters(Integer.valueOf(ppn)) > 0);
+		Machine.interrupt().restore(intStatus);
+
+		return result;
+	}
+
+	/**
+	 * Return the number of <tt>wait()</tt> calls that went to sleep.
+	 *
+	 * @return the number of waits.
+	 */
+	public int getNumWaits() {
+		return numWaits;
+	}
+
+	/**
+	 * Return the number of threads woken by <tt>wake()</tt>.
+	 *
+	 * @return the number of wakes.
+	 */
+	public int getNumWakes() {
+		return numWakes;
+	}
+
+	private int numWaiters(Integer page) {
+		Integer count = waitersPerPage.get(page);
+		return (count == null) ? 0 : count.intValue();
+	}
+
+	private static class WaitQueue {
+		ThreadQueue threads = ThreadedKernel.scheduler.newThreadQueue(false);
+
+		int size = 0;
+	}
+
+	/** The sleeping threads, by the physical address of their word. */
+	private HashMap<Integer, WaitQueue> waitQueues = new HashMap<Integer, WaitQueue>();
+
+	/** The number of sleeping threads, by physical page number. */
+	private HashMap<Integer, Integer> waitersPerPage = new HashMap<Integer, Integer>();
+
+	private int numWaits = 0;
+
+	private int numWakes = 0;
+
+	private static final char dbgFutex = 'f';
+}
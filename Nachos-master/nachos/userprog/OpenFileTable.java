@@ -0,0 +1,245 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+
+/**
+ * The kernel-wide table of open files. Every file descriptor of every process
+ * refers to an <tt>OpenFileTable.Entry</tt>, which wraps the underlying
+ * <tt>OpenFile</tt> and counts the descriptors that refer to it. The file is
+ * closed when the last of them is closed.
+ *
+ * <p>
+ * The table also counts open entries by file name, which gives
+ * <tt>unlink()</tt> its semantics: a file that is still open is only marked
+ * for removal, can no longer be opened, and is removed from the file system
+ * when its last entry is closed.
+ *
+ * <p>
+ * Opening and removing a file can take a long time in the file system, so
+ * the table's lock is not held across those calls. Instead, an open counts
+ * toward its name while it is in progress, so an <tt>unlink()</tt> meanwhile
+ * only marks the file, and the open then gives up. A name stays marked while
+ * its removal is in progress, so it cannot be opened again until it is gone.
+ */
+public class OpenFileTable {
+	/**
+	 * Allocate a new open-file table.
+	 */
+	public OpenFileTable() {
+		lock = new Lock("OpenFileTable.lock");
+	}
+
+	/**
+	 * An open file, shared by every descriptor that refers to it.
+	 */
+	public static class Entry {
+		private Entry(OpenFile file) {
+			this.file = file;
+		}
+
+		/**
+		 * Return the underlying file.
+		 *
+		 * @return the open file.
+		 */
+		public OpenFile getFile() {
+			return file;
+		}
+
+		private OpenFile file;
+
+		private int refCount = 1;
+	}
+
+	/**
+	 * Open the named file in the file system and add it to the table.
+	 *
+	 * @param name the name of the file.
+	 * @param create <tt>true</tt> to create the file, or truncate it if it
+	 * exists.
+	 * @return the new entry, or <tt>null</tt> if the file could not be opened
+	 * or is waiting to be removed.
+	 */
+	public Entry open(String name, boolean create) {
+		lock.acquire();
+
+		if (unlinked.containsKey(name)) {
+			lock.release();
+			return null;
+		}
+
+		if (create)
+			UserKernel.coffCache.invalidate(name);
+
+		countOpen(name, 1);
+		lock.release();
+
+		OpenFile file = ThreadedKernel.fileSystem.open(name, create);
+
+		lock.acquire();
+
+		// the file may have been unlinked while it was being opened
+		if (file != null && !unlinked.containsKey(name)) {
+			Entry entry = new Entry(file);
+			numOpen++;
+			lock.release();
+			return entry;
+		}
+
+		boolean remove = countOpen(name, -1);
+		lock.release();
+
+		if (file != null)
+			file.close();
+		if (remove)
+			remove(name);
+		return null;
+	}
+
+	/**
+	 * Add a file that was opened elsewhere, such as a console stream, to the
+	 * table. Files with no file system, such as console streams and pipe
+	 * ends, are not counted under their names, since their names do not
+	 * refer to files that <tt>open()</tt> or <tt>unlink()</tt> can reach.
+	 *
+	 * @param file the open file.
+	 * @return the new entry.
+	 */
+	public Entry add(OpenFile file) {
+		boolean held = lock.isHeldByCurrentThread();
+		if (!held)
+			lock.acquire();
+
+		Entry entry = new Entry(file);
+		if (file.getFileSystem() != null)
+			countOpen(file.getName(), 1);
+		numOpen++;
+
+		if (!held)
+			lock.release();
+		return entry;
+	}
+
+	/**
+	 * Add a reference to an entry, for a new descriptor that shares it.
+	 *
+	 * @param entry the shared entry.
+	 */
+	public void reference(Entry entry) {
+		lock.acquire();
+		Lib.assertTrue(entry.refCount > 0);
+		entry.refCount++;
+		lock.release();
+	}
+
+	/**
+	 * Drop a reference to an entry. The last reference closes the file, and
+	 * removes it if it was unlinked while open.
+	 *
+	 * @param entry the shared entry.
+	 */
+	public void release(Entry entry) {
+		lock.acquire();
+
+		Lib.assertTrue(entry.refCount > 0);
+		boolean last = (--entry.refCount == 0);
+		boolean remove = false;
+		if (last) {
+			numOpen--;
+			if (entry.file.getFileSystem() != null)
+				remove = countOpen(entry.file.getName(), -1);
+		}
+
+		lock.release();
+
+		if (last)
+			entry.file.close();
+		if (remove)
+			remove(entry.file.getName());
+	}
+
+	/**
+	 * Remove the named file from the file system, or, if it is open, as soon
+	 * as it is closed for the last time.
+	 *
+	 * @param name the name of the file.
+	 * @return <tt>true</tt> if the file was removed or marked for removal.
+	 */
+	public boolean unlink(String name) {
+		lock.acquire();
+
+		UserKernel.coffCache.invalidate(name);
+
+		// already marked, or already being removed
+		if (unlinked.containsKey(name)) {
+			lock.release();
+			return true;
+		}
+
+		unlinked.put(name, Boolean.TRUE);
+		boolean open = openByName.containsKey(name);
+
+		lock.release();
+
+		return open || remove(name);
+	}
+
+	/**
+	 * Remove a marked file from the file system, then unmark it. Called
+	 * without the lock held.
+	 *
+	 * @return <tt>true</tt> if the file was removed.
+	 */
+	private boolean remove(String name) {
+		boolean result = ThreadedKernel.fileSystem.remove(name);
+
+		lock.acquire();
+		unlinked.remove(name);
+		lock.release();
+
+		return result;
+	}
+
+	/**
+	 * Add <i>delta</i> to the number of open entries, or opens in progress,
+	 * for a name. Called with the lock held.
+	 *
+	 * @return <tt>true</tt> if the name is no longer open and is marked for
+	 * removal, so the caller must remove it.
+	 */
+	private boolean countOpen(String name, int delta) {
+		Integer count = openByName.get(name);
+		int newCount = ((count == null) ? 0 : count.intValue()) + delta;
+		Lib.assertTrue(newCount >= 0);
+
+		if (newCount > 0) {
+			openByName.put(name, Integer.valueOf(newCount));
+			return false;
+		}
+
+		openByName.remove(name);
+		return unlinked.containsKey(name);
+	}
+
+	/**
+	 * Return the number of open entries in the table.
+	 *
+	 * @return the number of open files.
+	 */
+	public int getNumOpen() {
+		return numOpen;
+	}
+
+	private Lock lock;
+
+	private int numOpen = 0;
+
+	/** The number of open entries, and opens in progress, for each name. */
+	private HashMap<String, Integer> openByName = new HashMap<String, Integer>();
+
+	/** Open files that have been unlinked, and files being removed. */
+	private HashMap<String, Boolean> unlinked = new HashMap<String, Boolean>();
+}
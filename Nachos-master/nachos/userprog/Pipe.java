@@ -0,0 +1,277 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.LinkedList;
+
+/**
+ * A one-way channel between processes, made by the <tt>pipe()</tt> system
+ * call. Bytes written to the write end are read, in order, from the read end.
+ * Both ends are <tt>OpenFile</tt>s, so they live in the kernel's
+ * <tt>OpenFileTable</tt> like any other file, and an end is closed when its
+ * last descriptor is.
+ *
+ * <p>
+ * Bytes that nobody is waiting for are kept in a ring buffer of
+ * <tt>Pipe.capacity</tt> bytes (default 4096). A writer blocks while the ring
+ * is full, and a reader blocks while it is empty. A reader that blocks leaves
+ * its buffer with the pipe, and the next writer copies straight into it
+ * without going through the ring.
+ *
+ * <p>
+ * <tt>read()</tt> returns as soon as any bytes are available, and returns 0
+ * once the ring is empty and the write end is closed. <tt>write()</tt>
+ * returns only when every byte has been taken, unless the read end is closed,
+ * in which case it returns the number of bytes taken, or -1 if none were.
+ * A user thread whose process is exiting, or a thread carrying out an
+ * <tt>AsyncIO</tt> request that has been cancelled, stops waiting at once;
+ * see <tt>interrupt()</tt>.
+ */
+public class Pipe {
+	/**
+	 * Allocate a new, empty pipe.
+	 */
+	public Pipe() {
+		int capacity = Config.getInteger("Pipe.capacity", 4096);
+		Lib.assertTrue(capacity > 0);
+
+		ring = new byte[capacity];
+		lock = new Lock("Pipe.lock");
+		readable = new Condition(lock);
+		writable = new Condition(lock);
+	}
+
+	/**
+	 * Return the read end of this pipe.
+	 *
+	 * @return a file that reads from this pipe.
+	 */
+	public OpenFile openForReading() {
+		return new End(true);
+	}
+
+	/**
+	 * Return the write end of this pipe.
+	 *
+	 * @return a file that writes to this pipe.
+	 */
+	public OpenFile openForWriting() {
+		return new End(false);
+	}
+
+	/**
+	 * Return the number of bytes that were copied straight from a writer to a
+	 * waiting reader, without going through the ring.
+	 *
+	 * @return the number of bytes handed off.
+	 */
+	public long getBytesHandedOff() {
+		return bytesHandedOff;
+	}
+
+	/**
+	 * Return the number of bytes that went through the ring.
+	 *
+	 * @return the number of bytes buffered.
+	 */
+	public long getBytesBuffered() {
+		return bytesBuffered;
+	}
+
+	/**
+	 * Wake every thread waiting on the pipe that <i>file</i> is an end of, if
+	 * it is one, so that threads of an exiting process stop waiting.
+	 *
+	 * @param file an open file.
+	 */
+	public static void interrupt(OpenFile file) {
+		if (file instanceof End)
+			((End) file).pipe().interrupt();
+	}
+
+	private void interrupt() {
+		lock.acquire();
+		readable.wakeAll();
+		writable.wakeAll();
+		lock.release();
+	}
+
+	/**
+	 * Test if the current thread belongs to a process that is exiting, or
+	 * carries out an asynchronous request that has been cancelled, and so
+	 * should not wait any longer. Called with the lock held, so that it
+	 * cannot miss the wakeup of <tt>interrupt()</tt>.
+	 */
+	private static boolean interrupted() {
+		KThread thread = KThread.currentThread();
+		if (thread instanceof UThread)
+			return ((UThread) thread).process.isExiting();
+
+		return AsyncIO.isCancelled(thread);
+	}
+
+	private int read(byte[] buf, int offset, int length) {
+		if (length == 0)
+			return 0;
+
+		lock.acquire();
+
+		Handoff handoff = null;
+		while (count == 0 && writerOpen && !interrupted()) {
+			if (handoff == null) {
+				handoff = new Handoff(buf, offset, length);
+				waitingReaders.add(handoff);
+			}
+
+			readable.sleep();
+
+			if (handoff.amount > 0) {
+				lock.release();
+				return handoff.amount;
+			}
+		}
+		if (handoff != null)
+			waitingReaders.remove(handoff);
+
+		int amount = Math.min(length, count);
+		int first = Math.min(amount, ring.length - head);
+		System.arraycopy(ring, head, buf, offset, first);
+		System.arraycopy(ring, 0, buf, offset + first, amount - first);
+
+		head = (head + amount) % ring.length;
+		count -= amount;
+		writable.wakeAll();
+
+		lock.release();
+		return amount;
+	}
+
+	private int write(byte[] buf, int offset, int length) {
+		lock.acquire();
+
+		int written = 0;
+		while (written < length && readerOpen && !interrupted()) {
+			if (count == 0 && !waitingReaders.isEmpty()) {
+				// hand off straight into the buffer of a waiting reader
+				Handoff handoff = waitingReaders.removeFirst();
+				int amount = Math.min(length - written, handoff.length);
+				System.arraycopy(buf, offset + written, handoff.buf,
+						handoff.offset, amount);
+
+				handoff.amount = amount;
+				written += amount;
+				bytesHandedOff += amount;
+				readable.wakeAll();
+			}
+			else if (count == ring.length) {
+				writable.sleep();
+			}
+			else {
+				int amount = Math.min(length - written, ring.length - count);
+				int tail = (head + count) % ring.length;
+				int first = Math.min(amount, ring.length - tail);
+				System.arraycopy(buf, offset + written, ring, tail, first);
+				System.arraycopy(buf, offset + written + first, ring, 0,
+						amount - first);
+
+				count += amount;
+				written += amount;
+				bytesBuffered += amount;
+				readable.wakeAll();
+			}
+		}
+
+		lock.release();
+		return (written == 0 && length > 0) ? -1 : written;
+	}
+
+	private void close(boolean readEnd) {
+		lock.acquire();
+
+		if (readEnd) {
+			readerOpen = false;
+			writable.wakeAll();
+		}
+		else {
+			writerOpen = false;
+			readable.wakeAll();
+		}
+
+		lock.release();
+	}
+
+	/** The buffer of a reader waiting for a writer. */
+	private static class Handoff {
+		Handoff(byte[] buf, int offset, int length) {
+			this.buf = buf;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		byte[] buf;
+
+		int offset, length;
+
+		/** The number of bytes the writer copied into the buffer. */
+		int amount = 0;
+	}
+
+	private class End extends OpenFile {
+		End(boolean readEnd) {
+			super(null, "Pipe");
+
+			this.readEnd = readEnd;
+		}
+
+		Pipe pipe() {
+			return Pipe.this;
+		}
+
+		public void close() {
+			if (open) {
+				open = false;
+				Pipe.this.close(readEnd);
+			}
+		}
+
+		public int read(byte[] buf, int offset, int length) {
+			if (!open || !readEnd)
+				return -1;
+
+			return Pipe.this.read(buf, offset, length);
+		}
+
+		public int write(byte[] buf, int offset, int length) {
+			if (!open || readEnd)
+				return -1;
+
+			return Pipe.this.write(buf, offset, length);
+		}
+
+		private boolean readEnd;
+
+		private boolean open = true;
+	}
+
+	private Lock lock;
+
+	/** Signalled when bytes are written or the write end is closed. */
+	private Condition readable;
+
+	/** Signalled when bytes are read or the read end is closed. */
+	private Condition writable;
+
+	private byte[] ring;
+
+	/** The index in the ring of the oldest byte, and the number of bytes. */
+	private int head = 0, count = 0;
+
+	private LinkedList<Handoff> waitingReaders = new LinkedList<Handoff>();
+
+	private boolean readerOpen = true, writerOpen = true;
+
+	private long bytesHandedOff = 0;
+
+	private long bytesBuffered = 0;
+}
@@ -0,0 +1,167 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * Call counts and latencies of one system call, for one process or for the
+ * whole kernel.
+ *
+ * <p>
+ * Latency is measured in ticks from entry to the handler until it returns,
+ * including any time the calling thread spends blocked. Latencies are kept in a
+ * histogram of powers of two: bucket 0 counts calls that took no ticks, and
+ * bucket <i>i</i> counts calls that took from 2<sup>i-1</sup> to
+ * 2<sup>i</sup>-1 ticks. Calls that never return, such as <tt>exit()</tt>, are
+ * counted but have no latency. A call whose result is -1 counts as an error.
+ *
+ * <p>
+ * Statistics are always kept. If the <tt>SyscallStats.enabled</tt> key in
+ * <tt>nachos.conf</tt> is set, each process prints its statistics when it
+ * exits, and the kernel prints the totals when it terminates.
+ */
+public class SyscallStats {
+	/**
+	 * Allocate new, empty statistics.
+	 *
+	 * @param name the name of the system call.
+	 */
+	public SyscallStats(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Read the configuration. Called by <tt>UserKernel.initialize()</tt>.
+	 */
+	static void initialize() {
+		enabled = Config.getBoolean("SyscallStats.enabled", false);
+	}
+
+	/**
+	 * Record that the system call was entered.
+	 */
+	public void called() {
+		calls++;
+	}
+
+	/**
+	 * Record that the system call returned.
+	 *
+	 * @param ticks the number of ticks the call took.
+	 * @param error <tt>true</tt> if the call failed.
+	 */
+	public void returned(long ticks, boolean error) {
+		if (error)
+			errors++;
+
+		totalTicks += ticks;
+		maxTicks = Math.max(maxTicks, ticks);
+
+		int bucket = 64 - Long.numberOfLeadingZeros(ticks);
+		histogram[Math.min(bucket, histogram.length - 1)]++;
+	}
+
+	/**
+	 * Add another set of statistics for the same system call to this one.
+	 *
+	 * @param other the statistics to add.
+	 */
+	public void add(SyscallStats other) {
+		calls += other.calls;
+		errors += other.errors;
+		totalTicks += other.totalTicks;
+		maxTicks = Math.max(maxTicks, other.maxTicks);
+
+		for (int i = 0; i < histogram.length; i++)
+			histogram[i] += other.histogram[i];
+	}
+
+	/**
+	 * Return the name of the system call.
+	 *
+	 * @return the name.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Return the number of times the system call was made.
+	 *
+	 * @return the number of calls.
+	 */
+	public long getCalls() {
+		return calls;
+	}
+
+	/**
+	 * Return the number of calls that returned -1.
+	 *
+	 * @return the number of errors.
+	 */
+	public long getErrors() {
+		return errors;
+	}
+
+	/**
+	 * Print one line for each system call in <i>stats</i> that was made, if
+	 * statistics are enabled.
+	 *
+	 * @param title the heading of the report.
+	 * @param stats the statistics, indexed by system call number; entries may
+	 * be <tt>null</tt>.
+	 */
+	public static void report(String title, SyscallStats[] stats) {
+		if (!enabled)
+			return;
+
+		System.out.println(title + " (ticks):");
+		System.out.println(pad("syscall", -14) + pad("calls", 8)
+				+ pad("errors", 8) + pad("mean", 8) + pad("max", 8)
+				+ "  histogram (bucket:count)");
+
+		for (int i = 0; i < stats.length; i++) {
+			SyscallStats s = stats[i];
+			if (s == null || s.calls == 0)
+				continue;
+
+			long returns = 0;
+			StringBuffer buckets = new StringBuffer();
+			for (int b = 0; b < s.histogram.length; b++) {
+				returns += s.histogram[b];
+				if (s.histogram[b] > 0)
+					buckets.append(" " + b + ":" + s.histogram[b]);
+			}
+
+			System.out.println(pad(s.name, -14) + pad("" + s.calls, 8)
+					+ pad("" + s.errors, 8)
+					+ pad((returns > 0) ? "" + s.totalTicks / returns : "-", 8)
+					+ pad("" + s.maxTicks, 8) + " " + buckets);
+		}
+	}
+
+	/**
+	 * Pad a string with spaces to the specified width: on the left if
+	 * <i>width</i> is positive, on the right if it is negative.
+	 */
+	private static String pad(String s, int width) {
+		StringBuffer buf = new StringBuffer();
+		for (int i = s.length(); i < Math.abs(width); i++)
+			buf.append(' ');
+
+		return (width < 0) ? s + buf : buf + s;
+	}
+
+	private String name;
+
+	private long calls = 0;
+
+	private long errors = 0;
+
+	private long totalTicks = 0;
+
+	private long maxTicks = 0;
+
+	private long[] histogram = new long[24];
+
+	private static boolean enabled = false;
+}
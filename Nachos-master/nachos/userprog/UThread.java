@@ -22,10 +22,58 @@ public class UThread extends KThread {
 		});
 
 		this.process = process;
+		cpuBandwidth = process.getCPUBandwidth();
+	}
+
+	/**
+	 * Allocate a new UThread that runs additional user code in a process that
+	 * already has a thread.
+	 * 
+	 * @param process the process the thread belongs to.
+	 * @param tid the thread ID, unique within the process.
+	 * @param pc the address of the first user instruction to run.
+	 * @param sp the initial stack pointer.
+	 * @param a0 the initial value of the first argument register.
+	 * @param a1 the initial value of the second argument register.
+	 */
+	public UThread(UserProcess process, int tid, int pc, int sp, int a0, int a1) {
+		this(process);
+
+		this.tid = tid;
+
+		userRegisters[Processor.regPC] = pc;
+		userRegisters[Processor.regSP] = sp;
+		userRegisters[Processor.regA0] = a0;
+		userRegisters[Processor.regA1] = a1;
+		registersSet = true;
+	}
+
+	/**
+	 * Allocate a new UThread that starts with a copy of another thread's user
+	 * registers, as the child of <tt>fork()</tt> does.
+	 * 
+	 * @param process the process the thread belongs to.
+	 * @param tid the thread ID, unique within the process.
+	 * @param registers the initial user registers.
+	 */
+	public UThread(UserProcess process, int tid, int[] registers) {
+		this(process);
+
+		this.tid = tid;
+
+		System.arraycopy(registers, 0, userRegisters, 0,
+				Processor.numUserRegisters);
+		registersSet = true;
 	}
 
 	private void runProgram() {
-		process.initRegisters();
+		if (registersSet) {
+			for (int i = 0; i < Processor.numUserRegisters; i++)
+				Machine.processor().writeRegister(i, userRegisters[i]);
+		}
+		else {
+			process.initRegisters();
+		}
 		process.restoreState();
 
 		Machine.processor().run();
@@ -55,6 +103,13 @@ public class UThread extends KThread {
 			Machine.processor().writeRegister(i, userRegisters[i]);
 
 		process.restoreState();
+
+		// another thread called exit(); make the next user instruction trap
+		// so this thread dies in handleException()
+		if (process.isExiting()) {
+			Machine.processor().writeRegister(Processor.regPC, 1);
+			Machine.processor().writeRegister(Processor.regNextPC, 5);
+		}
 	}
 
 	/**
@@ -72,4 +127,22 @@ public class UThread extends KThread {
 	 * The process to which this thread belongs.
 	 */
 	public UserProcess process;
+
+	/**
+	 * The ID of this thread within its process. The first thread is 0.
+	 */
+	public int tid = 0;
+
+	/**
+	 * The first page of this thread's stack, or -1 for the first thread, which
+	 * uses the stack set up by <tt>UserProcess.load()</tt>.
+	 */
+	public int stackVPN = -1;
+
+	/**
+	 * The status passed to thread_exit(), read by thread_join().
+	 */
+	public int exitStatus = 0;
+
+	private boolean registersSet = false;
 }
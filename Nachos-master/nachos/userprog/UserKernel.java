@@ -1,7 +1,5 @@
 package nachos.userprog;
 
-import java.util.LinkedList;
-
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
@@ -28,18 +26,23 @@ public class UserKernel extends ThreadedKernel {
 		
 		// Keep track of number of processes
 		processCount = 0;
-		pCountMutex = new Semaphore(1);
+		pCountMutex = new Semaphore(1, "UserKernel.pCountMutex");
 		
 		// Initializing physical pages 
-		physPageMutex = new Semaphore(1);
-		physicalPages = new LinkedList<Integer>();
+		frames = new FrameAllocator(Machine.processor().getNumPhysPages());
+		if (Config.getBoolean("FrameAllocator.zeroInBackground", true))
+			frames.startZeroing();
 		
-		processIDMutex = new Semaphore(1);
+		processIDMutex = new Semaphore(1, "UserKernel.processIDMutex");
 		processID = 0;
 		
+		futex = new Futex();
+		
+		openFiles = new OpenFileTable();
+		coffCache = new CoffCache();
 		
-		for (int i = 0; i < Machine.processor().getNumPhysPages(); i++)
-			physicalPages.add(i);
+		SyscallStats.initialize();
+		syscallStats = new SyscallStats[UserProcess.maxSyscalls];
 		
 		Machine.processor().setExceptionHandler(new Runnable() {
 			public void run() {
@@ -121,10 +124,29 @@ public class UserKernel extends ThreadedKernel {
 		KThread.currentThread().finish();
 	}
 
+	/**
+	 * Add the system call statistics of an exiting process to the kernel's
+	 * totals.
+	 * 
+	 * @param stats the process's statistics, indexed by system call number.
+	 */
+	public static void addSyscallStats(SyscallStats[] stats) {
+		for (int i = 0; i < stats.length; i++) {
+			if (stats[i] == null)
+				continue;
+			
+			if (syscallStats[i] == null)
+				syscallStats[i] = new SyscallStats(stats[i].getName());
+			syscallStats[i].add(stats[i]);
+		}
+	}
+
 	/**
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		SyscallStats.report("All syscalls", syscallStats);
+		
 		super.terminate();
 	}
 
@@ -135,9 +157,7 @@ public class UserKernel extends ThreadedKernel {
 	private static Coff dummy1 = null;
 	
 	//Adding new variables for CSE120 Proj 2 Part II 
-	public static LinkedList<Integer> physicalPages;
-	
-	public static Semaphore physPageMutex;
+	public static FrameAllocator frames;
 	
 	public static Semaphore processIDMutex;
 	
@@ -146,6 +166,18 @@ public class UserKernel extends ThreadedKernel {
 	public static int processCount;
 	public static Semaphore pCountMutex;
 	
+	// Syscall statistics of every process that has exited
+	private static SyscallStats[] syscallStats;
+	
+	// Every open file of every process
+	public static OpenFileTable openFiles;
+	
+	// Executables that have been run recently
+	public static CoffCache coffCache;
+	
+	// Sleeping threads of the wait() and wake() syscalls
+	public static Futex futex;
+	
 	//References the root process
 	public static UserProcess root = null;
 }
@@ -4,10 +4,11 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
-import java.io.EOFException;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
-import java.util.NoSuchElementException;
+import java.util.LinkedList;
 
 /**
  * Encapsulates the state of a user process that is not contained in its user
@@ -32,6 +33,7 @@ public class UserProcess {
 		for (int i = 0; i < numPhysPages; i++)
 			pageTable[i] = new TranslationEntry(i, i, false, false, false, false);
 			//pageTable[i] = new TranslationEntry(i, i, true, false, false, false);
+		copyOnWrite = new boolean[numPhysPages];
 		
 		/* Initialize Process ID */
 		
@@ -46,13 +48,20 @@ public class UserProcess {
 		this.pID = UserKernel.processID++;
 		UserKernel.processIDMutex.V();
 		
-		fileDescriptor = new OpenFile[16];
-		fileDescriptor[0] = UserKernel.console.openForReading();
-		fileDescriptor[1] = UserKernel.console.openForWriting();
+		fileTable = new FileDescriptorTable();
+		fileTable.add(UserKernel.openFiles.add(UserKernel.console.openForReading()));
+		fileTable.add(UserKernel.openFiles.add(UserKernel.console.openForWriting()));
 		
-		statusLock = new Lock();
+		statusLock = new Lock("UserProcess.statusLock");
 		joinCond = new Condition(statusLock);
 		exitStatus = null;
+		
+		cpuBandwidth = new CPUBandwidth();
+		
+		threadLock = new Lock("UserProcess.threadLock");
+		copyOnWriteLock = new Lock("UserProcess.copyOnWriteLock");
+		
+		syscallTable = userSyscalls;
 	}
 
 	/**
@@ -75,10 +84,51 @@ public class UserProcess {
 	 * @return <tt>true</tt> if the program was successfully executed.
 	 */
 	public boolean execute(String name, String[] args) {
-		if (!load(name, args))
+		// pack the arguments into the layout of the argument page
+		byte[][] argv = new byte[args.length][];
+		int argsSize = args.length * 4;
+		for (int i = 0; i < args.length; i++) {
+			argv[i] = args[i].getBytes();
+			argsSize += argv[i].length + 1;
+		}
+		if (argsSize > pageSize) {
+			Lib.debug(dbgProcess, "\targuments too long");
+			return false;
+		}
+
+		byte[] packed = new byte[argsSize];
+		int stringOffset = args.length * 4;
+		for (int i = 0; i < args.length; i++) {
+			Lib.bytesFromInt(packed, i * 4, stringOffset);
+			System.arraycopy(argv[i], 0, packed, stringOffset, argv[i].length);
+			stringOffset += argv[i].length + 1;
+		}
+
+		return execute(name, packed, args.length, argsSize);
+	}
+
+	/**
+	 * Execute the specified program with arguments already packed the way
+	 * they are laid out in the argument page: <i>argc</i> 4-byte offsets, each
+	 * the offset in <i>args</i> of a null-terminated string, followed by the
+	 * strings. The offsets are replaced with the strings' virtual addresses.
+	 * 
+	 * @param name the name of the file containing the executable.
+	 * @param args the packed arguments.
+	 * @param argc the number of arguments.
+	 * @param argsSize the number of bytes of <i>args</i> in use, at most one
+	 * page.
+	 * @return <tt>true</tt> if the program was successfully executed.
+	 */
+	protected boolean execute(String name, byte[] args, int argc, int argsSize) {
+		if (!load(name, args, argc, argsSize))
 			return false;
 
-		new UThread(this).setName(name).fork();
+		UThread thread = new UThread(this);
+		threads.put(thread.tid, thread);
+		numThreads = 1;
+		
+		thread.setName(name).fork();
 
 		return true;
 	}
@@ -105,6 +155,13 @@ public class UserProcess {
 	 * without including the null terminator. If no null terminator is found,
 	 * returns <tt>null</tt>.
 	 * 
+	 * <p>
+	 * The terminator is searched for page by page in physical memory, so pages
+	 * past the end of the string are never touched, and each page is pinned
+	 * only while it is read. A string within one page is converted straight
+	 * from main memory; otherwise it is gathered into a scratch buffer that the
+	 * process reuses.
+	 * 
 	 * @param vaddr the starting virtual address of the null-terminated string.
 	 * @param maxLength the maximum number of characters in the string, not
 	 * including the null terminator.
@@ -113,17 +170,126 @@ public class UserProcess {
 	 */
 	public String readVirtualMemoryString(int vaddr, int maxLength) {
 		Lib.assertTrue(maxLength >= 0);
+		
+		int end = vaddr + maxLength + 1;
+		if (vaddr < 0 || end < 0)
+			return null;
+		
+		byte[] memory = Machine.processor().getMemory();
+		byte[] bytes = null;
+		String result = null;
+		
+		for (int pos = vaddr; pos < end;) {
+			int pageOffset = Processor.offsetFromAddress(pos);
+			int amount = Math.min(pageSize - pageOffset, end - pos);
+			
+			int ppn = pinPage(Processor.pageFromAddress(pos), false);
+			if (ppn < 0)
+				break;
+			
+			int paddr = ppn*pageSize + pageOffset;
+			int length = -1;
+			for (int i = 0; i < amount; i++) {
+				if (memory[paddr + i] == 0) {
+					length = i;
+					break;
+				}
+			}
+			
+			if (length >= 0 && bytes == null) {
+				// the whole string is in this page
+				result = new String(memory, paddr, length);
+			}
+			else {
+				if (bytes == null)
+					bytes = takeScratch(maxLength + 1);
+				
+				System.arraycopy(memory, paddr, bytes, pos - vaddr,
+						(length >= 0) ? length : amount);
+				if (length >= 0)
+					result = new String(bytes, 0, pos - vaddr + length);
+			}
+			
+			unpinPage(ppn);
+			if (length >= 0)
+				break;
+			pos += amount;
+		}
+		
+		if (bytes != null)
+			stringScratch = bytes;
+		return result;
+	}
 
-		byte[] bytes = new byte[maxLength + 1];
-
-		int bytesRead = readVirtualMemory(vaddr, bytes);
-
-		for (int length = 0; length < bytesRead; length++) {
-			if (bytes[length] == 0)
-				return new String(bytes, 0, length);
+	/**
+	 * Copy a null-terminated string, terminator included, from this process's
+	 * virtual memory into <i>data</i>, without making a <tt>String</tt> of it.
+	 * Like <tt>readVirtualMemoryString(int, int)</tt>, read at most
+	 * <tt>maxLength + 1</tt> bytes, page by page.
+	 * 
+	 * @param vaddr the starting virtual address of the null-terminated string.
+	 * @param data the array where the string will be stored.
+	 * @param offset the first byte to write in <i>data</i>.
+	 * @param maxLength the maximum number of characters in the string, not
+	 * including the null terminator.
+	 * @return the length of the string, not including the null terminator, or
+	 * -1 if no null terminator was found.
+	 */
+	private int readVirtualMemoryString(int vaddr, byte[] data, int offset,
+			int maxLength) {
+		Lib.assertTrue(maxLength >= 0 && offset + maxLength < data.length);
+		
+		int end = vaddr + maxLength + 1;
+		if (vaddr < 0 || end < 0)
+			return -1;
+		
+		byte[] memory = Machine.processor().getMemory();
+		
+		for (int pos = vaddr; pos < end;) {
+			int pageOffset = Processor.offsetFromAddress(pos);
+			int amount = Math.min(pageSize - pageOffset, end - pos);
+			
+			int ppn = pinPage(Processor.pageFromAddress(pos), false);
+			if (ppn < 0)
+				return -1;
+			
+			int paddr = ppn*pageSize + pageOffset;
+			int dataOffset = offset + pos - vaddr;
+			int length = -1;
+			for (int i = 0; i < amount; i++) {
+				data[dataOffset + i] = memory[paddr + i];
+				if (memory[paddr + i] == 0) {
+					length = i;
+					break;
+				}
+			}
+			
+			unpinPage(ppn);
+			if (length >= 0)
+				return pos - vaddr + length;
+			pos += amount;
 		}
+		
+		return -1;
+	}
 
-		return null;
+	/**
+	 * Take this process's scratch buffer, or allocate a new one if another
+	 * thread is using it or it is too small. The caller gives it back by
+	 * storing it in <tt>stringScratch</tt>.
+	 * 
+	 * @param size the number of bytes needed.
+	 * @return a buffer of at least <tt>size</tt> bytes.
+	 */
+	private byte[] takeScratch(int size) {
+		boolean intStatus = Machine.interrupt().disable();
+		byte[] bytes = stringScratch;
+		stringScratch = null;
+		Machine.interrupt().restore(intStatus);
+		
+		if (bytes == null || bytes.length < size)
+			bytes = new byte[Math.max(size, Math.max(pageSize, maxStringLength + 1))];
+		return bytes;
 	}
 
 	/**
@@ -153,78 +319,21 @@ public class UserProcess {
 	 * @return the number of bytes successfully transferred.
 	 */
 	public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-//		Lib.assertTrue(offset >= 0 && length >= 0
-//				&& offset + length <= data.length);
-
-		if (data == null)
-			return 0;
-		
-		if (!(offset >= 0 && length >= 0
+		if (data == null || !(offset >= 0 && length >= 0
 				&& offset + length <= data.length))
 			return 0;
 		
 		byte[] memory = Machine.processor().getMemory();
-
-		if (vaddr < 0 || vaddr >= memory.length)
-			return 0;
+		int[] ranges = pinPhysicalRanges(vaddr, length, false);
 		
-		
-		int vpn = Processor.pageFromAddress(vaddr);
-		int vpnOffset = Processor.offsetFromAddress(vaddr);
-		TranslationEntry entry = pageTable[vpn];
-		entry.used = true;
-		int realAddr = entry.ppn*pageSize + vpnOffset;
-		
-		// for now, just assume that virtual addresses equal physical addresses
-		if (realAddr < 0 || realAddr >= memory.length || !entry.valid)
-		{
-			entry.used = false;
-			return 0;
+		int amount = 0;
+		for (int i = 0; i < ranges.length; i += 2) {
+			System.arraycopy(memory, ranges[i], data, offset + amount, ranges[i+1]);
+			amount += ranges[i+1];
 		}
 		
-		// keeps track of what's written to data
-		int written = 0;
-		int bufOffset = offset;
-		int pageOffset = vpnOffset;
-		int currAddr = realAddr;
-		int leftToWrite = length;
-		int currVpn = vpn;
-		int currPpn = entry.ppn;
-		
-		while (written < length)
-		{
-			if (pageOffset + leftToWrite > pageSize)
-			{
-				int amountToWrite = pageSize - pageOffset;
-				System.arraycopy(memory, currAddr, data, bufOffset, amountToWrite);
-				written += amountToWrite;
-				bufOffset += amountToWrite;
-				leftToWrite = length - written;
-				if (++currVpn >= pageTable.length)
-					break;
-				else
-				{
-					pageTable[currVpn - 1].used = false;
-					TranslationEntry currEntry = pageTable[currVpn];
-					if (!currEntry.valid)
-						break;
-					
-					currEntry.used = true;
-					pageOffset = 0;
-					currPpn = currEntry.ppn;
-					currAddr = currPpn * pageSize;
-				}
-			}
-			else
-			{
-				System.arraycopy(memory, currAddr, data, bufOffset, leftToWrite);
-				written += leftToWrite; // written should now equal length
-				bufOffset += leftToWrite;
-			}
-			
-		}
-		pageTable[currVpn].used = false;
-		return written;
+		unpinPhysicalRanges(ranges);
+		return amount;
 	}
 
 	/**
@@ -254,85 +363,132 @@ public class UserProcess {
 	 * @return the number of bytes successfully transferred.
 	 */
 	public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-//		Lib.assertTrue(offset >= 0 && length >= 0
-//				&& offset + length <= data.length);
-
-		if (data == null)
-			return 0;
-		
-		if (!(offset >= 0 && length >= 0
+		if (data == null || !(offset >= 0 && length >= 0
 				&& offset + length <= data.length))
 			return 0;
 		
 		byte[] memory = Machine.processor().getMemory();
-
-		if (vaddr < 0 || vaddr >= memory.length)
-			return 0;
-		
-		
-		int vpn = Processor.pageFromAddress(vaddr);
-		int vpnOffset = Processor.offsetFromAddress(vaddr);
-		TranslationEntry entry = pageTable[vpn];
+		int[] ranges = pinPhysicalRanges(vaddr, length, true);
 		
-		// Make sure the section is not read only
-		if (entry.readOnly)
-			return 0;
+		int amount = 0;
+		for (int i = 0; i < ranges.length; i += 2) {
+			System.arraycopy(data, offset + amount, memory, ranges[i], ranges[i+1]);
+			amount += ranges[i+1];
+		}
 		
-		entry.used = true;
-		int realAddr = entry.ppn*pageSize + vpnOffset;
+		unpinPhysicalRanges(ranges);
+		return amount;
+	}
+
+	/**
+	 * Pin the pages of the user buffer of <i>length</i> bytes at <i>vaddr</i>
+	 * and return the physical memory ranges holding it, in order. Pages that
+	 * are contiguous in physical memory are merged into one range, so that the
+	 * buffer can be copied, or handed to an <tt>OpenFile</tt> as a slice of
+	 * main memory, with as few calls as possible. The ranges stop at the first
+	 * page that cannot be used, so they may cover less than <i>length</i>
+	 * bytes.
+	 * 
+	 * @param vaddr the first byte of the buffer.
+	 * @param length the number of bytes in the buffer.
+	 * @param writing <tt>true</tt> if the kernel will write to the buffer.
+	 * @return the ranges as pairs of physical address and length.
+	 */
+	protected int[] pinPhysicalRanges(int vaddr, int length, boolean writing) {
+		if (vaddr < 0 || length <= 0 || vaddr + length < 0)
+			return new int[0];
+		
+		int end = vaddr + length;
+		int[] ranges = new int[2 * (Processor.pageFromAddress(end - 1)
+				- Processor.pageFromAddress(vaddr) + 1)];
+		int numRanges = 0;
+		
+		for (int pos = vaddr; pos < end;) {
+			int pageOffset = Processor.offsetFromAddress(pos);
+			int amount = Math.min(pageSize - pageOffset, end - pos);
+			
+			int ppn = pinPage(Processor.pageFromAddress(pos), writing);
+			if (ppn < 0)
+				break;
+			
+			int paddr = ppn*pageSize + pageOffset;
+			if (numRanges > 0 && ranges[2*numRanges - 2] + ranges[2*numRanges - 1] == paddr) {
+				ranges[2*numRanges - 1] += amount;
+			}
+			else {
+				ranges[2*numRanges] = paddr;
+				ranges[2*numRanges + 1] = amount;
+				numRanges++;
+			}
+			pos += amount;
+		}
 		
-		// for now, just assume that virtual addresses equal physical addresses
-		if (realAddr < 0 || realAddr >= memory.length || !entry.valid)
-		{
-			entry.used = false;
-			return 0;
+		return Arrays.copyOf(ranges, 2*numRanges);
+	}
+	
+	/**
+	 * Unpin the pages returned by <tt>pinPhysicalRanges()</tt>.
+	 * 
+	 * @param ranges the ranges returned by <tt>pinPhysicalRanges()</tt>.
+	 */
+	protected void unpinPhysicalRanges(int[] ranges) {
+		for (int i = 0; i < ranges.length; i += 2) {
+			int firstPage = Processor.pageFromAddress(ranges[i]);
+			int lastPage = Processor.pageFromAddress(ranges[i] + ranges[i+1] - 1);
+			for (int ppn = firstPage; ppn <= lastPage; ppn++)
+				unpinPage(ppn);
 		}
+	}
+	
+	/**
+	 * Make the specified page resident and keep it there until
+	 * <tt>unpinPage()</tt>. Pages are never evicted here, but the frame's pin
+	 * keeps <tt>fork()</tt> from sharing it while the kernel writes to it.
+	 * Marks the page used, and dirty if <i>writing</i>.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @param writing <tt>true</tt> if the kernel will write to the page.
+	 * @return the physical page number, or -1 if the page is not valid or is
+	 * read-only, and not copy-on-write, and <i>writing</i> is set.
+	 */
+	protected int pinPage(int vpn, boolean writing) {
+		if (vpn < 0 || vpn >= pageTable.length)
+			return -1;
 		
-		// keeps track of what's written to data
-		int written = 0;
-		int bufOffset = offset;
-		int pageOffset = vpnOffset;
-		int currAddr = realAddr;
-		int leftToWrite = length;
-		int currVpn = vpn;
-		int currPpn = entry.ppn;
+		TranslationEntry entry = pageTable[vpn];
 		
-		while (written < length)
-		{
-			if (pageOffset + leftToWrite > pageSize)
-			{
-				int amountToWrite = pageSize - pageOffset;
-				System.arraycopy(data, bufOffset, memory, currAddr, amountToWrite);
-				written += amountToWrite;
-				bufOffset += amountToWrite;
-				leftToWrite = length - written;
-				if (++currVpn >= pageTable.length)
-					break;
-				else
-				{
-					pageTable[currVpn - 1].used = false;
-					TranslationEntry currEntry = pageTable[currVpn];
-					
-					// Make sure the next page is also not read only
-					if (!currEntry.valid || currEntry.readOnly)
-						break;
-					
-					currEntry.used = true;
-					pageOffset = 0;
-					currPpn = currEntry.ppn;
-					currAddr = currPpn * pageSize;
-				}
-			}
-			else
-			{
-				System.arraycopy(data, bufOffset, memory, currAddr, leftToWrite);
-				written += leftToWrite; // written should now equal length
-				bufOffset += leftToWrite;
-			}
+		// a fork() between breaking copy-on-write and pinning shares it again
+		while (true) {
+			if (writing && entry.readOnly && !breakCopyOnWrite(vpn))
+				return -1;
 			
+			copyOnWriteLock.acquire();
+			if (!entry.valid) {
+				copyOnWriteLock.release();
+				return -1;
+			}
+			if (!writing || !entry.readOnly)
+				break;
+			copyOnWriteLock.release();
 		}
-		pageTable[currVpn].used = false;
-		return written;
+		
+		UserKernel.frames.pin(entry.ppn);
+		entry.used = true;
+		if (writing)
+			entry.dirty = true;
+		int ppn = entry.ppn;
+		
+		copyOnWriteLock.release();
+		return ppn;
+	}
+	
+	/**
+	 * Drop one pin taken by <tt>pinPage()</tt>.
+	 * 
+	 * @param ppn the physical page number returned by <tt>pinPage()</tt>.
+	 */
+	protected void unpinPage(int ppn) {
+		UserKernel.frames.unpin(ppn);
 	}
 
 	/**
@@ -342,52 +498,36 @@ public class UserProcess {
 	 * process's virtual memory.
 	 * 
 	 * @param name the name of the file containing the executable.
-	 * @param args the arguments to pass to the executable.
+	 * @param args the arguments to pass to the executable, packed as for
+	 * <tt>execute(String, byte[], int, int)</tt>.
+	 * @param argc the number of arguments.
+	 * @param argsSize the number of bytes of <i>args</i> in use.
 	 * @return <tt>true</tt> if the executable was successfully loaded.
 	 */
-	private boolean load(String name, String[] args) {
+	private boolean load(String name, byte[] args, int argc, int argsSize) {
 		Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-		if (executable == null) {
-			Lib.debug(dbgProcess, "\topen failed");
-			return false;
-		}
-
-		try {
-			coff = new Coff(executable);
-		}
-		catch (EOFException e) {
-			executable.close();
-			Lib.debug(dbgProcess, "\tcoff load failed");
+		image = UserKernel.coffCache.open(name);
+		if (image == null) {
+			Lib.debug(dbgProcess, "\topen or coff load failed");
 			return false;
 		}
+		coff = image.getCoff();
 
 		// make sure the sections are contiguous and start at page 0
 		numPages = 0;
 		for (int s = 0; s < coff.getNumSections(); s++) {
 			CoffSection section = coff.getSection(s);
 			if (section.getFirstVPN() != numPages) {
-				coff.close();
+				image.release();
 				Lib.debug(dbgProcess, "\tfragmented executable");
 				return false;
 			}
 			numPages += section.getLength();
 		}
 
-		// make sure the argv array will fit in one page
-		byte[][] argv = new byte[args.length][];
-		int argsSize = 0;
-		for (int i = 0; i < args.length; i++) {
-			argv[i] = args[i].getBytes();
-			// 4 bytes for argv[] pointer; then string plus one for null byte
-			argsSize += 4 + argv[i].length + 1;
-		}
-		if (argsSize > pageSize) {
-			coff.close();
-			Lib.debug(dbgProcess, "\targuments too long");
-			return false;
-		}
+		// the callers made sure the arguments fit in one page
+		Lib.assertTrue(argsSize <= pageSize);
 
 		// program counter initially points at the program entry point
 		initialPC = coff.getEntryPoint();
@@ -398,26 +538,24 @@ public class UserProcess {
 
 		// and finally reserve 1 page for arguments
 		numPages++;
+		
+		// stacks of threads made by thread_create() go above everything else
+		nextStackVPN = numPages;
 
 		if (!loadSections())
 			return false;
 
-		// store arguments in last page
+		// store arguments in last page, in one write, once their offsets
+		// are turned into addresses
 		int entryOffset = (numPages - 1) * pageSize;
-		int stringOffset = entryOffset + args.length * 4;
 
-		this.argc = args.length;
+		this.argc = argc;
 		this.argv = entryOffset;
 
-		for (int i = 0; i < argv.length; i++) {
-			byte[] stringOffsetBytes = Lib.bytesFromInt(stringOffset);
-			Lib.assertTrue(writeVirtualMemory(entryOffset, stringOffsetBytes) == 4);
-			entryOffset += 4;
-			Lib.assertTrue(writeVirtualMemory(stringOffset, argv[i]) == argv[i].length);
-			stringOffset += argv[i].length;
-			Lib.assertTrue(writeVirtualMemory(stringOffset, new byte[] { 0 }) == 1);
-			stringOffset += 1;
-		}
+		for (int i = 0; i < argc; i++)
+			Lib.bytesFromInt(args, i * 4, entryOffset
+					+ Lib.bytesToInt(args, i * 4));
+		Lib.assertTrue(writeVirtualMemory(entryOffset, args, 0, argsSize) == argsSize);
 
 //		byte[] mem = Machine.processor().getMemory();
 		
@@ -435,11 +573,28 @@ public class UserProcess {
 	 */
 	protected boolean loadSections() {
 		if (numPages > Machine.processor().getNumPhysPages()) {
-			coff.close();
+			image.release();
 			Lib.debug(dbgProcess, "\tinsufficient physical memory");
 			return false;
 		}
 		
+		// take every page the program needs at once
+		int numSectionPages = 0;
+		for (int s = 0; s < coff.getNumSections(); s++)
+			numSectionPages += coff.getSection(s).getLength();
+		
+		int[] ppns = UserKernel.frames.allocate(numSectionPages);
+		int[] stackPPNs = (ppns == null) ? null
+				: UserKernel.frames.allocateZeroed(stackPages + 1);
+		if (stackPPNs == null) {
+			if (ppns != null)
+				UserKernel.frames.free(ppns, ppns.length);
+			image.release();
+			Lib.debug(dbgProcess, "\tinsufficient free physical memory");
+			return false;
+		}
+		int nextPPN = 0;
+		
 		// load sections
 		for (int s = 0; s < coff.getNumSections(); s++) {
 			CoffSection section = coff.getSection(s);
@@ -456,26 +611,10 @@ public class UserProcess {
 				//Modification for Proj 2
 				TranslationEntry entry = pageTable[vpn];
 				
-				UserKernel.physPageMutex.P();
-				Integer thePage = null;
-				try
-			    {
-			    	thePage = UserKernel.physicalPages.removeFirst();
-
-			    }
-			    catch (NoSuchElementException e)
-			    {
-			    	// Not enough physical memory left, so give the pages back
-			    	// to the processor and return false
-			    	unloadSections();
-			    	return false;
-			    }
-				UserKernel.physPageMutex.V();
-				
-				entry.ppn = thePage;
+				entry.ppn = ppns[nextPPN++];
 				entry.valid = true;
 				entry.readOnly = section.isReadOnly();
-				section.loadPage(i, entry.ppn);
+				image.loadPage(s, i, entry.ppn);
 			}
 		}
 		
@@ -486,24 +625,7 @@ public class UserProcess {
 		//       from high to low memory.
 		for (int i = numPages-9; i < numPages; i++) {
 		    TranslationEntry entry = pageTable[i];
-		    UserKernel.physPageMutex.P();
-		    Integer pageNumber = null;
-		    try
-		    {
-		    	pageNumber = UserKernel.physicalPages.removeFirst();
-
-		    }
-		    catch (NoSuchElementException e)
-		    {
-		    	// Not enough physical memory left, so give the pages back
-		    	// to the processor and return false
-		    	unloadSections();
-		    	return false;
-		    }
-		    
-		    
-		    UserKernel.physPageMutex.V();
-		    entry.ppn = pageNumber;
+		    entry.ppn = stackPPNs[i - (numPages-9)];
 		    entry.valid = true;
 		}
 
@@ -514,17 +636,18 @@ public class UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
+		int[] ppns = new int[pageTable.length];
+		int count = 0;
 		
 		for (int i = 0; i < pageTable.length; i++) {
 			
 		    TranslationEntry entry = pageTable[i];
 		    
-		    if (entry.valid) {
-		    	UserKernel.physPageMutex.P();
-		    	UserKernel.physicalPages.add(entry.ppn);
-		    	UserKernel.physPageMutex.V();
-		    }
+		    if (entry.valid)
+		    	ppns[count++] = entry.ppn;
 		}
+		
+		UserKernel.frames.free(ppns, count);
 	}
 
 	/**
@@ -561,10 +684,7 @@ public class UserProcess {
 		
 		//need this chunk?
 		unloadSections();
-		for (int i = 2; i < fileDescriptor.length; i++) {
-		    if (fileDescriptor[i] != null)
-			fileDescriptor[i].close();
-		}
+		fileTable.closeAll();
 		
 		Machine.halt();
 
@@ -579,7 +699,7 @@ public class UserProcess {
 		
 		//load the "program" to insert into the child process hither
 		String filename = null;
-		filename = readVirtualMemoryString(file,256);
+		filename = readVirtualMemoryString(file, maxStringLength);
 		
 		//Check arguments first
 		if(filename == null)
@@ -592,26 +712,42 @@ public class UserProcess {
 			return -1;
 		}
 		
-		//Create string array to represent the "args"
-		String[] args = new String[argc];
+		// argv must fit in the argument page of the child, and be aligned
+		if (argc > pageSize/4 || (argc > 0 && argv % 4 != 0)) {
+			Lib.debug(dbgProcess, "\thandleExec: bad argv");
+			return -1;
+		}
+		
+		//Build the child's argument page in the scratch buffer. The argv
+		//pointers are read into its argv[] slots, and each slot becomes the
+		//offset of its string once the string is copied in after them.
+		int argsSize = argc*4;
+		byte[] bytes = takeScratch(pageSize);
+		if (readVirtualMemory(argv, bytes, 0, argsSize) < argsSize) {
+			stringScratch = bytes;
+			Lib.debug(dbgProcess, "\thandleExec: Could not read argv from Virtual Memory");
+			return -1;
+		}
 		
-		//The buffer to read virtual memory into
-		byte[] buffer = new byte[4];
-
-		//allocating program arguments to args[]
 		for (int i = 0; i < argc; i++) 
 		{
-			Lib.assertTrue(readVirtualMemory(argv+i*4, buffer) == buffer.length);
-            
-			args[i] = readVirtualMemoryString(Lib.bytesToInt(buffer, 0),256);
+			int length = -1;
+			if (argsSize < pageSize)
+				length = readVirtualMemoryString(Lib.bytesToInt(bytes, i*4),
+						bytes, argsSize,
+						Math.min(maxStringLength, pageSize - argsSize - 1));
 			
 			//fail
-			if (args[i] == null)
+			if (length < 0)
 			{
+				stringScratch = bytes;
 				Lib.debug(dbgProcess, "\thandleExec: Error reading arg "
-						+ i + " from virtual memory");
+						+ i + " from virtual memory, or arguments too long");
 				return -1;
 			}
+			
+			Lib.bytesFromInt(bytes, i*4, argsSize);
+			argsSize += length + 1;
 		}
 		
 		//Create new child user process
@@ -624,7 +760,8 @@ public class UserProcess {
 		child.parent = this;
 		
 		//loading program into child
-		boolean insertProgram = child.execute(filename, args);
+		boolean insertProgram = child.execute(filename, bytes, argc, argsSize);
+		stringScratch = bytes;
 		
 		//successful loading returns child pID to the parent process
 		if(insertProgram) {
@@ -634,6 +771,164 @@ public class UserProcess {
 		return -1;
 	}
 	
+	/**
+	 * Handle the fork() system call. The child is a copy of this process with
+	 * one thread, a copy of the calling thread, for which fork() returns 0.
+	 * The two processes share their pages until one of them writes to a page;
+	 * see <tt>shareAddressSpace()</tt>.
+	 */
+	private int handleFork() {
+		Processor processor = Machine.processor();
+		
+		// the child resumes after the syscall instruction, with 0 in $v0
+		int[] registers = new int[Processor.numUserRegisters];
+		for (int i = 0; i < registers.length; i++)
+			registers[i] = processor.readRegister(i);
+		registers[Processor.regV0] = 0;
+		registers[Processor.regPC] = registers[Processor.regNextPC];
+		registers[Processor.regNextPC] += 4;
+		
+		UserProcess child = newUserProcess();
+		
+		threadLock.acquire();
+		
+		if (exiting || !shareAddressSpace(child)) {
+			threadLock.release();
+			child.fileTable.closeAll();
+			return -1;
+		}
+		
+		child.numPages = numPages;
+		child.argc = argc;
+		child.argv = argv;
+		child.nextStackVPN = nextStackVPN;
+		child.freeStacks.addAll(freeStacks);
+		
+		threadLock.release();
+		
+		child.fileTable.closeAll();
+		child.fileTable = new FileDescriptorTable(fileTable);
+		
+		UThread thread = new UThread(child, 0, registers);
+		thread.stackVPN = ((UThread) KThread.currentThread()).stackVPN;
+		child.threads.put(thread.tid, thread);
+		child.numThreads = 1;
+		
+		children.put(child.pID, child);
+		child.parent = this;
+		child.incProcessCount();
+		
+		thread.setName("process " + child.pID).fork();
+		return child.pID;
+	}
+	
+	/**
+	 * Map every page of this process into <i>child</i>'s page table. Writable
+	 * pages become read-only and copy-on-write in both processes; the first
+	 * write to one, by either process, makes a private copy with
+	 * <tt>breakCopyOnWrite()</tt>. A writable page whose frame another thread
+	 * has pinned may be being written by the kernel, so the child gets its
+	 * own copy of it at once instead. Called with <tt>threadLock</tt> held.
+	 * 
+	 * @param child the new process.
+	 * @return <tt>true</tt> if successful, or <tt>false</tt> if there is no
+	 * free memory for the copies.
+	 */
+	protected boolean shareAddressSpace(UserProcess child) {
+		int[] ppns = new int[pageTable.length];
+		int count = 0;
+		
+		// pinPage() holds copyOnWriteLock, so no new pins appear while we work
+		copyOnWriteLock.acquire();
+		
+		boolean[] copy = new boolean[pageTable.length];
+		int numCopies = 0;
+		for (int vpn = 0; vpn < pageTable.length; vpn++) {
+			TranslationEntry entry = pageTable[vpn];
+			if (entry.valid && !entry.readOnly
+					&& UserKernel.frames.isPinned(entry.ppn)) {
+				copy[vpn] = true;
+				numCopies++;
+			}
+		}
+		
+		int[] copies = UserKernel.frames.allocate(numCopies);
+		if (copies == null) {
+			copyOnWriteLock.release();
+			Lib.debug(dbgProcess, "\tno memory to copy pinned pages");
+			return false;
+		}
+		
+		byte[] memory = Machine.processor().getMemory();
+		int nextCopy = 0;
+		for (int vpn = 0; vpn < pageTable.length; vpn++) {
+			TranslationEntry entry = pageTable[vpn];
+			if (!entry.valid)
+				continue;
+			
+			if (copy[vpn]) {
+				int ppn = copies[nextCopy++];
+				System.arraycopy(memory, entry.ppn*pageSize, memory,
+						ppn*pageSize, pageSize);
+				child.pageTable[vpn] = new TranslationEntry(vpn, ppn, true,
+						false, false, false);
+				continue;
+			}
+			
+			if (!entry.readOnly) {
+				entry.readOnly = true;
+				copyOnWrite[vpn] = true;
+			}
+			child.copyOnWrite[vpn] = copyOnWrite[vpn];
+			
+			child.pageTable[vpn] = new TranslationEntry(entry);
+			child.pageTable[vpn].used = false;
+			child.pageTable[vpn].dirty = false;
+			ppns[count++] = entry.ppn;
+		}
+		UserKernel.frames.share(ppns, count);
+		
+		copyOnWriteLock.release();
+		return true;
+	}
+	
+	/**
+	 * Give this process a private, writable copy of a copy-on-write page. If
+	 * no other process still shares the page, it is simply made writable.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return <tt>true</tt> if the page is now writable, or <tt>false</tt> if
+	 * it is not a copy-on-write page or there is no free memory for the copy.
+	 */
+	protected boolean breakCopyOnWrite(int vpn) {
+		if (vpn < 0 || vpn >= pageTable.length)
+			return false;
+		
+		TranslationEntry entry = pageTable[vpn];
+		
+		copyOnWriteLock.acquire();
+		
+		// another thread of this process may have copied it first
+		if (!copyOnWrite[vpn]) {
+			boolean writable = entry.valid && !entry.readOnly;
+			copyOnWriteLock.release();
+			return writable;
+		}
+		
+		int ppn = UserKernel.frames.unshare(entry.ppn);
+		if (ppn == -1) {
+			copyOnWriteLock.release();
+			Lib.debug(dbgProcess, "\tno memory to copy page " + vpn);
+			return false;
+		}
+		entry.ppn = ppn;
+		entry.readOnly = false;
+		copyOnWrite[vpn] = false;
+		
+		copyOnWriteLock.release();
+		return true;
+	}
+	
 	/**
 	 * Handle the join() system call.
 	 */
@@ -653,21 +948,24 @@ public class UserProcess {
 		// Lock should appropriately handle synchronization of child's status
 		Integer childStatus = child.exitStatus;
 
-
-		if (childStatus == null)
+		// joinCond is shared by every child, and interruptThreads() wakes it
+		// too if this process starts to exit
+		while (childStatus == null && !exiting)
 		{
 			statusLock.acquire();
 			child.statusLock.release();
-			joinCond.sleep();
+			if (!exiting)
+				joinCond.sleep();
 			statusLock.release();
 			
 			child.statusLock.acquire();
-			// Status better be in the table now
 			childStatus = child.exitStatus;
 
 		}
 		child.statusLock.release();
-//		Lib.assertTrue(childStatus != null);
+		
+		if (childStatus == null)
+			return -1;
 		
 		// Child should no longer be joinable as in syscall.h
 		children.remove(processID);
@@ -685,22 +983,98 @@ public class UserProcess {
 	}
 	
 	/**
-	 * Handle the exit() system call.
+	 * Handle the exit() system call. Every thread of this process dies; the
+	 * last one to go releases the process's resources.
 	 */
 	private int handleExit(int status) {
-	
-		unloadSections();
-		for (int i = 2; i < fileDescriptor.length; i++) {
-		    if (fileDescriptor[i] != null)
-			fileDescriptor[i].close();
+		threadLock.acquire();
+		boolean first = !exiting;
+		if (first) {
+			exiting = true;
+			processStatus = status;
 		}
+		threadLock.release();
+		
+		if (first)
+			interruptThreads();
+		
+		finishThread();
+		return status;
+	}
+	
+	/**
+	 * Wake the threads of this process that are blocked in the kernel, so
+	 * that they see that the process is exiting and die. Threads running
+	 * user code die when they are next scheduled; see
+	 * <tt>UThread.restoreState()</tt>. Each kind of wait checks
+	 * <tt>isExiting()</tt> under the lock it sleeps with, so a thread that
+	 * was about to block does not sleep after its wakeup has been sent.
+	 * Console reads never block, and thread_join() waits only for threads
+	 * that are woken here.
+	 */
+	private void interruptThreads() {
+		UserKernel.futex.cancel(this);
+		
+		for (OpenFile file : fileTable.getFiles())
+			Pipe.interrupt(file);
+		
+		if (asyncIO != null)
+			asyncIO.interrupt();
 		
-		// TODO: Still need to return status to parent somehow or set parent pointer to none
 		statusLock.acquire();
-		exitStatus = status;
+		joinCond.wakeAll();
 		statusLock.release();
-		
-		// Synchronize so parent cannot become null after the check
+	}
+	
+	/**
+	 * Terminate the current thread, freeing its stack. If it is the last
+	 * thread of this process, the process exits too, with the status given to
+	 * exit() or, if no thread called exit(), the status of this thread. A
+	 * thread that nobody has joined leaves only its status behind.
+	 */
+	private void finishThread() {
+		UThread thread = (UThread) KThread.currentThread();
+		
+		threadLock.acquire();
+		if (threads.remove(thread.tid) != null)
+			finishedThreads.put(thread.tid, thread.exitStatus);
+		if (thread.stackVPN >= 0) {
+			freeStack(thread.stackVPN);
+			freeStacks.add(thread.stackVPN);
+		}
+		boolean last = (--numThreads == 0);
+		threadLock.release();
+		
+		if (last)
+			exitProcess(exiting ? processStatus : thread.exitStatus);
+		
+		UThread.finish();
+	}
+	
+	/**
+	 * Release the resources of this process and report <i>status</i> to its
+	 * parent. Called by the last thread of the process.
+	 */
+	private void exitProcess(int status) {
+		
+		// close descriptors first, so an asynchronous read of a pipe that only
+		// this process writes sees end of file instead of waiting forever
+		fileTable.closeAll();
+		
+		// requests in flight still refer to this process's memory
+		if (asyncIO != null)
+			asyncIO.drain();
+		
+		unloadSections();
+		if (image != null)
+			image.release();
+		
+		// TODO: Still need to return status to parent somehow or set parent pointer to none
+		statusLock.acquire();
+		exitStatus = status;
+		statusLock.release();
+		
+		// Synchronize so parent cannot become null after the check
 		parentMutex.P();
 		if (parent != null)
 		{
@@ -720,14 +1094,239 @@ public class UserProcess {
 			aChild.parentMutex.V();
 		}
 		
+		Lib.debug(dbgProcess, "Process " + pID + " CPU usage: " + cpuBandwidth);
+		
+		SyscallStats.report("Process " + pID + " syscalls", syscallStats);
+		UserKernel.addSyscallStats(syscallStats);
+		
 		// Handles calling terminate when this is the last process
 		decProcessCount();
+	}
+	
+	/**
+	 * Handle the thread_create() system call. Starts a new thread in this
+	 * process, with its own stack, that runs the user code at <i>start</i>
+	 * with <i>arg</i> in $a0 and <i>func</i> in $a1. The <tt>start.s</tt> stub
+	 * passes a trampoline as <i>start</i> that calls <i>func(arg)</i> and then
+	 * thread_exit() with its return value.
+	 */
+	private int handleThreadCreate(int func, int arg, int start)
+	{
+		if (Processor.pageFromAddress(start) >= numPages
+				|| Processor.pageFromAddress(func) >= numPages)
+			return -1;
 		
+		threadLock.acquire();
 		
-		UThread.finish();
+		if (exiting) {
+			threadLock.release();
+			return -1;
+		}
+		
+		int vpn = freeStacks.isEmpty() ? nextStackVPN : freeStacks.removeFirst();
+		if (vpn + stackPages > pageTable.length || !allocateStack(vpn)) {
+			if (vpn != nextStackVPN)
+				freeStacks.addFirst(vpn);
+			threadLock.release();
+			Lib.debug(dbgProcess, "\thandleThreadCreate: no room for a stack");
+			return -1;
+		}
+		if (vpn == nextStackVPN)
+			nextStackVPN += stackPages;
+		numPages = Math.max(numPages, vpn + stackPages);
+		
+		UThread thread = new UThread(this, nextTID++, start,
+				(vpn + stackPages) * pageSize, arg, func);
+		thread.stackVPN = vpn;
+		threads.put(thread.tid, thread);
+		numThreads++;
+		
+		threadLock.release();
+		
+		thread.setName("process " + pID + " thread " + thread.tid).fork();
+		return thread.tid;
+	}
+	
+	/**
+	 * Handle the thread_join() system call. Waits for the thread <i>tid</i>
+	 * of this process to finish and stores its status at <i>status</i>,
+	 * unless <i>status</i> is 0. A thread can be joined only once.
+	 */
+	private int handleThreadJoin(int tid, int status)
+	{
+		threadLock.acquire();
+		UThread thread = threads.remove(tid);
+		Integer exitStatus = finishedThreads.remove(tid);
+		if (thread == KThread.currentThread()) {
+			threads.put(tid, thread);
+			thread = null;
+		}
+		threadLock.release();
+		
+		if (thread != null) {
+			thread.join();
+			exitStatus = thread.exitStatus;
+		}
+		else if (exitStatus == null) {
+			return -1;
+		}
+		
+		if (status != 0) {
+			byte[] statusAry = Lib.bytesFromInt(exitStatus.intValue());
+			if (writeVirtualMemory(status, statusAry) != statusAry.length)
+				return -1;
+		}
+		return 0;
+	}
+	
+	/**
+	 * Handle the thread_exit() system call. Only the calling thread
+	 * terminates, unless it is the last one.
+	 */
+	private int handleThreadExit(int status)
+	{
+		((UThread) KThread.currentThread()).exitStatus = status;
+		
+		finishThread();
 		return status;
 	}
 	
+	/**
+	 * Make the <tt>stackPages</tt> pages starting at <i>vpn</i> usable as a
+	 * thread stack, filled with zeroes.
+	 * 
+	 * @param vpn the first page of the stack.
+	 * @return <tt>true</tt> if successful.
+	 */
+	protected boolean allocateStack(int vpn)
+	{
+		int[] ppns = UserKernel.frames.allocateZeroed(stackPages);
+		if (ppns == null)
+			return false;
+		
+		for (int i = vpn; i < vpn + stackPages; i++) {
+			int ppn = ppns[i - vpn];
+			
+			TranslationEntry entry = pageTable[i];
+			entry.ppn = ppn;
+			entry.valid = true;
+			entry.readOnly = false;
+			entry.used = false;
+			entry.dirty = false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Release the pages of a stack made by <tt>allocateStack()</tt>.
+	 * 
+	 * @param vpn the first page of the stack.
+	 */
+	protected void freeStack(int vpn)
+	{
+		int[] ppns = new int[stackPages];
+		int count = 0;
+		
+		for (int i = vpn; i < vpn + stackPages; i++) {
+			TranslationEntry entry = pageTable[i];
+			if (entry.valid) {
+				entry.valid = false;
+				copyOnWrite[i] = false;
+				ppns[count++] = entry.ppn;
+			}
+		}
+		
+		UserKernel.frames.free(ppns, count);
+	}
+	
+	/**
+	 * Test if a thread of this process has called exit(), so that the other
+	 * threads should die as soon as they enter the kernel.
+	 * 
+	 * @return <tt>true</tt> if this process is exiting.
+	 */
+	public boolean isExiting()
+	{
+		return exiting;
+	}
+	
+	
+	/**
+	 * Handle the cpulimit() system call. Limits the user threads of this
+	 * process to <i>quota</i> ticks of every <i>period</i> ticks; a quota of 0
+	 * removes the limit.
+	 */
+	private int handleCpuLimit(int quota, int period)
+	{
+		if (!cpuBandwidth.setLimit(quota, period))
+			return -1;
+		
+		Lib.debug(dbgProcess, "Process " + pID + " CPU limit: " + cpuBandwidth);
+		return 0;
+	}
+	
+	/**
+	 * Return the CPU bandwidth group shared by the threads of this process,
+	 * which also holds its throttling statistics.
+	 * 
+	 * @return the CPU bandwidth group of this process.
+	 */
+	public CPUBandwidth getCPUBandwidth()
+	{
+		return cpuBandwidth;
+	}
+	
+	/**
+	 * Handle the wait() system call. Sleeps until another thread calls wake()
+	 * on the same word, if the word at <i>addr</i> still holds
+	 * <i>expected</i>.
+	 */
+	private int handleWait(int addr, int expected)
+	{
+		return UserKernel.futex.wait(this, addr, expected);
+	}
+	
+	/**
+	 * Handle the wake() system call. Wakes up to <i>n</i> threads sleeping in
+	 * wait() on the word at <i>addr</i>.
+	 */
+	private int handleWake(int addr, int n)
+	{
+		return UserKernel.futex.wake(this, addr, n);
+	}
+	
+	/**
+	 * Make the word at the specified user address resident and keep it there
+	 * until <tt>unpinUserWord()</tt>, and return its physical address. Used by
+	 * the wait() and wake() syscalls, which key their waiters by physical
+	 * address. The page is pinned for writing, so a copy-on-write page gets
+	 * its private frame first and the key does not change when it is written.
+	 * 
+	 * @param vaddr the user address of the word.
+	 * @return the physical address of the word, or -1 if <i>vaddr</i> is not
+	 * a word-aligned address in this process.
+	 */
+	int pinUserWord(int vaddr)
+	{
+		if (vaddr < 0 || vaddr % 4 != 0)
+			return -1;
+		
+		int ppn = pinPage(Processor.pageFromAddress(vaddr), true);
+		if (ppn < 0)
+			return -1;
+		
+		return ppn*pageSize + Processor.offsetFromAddress(vaddr);
+	}
+	
+	/**
+	 * Unpin the page holding a word pinned by <tt>pinUserWord()</tt>.
+	 * 
+	 * @param paddr the physical address returned by <tt>pinUserWord()</tt>.
+	 */
+	void unpinUserWord(int paddr)
+	{
+		unpinPage(Processor.pageFromAddress(paddr));
+	}
 	
 	/**
 	 * Handle the create() system call.
@@ -737,7 +1336,7 @@ public class UserProcess {
 		String filename = null;
 		
 		//Put this line in try catch? If fail return -1
-		filename = readVirtualMemoryString(file,256);
+		filename = readVirtualMemoryString(file, maxStringLength);
 		
 		if(filename == null)
 		{
@@ -745,33 +1344,7 @@ public class UserProcess {
 			return -1;
 		}
 		
-		//Set to "true" to create a file if it does not already exist
-		OpenFile theFile = ThreadedKernel.fileSystem.open(filename, true);
-		
-		if(theFile == null)
-		{
-			Lib.debug(dbgProcess, "\thandleCreate: Could not open file from filesystem");
-			return -1;
-		}
-		else //theFile != null
-		{
-			int i=2;
-			for(; i<fileDescriptor.length; i++) 
-			{
-				if(fileDescriptor[i] == null)
-				{
-					fileDescriptor[i] = theFile;
-					return i;	//"Creating" the file by adding it to the file descriptor
-				}
-			}
-			if(i == fileDescriptor.length)
-			{
-				Lib.debug(dbgProcess, "\thandleCreate: No more space in file descriptor");
-				return -1;
-			}
-		}
-		
-		return -1;
+		return openFile(filename, true);
 	}
 	
 	/**
@@ -782,7 +1355,7 @@ public class UserProcess {
 		String filename = null;
 		
 		//Put this line in try catch? If fail return -1
-		filename = readVirtualMemoryString(file,256);
+		filename = readVirtualMemoryString(file, maxStringLength);
 		
 		if(filename == null)
 		{
@@ -790,75 +1363,121 @@ public class UserProcess {
 			return -1;
 		}
 		
-		//Set to "false" to DON'T create a file if it does not already exist
-		OpenFile theFile = ThreadedKernel.fileSystem.open(filename, false);
+		return openFile(filename, false);
+	}
+	
+	/**
+	 * Open the named file and give it the lowest free file descriptor.
+	 */
+	private int openFile(String filename, boolean create)
+	{
+		OpenFileTable.Entry entry = UserKernel.openFiles.open(filename, create);
 		
-		if(theFile == null)
+		if(entry == null)
 		{
-			Lib.debug(dbgProcess, "\thandleOpen: Could not open file from filesystem");
+			Lib.debug(dbgProcess, "\topenFile: Could not open file from filesystem");
 			return -1;
 		}
-		else //theFile != null
+		
+		int fd = fileTable.add(entry);
+		if (fd == -1)
 		{
-			int i=2;
-			for(; i<fileDescriptor.length; i++) 
-			{
-				if(fileDescriptor[i] == null)
-				{
-					fileDescriptor[i] = theFile;
-					return i;	//"Opening" the file by adding it to the file descriptor
-				}
-			}
-			if(i == fileDescriptor.length)
-			{
-				Lib.debug(dbgProcess, "\thandleOpen: No more space in file descriptor");
-				return -1;
-			}
+			Lib.debug(dbgProcess, "\topenFile: No more space in file descriptor table");
+			UserKernel.openFiles.release(entry);
 		}
-		
-		return -1;
+		return fd;
 	}
 	
 	/**
-	 * Handle the close() system call.
+	 * Handle the pipe() system call. Makes a new <tt>Pipe</tt> and stores the
+	 * descriptors of its read and write ends in <i>fds</i>[0] and
+	 * <i>fds</i>[1].
 	 */
-	private int handleClose(int file)
+	private int handlePipe(int fds)
 	{
-		// Can close FD 0 and 1
-		if(file<0 || file>15)
+		Pipe pipe = new Pipe();
+		OpenFileTable.Entry readEnd = UserKernel.openFiles.add(pipe.openForReading());
+		OpenFileTable.Entry writeEnd = UserKernel.openFiles.add(pipe.openForWriting());
+		
+		int readFD = fileTable.add(readEnd);
+		int writeFD = (readFD == -1) ? -1 : fileTable.add(writeEnd);
+		if (writeFD == -1)
 		{
-			Lib.debug(dbgProcess, "\thandleClose: Trying to close the file descriptor "
-					+ file + " which is outside the range");
+			Lib.debug(dbgProcess, "\thandlePipe: No more space in file descriptor table");
+			if (readFD == -1)
+				UserKernel.openFiles.release(readEnd);
+			else
+				fileTable.close(readFD);
+			UserKernel.openFiles.release(writeEnd);
 			return -1;
 		}
 		
-		OpenFile theFile = fileDescriptor[file];
-		
-		if(theFile == null)
+		byte[] buf = new byte[8];
+		Lib.bytesFromInt(buf, 0, readFD);
+		Lib.bytesFromInt(buf, 4, writeFD);
+		if (writeVirtualMemory(fds, buf) != buf.length)
 		{
-			Lib.debug(dbgProcess, "\thandleClose: Trying to close a file that does not exist");
+			fileTable.close(readFD);
+			fileTable.close(writeFD);
 			return -1;
 		}
-		else
+		return 0;
+	}
+	
+	/**
+	 * Handle the io_setup() system call. Sets up asynchronous I/O through the
+	 * <tt>struct io_ring</tt> at <i>ring</i>; see <tt>AsyncIO</tt>.
+	 */
+	private int handleIOSetup(int ring, int entries)
+	{
+		threadLock.acquire();
+		boolean ok = (asyncIO == null);
+		if (ok) {
+			asyncIO = AsyncIO.setup(this, ring, entries);
+			ok = (asyncIO != null);
+		}
+		threadLock.release();
+		
+		return ok ? 0 : -1;
+	}
+	
+	/**
+	 * Handle the io_enter() system call.
+	 */
+	private int handleIOEnter(int toSubmit, int minComplete)
+	{
+		if (asyncIO == null)
+			return -1;
+		
+		return asyncIO.enter(toSubmit, minComplete);
+	}
+	
+	/**
+	 * Handle the close() system call.
+	 */
+	protected int handleClose(int file)
+	{
+		// Can close FD 0 and 1
+		if (!fileTable.close(file))
 		{
-			theFile.close();
-			fileDescriptor[file] = null;
-			return 0;
+			Lib.debug(dbgProcess, "\thandleClose: Trying to close a file that does not exist");
+			return -1;
 		}
+		return 0;
 	}
 	
 	/**
 	 * Handle the read() system call.
 	 */
-	private int handleRead(int file, int buffer, int count)
+	protected int handleRead(int file, int buffer, int count)
 	{
-		if(file<0 || file == 1 || file>15)
+		if(file == 1)
 		{
-			Lib.debug(dbgProcess, "\thandleRead: Trying to read a file that does not exist, fd out of range " + file);
+			Lib.debug(dbgProcess, "\thandleRead: Trying to read from stdout");
 			return -1;
 		}
 		
-		OpenFile theFile = fileDescriptor[file];
+		OpenFile theFile = fileTable.get(file);
 		
 		if(theFile == null)
 		{
@@ -866,135 +1485,259 @@ public class UserProcess {
 			return -1;
 		}
 		
-		// TODO: Only write up to a pages amount and do multiple writes if need be
-		byte[] buff = new byte[pageSize];
-		int leftToRead = count;
-		int totalRead = 0;
-		int readByte = 0;
-		//page 1024
-		while (leftToRead > pageSize)
-		{
-			readByte = theFile.read(buff, 0, pageSize);
-			if(readByte == -1)
-			{
-				Lib.debug(dbgProcess, "\thandleRead: Failed to read file");
-				return -1;
-			}
-			else if (readByte == 0)
-			{
-				return totalRead;
-			}
-			
-			//write contents from buff to buffer
-			int readByte2 = writeVirtualMemory(buffer, buff, 0, readByte);
-			
-			if (readByte != readByte2)
-			{
-				Lib.debug(dbgProcess, "\thandleRead: Read and write amounts did not match");
-				return -1;
-			}
-			
-			buffer += readByte2;
-			totalRead += readByte2;
-			leftToRead -= readByte2;
-		}
+		if (count < 0)
+			return -1;
 		
-		// The stuff left to write is less that pageSize now
-		readByte = theFile.read(buff, 0, leftToRead);
-		if(readByte == -1)
+		return transferFile(theFile, buffer, count, true);
+	}
+	
+	/**
+	 * Handle the write() system call.
+	 */
+	protected int handleWrite(int file, int buffer, int count)
+	{
+		if (file == 0)
 		{
-			Lib.debug(dbgProcess, "\thandleRead: Failed to read file");
+			Lib.debug(dbgProcess, "\thandleRead: Trying to write to stdin");
 			return -1;
 		}
+		OpenFile theFile = fileTable.get(file);
 		
-		//write contents from buff to buffer
-		int readByte2 = writeVirtualMemory(buffer, buff, 0, readByte);
-		
-		if (readByte != readByte2)
+		if(theFile == null)
 		{
-			Lib.debug(dbgProcess, "\thandleRead: Read and write amounts did not match");
+			Lib.debug(dbgProcess, "\thandleRead: Trying to write to a file that does not exist");
 			return -1;
 		}
+			
+		if (count < 0)
+			return -1;
 		
-		totalRead += readByte2;
-		
-		return totalRead; 
+		return transferFile(theFile, buffer, count, false);
 	}
 	
 	/**
-	 * Handle the write() system call.
+	 * Handle the readv() system call.
 	 */
-	private int handleWrite(int file, int buffer, int count)
+	protected int handleReadv(int file, int iov, int iovcnt)
 	{
-		if (file == 0)
+		OpenFile theFile = fileTable.get(file);
+		if (file == 1 || theFile == null)
 		{
-			Lib.debug(dbgProcess, "\thandleRead: Trying to write to stdin");
+			Lib.debug(dbgProcess, "\thandleReadv: bad file descriptor " + file);
 			return -1;
 		}
-		if(file<1 || file>15)
+		
+		return transferVector(theFile, iov, iovcnt, true);
+	}
+	
+	/**
+	 * Handle the writev() system call.
+	 */
+	protected int handleWritev(int file, int iov, int iovcnt)
+	{
+		OpenFile theFile = fileTable.get(file);
+		if (file == 0 || theFile == null)
 		{
-			Lib.debug(dbgProcess, "\thandleRead: Trying to write to a file that does not exist");
+			Lib.debug(dbgProcess, "\thandleWritev: bad file descriptor " + file);
 			return -1;
 		}
 		
-		OpenFile theFile = fileDescriptor[file];
+		return transferVector(theFile, iov, iovcnt, false);
+	}
+	
+	/**
+	 * Move data between <i>file</i> and the <i>iovcnt</i> buffers described by
+	 * the <tt>struct iovec</tt> array at <i>iov</i>, in order. The whole array
+	 * is copied in with one call. Then the buffers are translated together, in
+	 * one pass over up to <tt>transferPages</tt> pages at a time however many
+	 * buffers those pages hold. Pieces that are contiguous in physical memory
+	 * are merged, across buffers too, before the file is read or written.
+	 * Stops early at the first short transfer.
+	 * 
+	 * @return the total number of bytes moved, or -1 if nothing could be
+	 * moved because of an error.
+	 */
+	private int transferVector(OpenFile file, int iov, int iovcnt, boolean reading)
+	{
+		if (iovcnt < 0 || iovcnt > maxIovecs)
+			return -1;
 		
-		if(theFile == null)
+		byte[] vector = new byte[iovcnt * 8];
+		if (readVirtualMemory(iov, vector) != vector.length)
 		{
-			Lib.debug(dbgProcess, "\thandleRead: Trying to write to a file that does not exist");
+			Lib.debug(dbgProcess, "\ttransferVector: bad iovec array");
 			return -1;
 		}
-			
-		// TODO: Only write up to a pages amount and do multiple writes if need be
-		byte[] buff = new byte[pageSize];
-		int leftToWrite = count;
-		int totalWrote = 0;
-		int wroteByte = 0;
-		while (leftToWrite > pageSize)
+		
+		// check every length first, so a bad entry moves nothing
+		int total = 0;
+		for (int i = 0; i < iovcnt; i++)
 		{
-			wroteByte = readVirtualMemory(buffer, buff);
-			
-			int wroteByte2 = theFile.write(buff, 0, wroteByte);
+			int length = Lib.bytesToInt(vector, i*8 + 4);
+			if (length < 0 || total + length < 0)
+				return -1;
+			total += length;
+		}
+		
+		// the file may be an executable whose image is cached
+		if (!reading)
+			UserKernel.coffCache.invalidate(file);
+		
+		byte[] memory = Machine.processor().getMemory();
+		int[] pinned = new int[transferPages];
+		int[] ranges = new int[2*transferPages];
+		
+		// the next byte to translate is byte done of buffer next
+		int next = 0, done = 0;
+		total = 0;
+		
+		while (next < iovcnt)
+		{
+			int numPinned = 0, numRanges = 0;
+			boolean badAddress = false;
 			
-			if (wroteByte != wroteByte2)
+			while (next < iovcnt && numPinned < transferPages)
 			{
-				Lib.debug(dbgProcess, "\tIn handleWrite and not all bytes written");
+				int base = Lib.bytesToInt(vector, next*8);
+				int length = Lib.bytesToInt(vector, next*8 + 4);
+				if (done == length)
+				{
+					next++;
+					done = 0;
+					continue;
+				}
+				
+				int pos = base + done;
+				int ppn = (pos < 0) ? -1
+						: pinPage(Processor.pageFromAddress(pos), reading);
+				if (ppn < 0)
+				{
+					badAddress = true;
+					break;
+				}
+				pinned[numPinned++] = ppn;
+				
+				int pageOffset = Processor.offsetFromAddress(pos);
+				int amount = Math.min(pageSize - pageOffset, length - done);
+				int paddr = ppn*pageSize + pageOffset;
+				if (numRanges > 0
+						&& ranges[2*numRanges - 2] + ranges[2*numRanges - 1] == paddr)
+				{
+					ranges[2*numRanges - 1] += amount;
+				}
+				else
+				{
+					ranges[2*numRanges] = paddr;
+					ranges[2*numRanges + 1] = amount;
+					numRanges++;
+				}
+				done += amount;
 			}
 			
-			if(wroteByte2 == -1)
+			boolean shortTransfer = false;
+			for (int i = 0; i < 2*numRanges && !shortTransfer; i += 2)
 			{
-				Lib.debug(dbgProcess, "\thandleWrite: Failed to write to file");
-				return -1;
+				int moved = reading ? file.read(memory, ranges[i], ranges[i+1])
+						: file.write(memory, ranges[i], ranges[i+1]);
+				if (moved == -1)
+				{
+					Lib.debug(dbgProcess, "\ttransferVector: " + (reading ? "read" : "write")
+							+ " failed");
+					for (int j = 0; j < numPinned; j++)
+						unpinPage(pinned[j]);
+					return (total == 0) ? -1 : total;
+				}
+				
+				total += moved;
+				shortTransfer = (moved < ranges[i+1]);
 			}
-			else if (wroteByte2 == 0)
+			
+			for (int i = 0; i < numPinned; i++)
+				unpinPage(pinned[i]);
+			
+			if (badAddress)
 			{
-				return totalWrote;
+				Lib.debug(dbgProcess, "\ttransferVector: bad buffer address");
+				return (total == 0) ? -1 : total;
 			}
-			
-			buffer += wroteByte2;
-			totalWrote += wroteByte2;
-			leftToWrite -= wroteByte2;
+			if (shortTransfer)
+				break;
 		}
 		
-		// The stuff left to write is less that pageSize now
-		wroteByte = readVirtualMemory(buffer, buff, 0, leftToWrite);
-		
-		int wroteByte2 = theFile.write(buff, 0, wroteByte);
+		return total;
+	}
+	
+	/**
+	 * Move up to <i>count</i> bytes between <i>file</i> and the user buffer at
+	 * <i>buffer</i>. The file reads into, or writes from, main memory
+	 * directly, without a bounce buffer. The buffer is pinned at most
+	 * <tt>transferPages</tt> pages at a time, so that a large transfer cannot
+	 * pin all of physical memory.
+	 * 
+	 * @return the number of bytes moved, or -1 if nothing could be moved
+	 * because of an error.
+	 */
+	private int transferFile(OpenFile file, int buffer, int count, boolean reading)
+	{
+		return transferFile(file, -1, buffer, count, reading);
+	}
+	
+	/**
+	 * Like <tt>transferFile(file, buffer, count, reading)</tt>, but starting at
+	 * byte <i>pos</i> of the file, without moving its file pointer. If
+	 * <i>pos</i> is negative, the file pointer is used and moved as usual.
+	 * Used by <tt>AsyncIO</tt>, whose requests may be in flight together.
+	 */
+	int transferFile(OpenFile file, int pos, int buffer, int count, boolean reading)
+	{
+		byte[] memory = Machine.processor().getMemory();
+		int total = 0;
 		
-		if (wroteByte != wroteByte2)
-		{
-			Lib.debug(dbgProcess, "\tIn handleWrite and not all bytes written");
-		}
+		// the file may be an executable whose image is cached
+		if (!reading)
+			UserKernel.coffCache.invalidate(file);
 		
-		if(wroteByte2 == -1)
+		while (total < count)
 		{
-			Lib.debug(dbgProcess, "\thandleWrite: Failed to write to file");
-			return -1;
+			int chunk = Math.min(count - total, transferPages*pageSize
+					- Processor.offsetFromAddress(buffer + total));
+			int[] ranges = pinPhysicalRanges(buffer + total, chunk, reading);
+			
+			int mapped = 0;
+			boolean shortTransfer = false;
+			for (int i = 0; i < ranges.length && !shortTransfer; i += 2)
+			{
+				int moved;
+				if (pos < 0)
+					moved = reading ? file.read(memory, ranges[i], ranges[i+1])
+							: file.write(memory, ranges[i], ranges[i+1]);
+				else
+					moved = reading ? file.read(pos + total, memory, ranges[i], ranges[i+1])
+							: file.write(pos + total, memory, ranges[i], ranges[i+1]);
+				if (moved == -1)
+				{
+					Lib.debug(dbgProcess, "\ttransferFile: " + (reading ? "read" : "write")
+							+ " failed");
+					unpinPhysicalRanges(ranges);
+					return (total == 0) ? -1 : total;
+				}
+				
+				total += moved;
+				mapped += ranges[i+1];
+				shortTransfer = (moved < ranges[i+1]);
+			}
+			unpinPhysicalRanges(ranges);
+			
+			if (mapped < chunk)
+			{
+				Lib.debug(dbgProcess, "\ttransferFile: bad buffer address");
+				return (total == 0) ? -1 : total;
+			}
+			if (shortTransfer)
+				break;
 		}
 		
-		totalWrote += wroteByte2;
-		
-		return totalWrote;
+		return total;
 	}
 	
 	/**
@@ -1002,7 +1745,7 @@ public class UserProcess {
 	 */
 	private int handleUnlink(int file) 
 	{
-		String filename = readVirtualMemoryString(file,256);
+		String filename = readVirtualMemoryString(file, maxStringLength);
 //		int numOpened;
 		
 		if(filename == null)
@@ -1011,37 +1754,225 @@ public class UserProcess {
 			return -1;
 		}
 		
-		// If the file is in the table, then close it before deleting
-		int indexInTable = isInFDTable(filename);
-		if (indexInTable != -1)
-		{
-			handleClose(indexInTable);
-		}
-		
-		
-		if (ThreadedKernel.fileSystem.remove(filename))
+		// If the file is still open, it is removed on its last close
+		if (UserKernel.openFiles.unlink(filename))
 			return 0;
 		
 		// Should only get here if remove returned false
 		return -1;
 	}
 	
-	private int isInFDTable(String filename)
-	{
-		for (int i = 0; i < fileDescriptor.length; i++)
-		{
-			OpenFile currFile = fileDescriptor[i];
-			if (currFile != null && filename == currFile.getName())
-				return i;
-		}
-		return -1;
-	}
-	
 	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-			syscallUnlink = 9;
+			syscallUnlink = 9, syscallCpuLimit = 13,
+			syscallWait = 14, syscallWake = 15, syscallThreadCreate = 16,
+			syscallThreadJoin = 17, syscallThreadExit = 18, syscallReadv = 19,
+			syscallWritev = 20, syscallFork = 21, syscallPipe = 22,
+			syscallIOSetup = 23, syscallIOEnter = 24;
 
+	/**
+	 * The code that carries out one system call, given the calling process and
+	 * its arguments. Handlers are shared by every process of a class, so they
+	 * keep no state of their own.
+	 */
+	public interface SyscallHandler {
+		/**
+		 * Carry out the system call.
+		 * 
+		 * @param process the process that made the call.
+		 * @return the value to be returned to the user.
+		 */
+		public int handle(UserProcess process, int a0, int a1, int a2, int a3);
+	}
+	
+	/**
+	 * A dispatch table of system call handlers and their names, indexed by
+	 * system call number. Each process class builds one static table, starting
+	 * from a copy of its superclass's table, and sets <tt>syscallTable</tt> to
+	 * it in its constructor, so creating a process allocates no handlers.
+	 */
+	public static class SyscallTable {
+		/**
+		 * Allocate an empty table.
+		 */
+		public SyscallTable() {
+			handlers = new SyscallHandler[maxSyscalls];
+			names = new String[maxSyscalls];
+		}
+		
+		/**
+		 * Allocate a table holding the same system calls as <i>base</i>.
+		 * 
+		 * @param base the table to copy.
+		 */
+		public SyscallTable(SyscallTable base) {
+			handlers = base.handlers.clone();
+			names = base.names.clone();
+		}
+		
+		/**
+		 * Add a system call to this table, replacing any handler already
+		 * registered for <i>number</i>.
+		 * 
+		 * @param number the system call number.
+		 * @param name the name of the system call, for statistics.
+		 * @param handler the code that carries out the system call.
+		 */
+		public void register(int number, String name, SyscallHandler handler) {
+			Lib.assertTrue(number >= 0 && number < maxSyscalls);
+			
+			handlers[number] = handler;
+			names[number] = name;
+		}
+		
+		private SyscallHandler[] handlers;
+		
+		private String[] names;
+	}
+	
+	/**
+	 * Build the table of the system calls listed at <tt>handleSyscall()</tt>.
+	 */
+	private static SyscallTable registerSyscalls() {
+		SyscallTable table = new SyscallTable();
+		
+		table.register(syscallHalt, "halt", new SyscallHandler() {
+			public int handle(UserProcess process, int a0, int a1,
+					int a2, int a3) {
+				return process.handleHalt();
+			}
+		});
+		table.register(syscallExit, "exit", new SyscallHandler() {
+			public int handle(UserProcess process, int a0, int a1,
+					int a2, int a3) {
+				return process.handleExit(a0);
+			}
+		});
+		table.register(syscallExec, "exec", new SyscallHandler() {
+			public int handle(UserProcess process, int a0, int a1,
+					int a2, int a3) {
+				return process.handleExec(a0, a1, a2);
+			}
+		});
+		table.register(syscallJoin, "join", new SyscallHandler() {
+			public int handle(UserProcess process, int a0, int a1,
+					int a2, int a3) {
+				return process.handleJoin(a0, a1);
+			}
+		});
+		table.register(syscallCreate, "creat", new SyscallHandler() {
+			public int handle(UserProcess process, int a0, int a1,
+					int a2, int a3) {
+				return process.handleCreate(a0);
+			}
+		});
+		table.register(syscallOpen, "open", new SyscallHandler() {
+			public int handle(UserProcess process, int a0, int a1,
+					int a2, int a3) {
+				return process.handleOpen(a0);
+			}
+		});
+		table.register(syscallRead, "read", new SyscallHandler() {
+			public int handle(UserProcess process, int a0, int a1,
+					int a2, int a3) {
+				return process.handleRead(a0, a1, a2);
+			}
+		});
+		table.register(syscallWrite, "write", new SyscallHandler() {
+			public int handle(UserProcess process, int a0, int a1,
+					int a2, int a3) {
+				return process.handleWrite(a0, a1, a2);
+			}
+		});
+		table.register(syscallClose, "close", new SyscallHandler() {
+			public int handle(UserProcess process, int a0, int a1,
+					int a2, int a3) {
+				return process.handleClose(a0);
+			}
+		});
+		table.register(syscallUnlink, "unlink", new SyscallHandler() {
+			public int handle(UserProcess process, int a0, int a1,
+					int a2, int a3) {
+				return process.handleUnlink(a0);
+			}
+		});
+		table.register(syscallCpuLimit, "cpulimit", new SyscallHandler() {
+			public int handle(UserProcess process, int a0, int a1,
+					int a2, int a3) {
+				return process.handleCpuLimit(a0, a1);
+			}
+		});
+		table.register(syscallWait, "wait", new SyscallHandler() {
+			public int handle(UserProcess process, int a0, int a1,
+					int a2, int a3) {
+				return process.handleWait(a0, a1);
+			}
+		});
+		table.register(syscallWake, "wake", new SyscallHandler() {
+			public int handle(UserProcess process, int a0, int a1,
+					int a2, int a3) {
+				return process.handleWake(a0, a1);
+			}
+		});
+		table.register(syscallThreadCreate, "thread_create", new SyscallHandler() {
+			public int handle(UserProcess process, int a0, int a1,
+					int a2, int a3) {
+				return process.handleThreadCreate(a0, a1, a2);
+			}
+		});
+		table.register(syscallThreadJoin, "thread_join", new SyscallHandler() {
+			public int handle(UserProcess process, int a0, int a1,
+					int a2, int a3) {
+				return process.handleThreadJoin(a0, a1);
+			}
+		});
+		table.register(syscallThreadExit, "thread_exit", new SyscallHandler() {
+			public int handle(UserProcess process, int a0, int a1,
+					int a2, int a3) {
+				return process.handleThreadExit(a0);
+			}
+		});
+		table.register(syscallReadv, "readv", new SyscallHandler() {
+			public int handle(UserProcess process, int a0, int a1,
+					int a2, int a3) {
+				return process.handleReadv(a0, a1, a2);
+			}
+		});
+		table.register(syscallWritev, "writev", new SyscallHandler() {
+			public int handle(UserProcess process, int a0, int a1,
+					int a2, int a3) {
+				return process.handleWritev(a0, a1, a2);
+			}
+		});
+		table.register(syscallFork, "fork", new SyscallHandler() {
+			public int handle(UserProcess process, int a0, int a1,
+					int a2, int a3) {
+				return process.handleFork();
+			}
+		});
+		table.register(syscallPipe, "pipe", new SyscallHandler() {
+			public int handle(UserProcess process, int a0, int a1,
+					int a2, int a3) {
+				return process.handlePipe(a0);
+			}
+		});
+		table.register(syscallIOSetup, "io_setup", new SyscallHandler() {
+			public int handle(UserProcess process, int a0, int a1,
+					int a2, int a3) {
+				return process.handleIOSetup(a0, a1);
+			}
+		});
+		table.register(syscallIOEnter, "io_enter", new SyscallHandler() {
+			public int handle(UserProcess process, int a0, int a1,
+					int a2, int a3) {
+				return process.handleIOEnter(a0, a1);
+			}
+		});
+		
+		return table;
+	}
+	
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
 	 * <i>syscall</i> argument identifies which syscall the user executed:
@@ -1094,8 +2025,61 @@ public class UserProcess {
 	 * <td>9</td>
 	 * <td><tt>int  unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>13</td>
+	 * <td><tt>int  cpulimit(int quota, int period);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>14</td>
+	 * <td><tt>int  wait(int *addr, int expected);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>15</td>
+	 * <td><tt>int  wake(int *addr, int n);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>16</td>
+	 * <td><tt>int  thread_create(void *(*func)(void *), void *arg);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>17</td>
+	 * <td><tt>int  thread_join(int tid, int *status);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>18</td>
+	 * <td><tt>void thread_exit(int status);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>19</td>
+	 * <td><tt>int  readv(int fd, struct iovec *iov, int iovcnt);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>20</td>
+	 * <td><tt>int  writev(int fd, struct iovec *iov, int iovcnt);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>21</td>
+	 * <td><tt>int  fork();</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>22</td>
+	 * <td><tt>int  pipe(int fds[2]);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>23</td>
+	 * <td><tt>int  io_setup(struct io_ring *ring, int entries);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>24</td>
+	 * <td><tt>int  io_enter(int to_submit, int min_complete);</tt></td>
+	 * </tr>
 	 * </table>
 	 * 
+	 * <p>
+	 * The call is dispatched through <tt>syscallTable</tt>, and counted in the
+	 * process's <tt>SyscallStats</tt>, which are allocated on a system call's
+	 * first use. A syscall with no handler returns -1.
+	 * 
 	 * @param syscall the syscall number.
 	 * @param a0 the first syscall argument.
 	 * @param a1 the second syscall argument.
@@ -1104,32 +2088,26 @@ public class UserProcess {
 	 * @return the value to be returned to the user.
 	 */
 	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
-		switch (syscall) {
-		case syscallHalt:
-			return handleHalt();
-		case syscallExec:
-			return handleExec(a0, a1, a2);
-		case syscallJoin:
-			return handleJoin(a0, a1);
-		case syscallExit:
-			return handleExit(a0);
-		case syscallCreate:
-    	    return handleCreate(a0);
-    	case syscallOpen:
-    	    return handleOpen(a0);
-        case syscallClose:
-            return handleClose(a0);
-        case syscallRead:
-            return handleRead(a0, a1, a2);
-        case syscallWrite:
-            return handleWrite(a0, a1, a2);
-        case syscallUnlink:
-        	return handleUnlink(a0);
-		default:
+		SyscallHandler handler = null;
+		if (syscall >= 0 && syscall < maxSyscalls)
+			handler = syscallTable.handlers[syscall];
+		if (handler == null) {
 			Lib.debug(dbgProcess, "Unknown syscall " + syscall);
-			Lib.assertNotReached("Unknown system call!");
+			return -1;
 		}
-		return 0;
+		
+		SyscallStats stats = syscallStats[syscall];
+		if (stats == null) {
+			stats = new SyscallStats(syscallTable.names[syscall]);
+			syscallStats[syscall] = stats;
+		}
+		long start = Machine.timer().getTime();
+		stats.called();
+		
+		int result = handler.handle(this, a0, a1, a2, a3);
+		
+		stats.returned(Machine.timer().getTime() - start, result == -1);
+		return result;
 	}
 
 	/**
@@ -1145,6 +2123,10 @@ public class UserProcess {
 		// TODO: Handle the unexpected exception case to kill the process
 		//       and appropriately let the parent know how the child exited
 		
+		// another thread called exit()
+		if (exiting)
+			finishThread();
+		
 		switch (cause) {
 		case Processor.exceptionSyscall:
 			int result = handleSyscall(processor.readRegister(Processor.regV0),
@@ -1152,9 +2134,18 @@ public class UserProcess {
 					processor.readRegister(Processor.regA1),
 					processor.readRegister(Processor.regA2),
 					processor.readRegister(Processor.regA3));
+			if (exiting)
+				finishThread();
 			processor.writeRegister(Processor.regV0, result);
 			processor.advancePC();
 			break;
+			
+		case Processor.exceptionReadOnly:
+			// retry the store once the page has been copied
+			if (breakCopyOnWrite(Processor.pageFromAddress(
+					processor.readRegister(Processor.regBadVAddr))))
+				break;
+			// fall through
 
 		default:
 			Lib.debug(dbgProcess, "Unexpected exception: "
@@ -1188,9 +2179,18 @@ public class UserProcess {
 
 	/** The program being run by this process. */
 	protected Coff coff;
+	
+	/** The cached image of the program, which <tt>coff</tt> belongs to. */
+	protected CoffCache.Image image;
 
 	/** This process's page table. */
 	protected TranslationEntry[] pageTable;
+	
+	/** Which pages are shared with another process until written. */
+	protected boolean[] copyOnWrite;
+	
+	/** Protects <tt>copyOnWrite</tt> and the protection it gives pages. */
+	private Lock copyOnWriteLock;
 
 	/** The number of contiguous pages occupied by the program. */
 	protected int numPages;
@@ -1204,10 +2204,25 @@ public class UserProcess {
 
 	protected static final int pageSize = Processor.pageSize;
 
+	/** The most pages read() and write() pin at once. */
+	protected static final int transferPages = 4;
+
+	/** The longest file name or argument a system call accepts. */
+	protected static final int maxStringLength = 256;
+	
+	/** One more than the largest system call number. */
+	public static final int maxSyscalls = 64;
+
+	/** The most buffers readv() and writev() accept in one call. */
+	protected static final int maxIovecs = 64;
+
+	/** The system calls of every <tt>UserProcess</tt>. */
+	protected static final SyscallTable userSyscalls = registerSyscalls();
+
 	protected static final char dbgProcess = 'a';
 	
 	//Added variables
-	protected OpenFile[] fileDescriptor;
+	protected FileDescriptorTable fileTable;
 	
 	// TODO: possibly get rid of currentlyOpened if it is no longer useful
 //	private static Hashtable<String,Integer> currentlyOpened = new Hashtable<String, Integer>();
@@ -1216,7 +2231,7 @@ public class UserProcess {
 	
 	protected int pID;
 	
-	protected Semaphore parentMutex = new Semaphore(1);
+	protected Semaphore parentMutex = new Semaphore(1, "UserProcess.parentMutex");
 	protected UserProcess parent;
 		
 	protected Hashtable<Integer,UserProcess> children = new Hashtable<Integer, UserProcess>();
@@ -1227,6 +2242,41 @@ public class UserProcess {
 	protected Lock statusLock;
 	protected Condition joinCond;
 	
+	// Shared by every UThread of this process
+	protected CPUBandwidth cpuBandwidth;
+	
+	// Set by io_setup()
+	protected AsyncIO asyncIO = null;
+	
+	// Reused by readVirtualMemoryString() and exec(), or null while a thread
+	// has it
+	private byte[] stringScratch = null;
+	
+	// The system calls of this process's class, and their statistics for
+	// this process, by syscall number
+	protected SyscallTable syscallTable;
+	protected SyscallStats[] syscallStats = new SyscallStats[maxSyscalls];
+	
+	// Protects the thread bookkeeping below
+	protected Lock threadLock;
+	
+	// Running threads that have not been joined yet, by thread ID
+	protected HashMap<Integer,UThread> threads = new HashMap<Integer, UThread>();
+	
+	// Exit statuses of finished threads that have not been joined yet
+	protected HashMap<Integer,Integer> finishedThreads = new HashMap<Integer, Integer>();
+	
+	protected int numThreads = 0;
+	protected int nextTID = 1;
+	
+	// Stacks of finished threads, and the first page no stack has used yet
+	protected LinkedList<Integer> freeStacks = new LinkedList<Integer>();
+	protected int nextStackVPN;
+	
+	// Set once a thread calls exit(); processStatus is what it passed
+	protected boolean exiting = false;
+	protected int processStatus;
+	
 //	private static byte[] bigMem = Machine.processor().getMemory();
 
 	
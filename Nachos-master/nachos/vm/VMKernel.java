@@ -1,6 +1,7 @@
 package nachos.vm;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 
@@ -40,8 +41,8 @@ public class VMKernel extends UserKernel {
 		
 //		pinnedPages = new ArrayList<Integer>();
 //		pinLock = new Lock();
-		iptLock = new Lock();
-		spLock = new Lock();
+		iptLock = new Lock("VMKernel.iptLock");
+		spLock = new Lock("VMKernel.spLock");
 //		clockLock = new Lock();
 		fullyPinned = new Condition(iptLock);
 		
@@ -62,14 +63,15 @@ public class VMKernel extends UserKernel {
 		// owning process
 		VMProcess ownProcess;
 		
-		// pinned condition
-		boolean pinned;
+		// the number of holders that need the frame to stay put; the clock
+		// only evicts frames with no pins
+		int pinCount;
 		
 		public MetaData(int vpn, VMProcess ownProcess, boolean pinned)
 		{
 			this.vpn = vpn;
 			this.ownProcess = ownProcess;
-			this.pinned = pinned;
+			this.pinCount = pinned ? 1 : 0;
 		}
 		
 		public TranslationEntry[] getPT() {
@@ -132,9 +134,17 @@ public class VMKernel extends UserKernel {
 		// synchronizing tlb occurs b4 this function call
 		
 		MetaData data = iPageTable[ppn];
-		data.pinned = true;
+		data.pinCount++;
 		iptLock.release();
 		
+		// pages of a mapped file go back to the file, not to swap
+		if (data.ownProcess.evictMappedPage(data.vpn, ppn)) {
+			iptLock.acquire();
+			data.getEntry().valid = false;
+			iPageTable[ppn] = null;
+			return true;
+		}
+		
 		data.ownProcess.spnLock.acquire();
 		Integer spn = data.ownProcess.vpnToSpn.get(data.vpn);
 		if (spn == null) {
@@ -236,7 +246,7 @@ public class VMKernel extends UserKernel {
 //        int loc = diskLoc.get(data);
         iptLock.acquire();
 		iPageTable[data.getEntry().ppn] = data;
-		data.pinned = true;
+		data.pinCount++;
 		iptLock.release();
         int size = Processor.pageSize;
         
@@ -256,7 +266,7 @@ public class VMKernel extends UserKernel {
         System.arraycopy(pageContent,0,mem,data.getEntry().ppn*size,size);
         
         iptLock.acquire();
-        data.pinned = false;
+        data.pinCount--;
         iptLock.release();
 //        swapSpace.remove(data);
 //        freePages.add(freeEntry.ppn);
@@ -268,16 +278,28 @@ public class VMKernel extends UserKernel {
     }
 	
 	public static int allocPage(int vpn, VMProcess process, boolean readOnly){
+		return allocPage(vpn, process, readOnly, false);
+	}
+	
+	/**
+	 * Allocate a frame for a page, as <tt>allocPage(vpn, process, readOnly)</tt>
+	 * does, filled with zeroes if <i>zeroed</i> is set. A free frame will
+	 * usually have been zeroed in the background already; an evicted one is
+	 * zeroed here.
+	 */
+	public static int allocPage(int vpn, VMProcess process, boolean readOnly,
+			boolean zeroed){
 		
 		// kernel needs a static condition variable for all pages pinned
 		int ppn = -1;
+		boolean evicted = false;
 		
 
 		
-		physPageMutex.P();
-		if (physicalPages.size() != 0)
-			ppn = physicalPages.pollFirst();
-		physPageMutex.V();
+		// prefer a frame that lets the page join a superpage
+		ppn = process.allocateFrame(vpn, zeroed);
+		if (ppn == -1)
+			ppn = zeroed ? frames.allocateZeroed() : frames.allocate();
 		
 		iptLock.acquire(); // protects ipt and clockhand as well
 		int originalHand = clockhand;
@@ -293,35 +315,39 @@ public class VMKernel extends UserKernel {
 //				fullyPinned.sleep();
 //			}
 			
-			physPageMutex.P();
-			if (physicalPages.size() != 0) {
-				ppn = physicalPages.pollFirst();
-				physPageMutex.V();
+			// a frame may have been freed meanwhile; the count is cheap to read
+			if (frames.getNumFree() > 0 && (ppn = zeroed
+					? frames.allocateZeroed() : frames.allocate()) != -1)
 				break;
-			}
-			physPageMutex.V();
 //			ppn = VMKernel.allocPage(fault, this, false, faultEntry.readOnly);
 			
 			
 			VMKernel.MetaData currMet = VMKernel.iPageTable[clockhand];
 			
-			if(!currMet.pinned)
+			// futex waiters are keyed by ppn, so their pages must stay put
+			if(currMet.pinCount == 0 && !futex.hasWaiters(clockhand))
 			{
 				// possible to be evicted if not pinned
 				TranslationEntry currEntry = currMet.getEntry();
 				int tlbIndex = -1;
 
-				for (int i = 0; i < Machine.processor().getTLBSize(); i++) {
+				// only the running process has translations in the TLB
+				for (int i = 0; i < Machine.processor().getTLBSize()
+						&& currMet.ownProcess == tlbOwner; i++) {
 			        TranslationEntry entry = Machine.processor().readTLBEntry(i);
-			        if (entry.vpn == currEntry.vpn && entry.valid == true) {
-			            currMet.getPT()[entry.vpn] = entry;
+			        if (entry.valid && currEntry.vpn >= entry.vpn
+			        		&& currEntry.vpn < entry.vpn + entry.numPages) {
+			            currMet.ownProcess.mergeTLBEntry(entry);
 			            tlbIndex = i;
 			            break;
 			        }
 			    }
 				currEntry = currMet.getEntry();
-				if(currEntry.used)
+				if(currEntry.used) {
 					currEntry.used = false;
+					if (tlbIndex != -1)
+						Machine.processor().writeTLBEntry(tlbIndex, currEntry);
+				}
 				else {
 					currEntry.valid = false;
 					
@@ -331,6 +357,7 @@ public class VMKernel extends UserKernel {
 					}
 					
 					ppn = clockhand;
+					evicted = true;
 					
 					if (currEntry.dirty) {
 						// evict and swap; clockhand is current ppn
@@ -345,6 +372,10 @@ public class VMKernel extends UserKernel {
 			
 		} // end while (ppn < 0)
 		
+		if (zeroed && evicted)
+			Arrays.fill(Machine.processor().getMemory(), ppn*Processor.pageSize,
+					(ppn + 1)*Processor.pageSize, (byte) 0);
+		
 		iPageTable[ppn] = new MetaData(vpn, process, false);
 		
 		iptLock.release();
@@ -424,6 +455,9 @@ public class VMKernel extends UserKernel {
 //	private static Lock clockLock;
 	private static int clockhand = 0;
 	public static Condition fullyPinned;
+	
+	// The process whose translations are in the TLB
+	static VMProcess tlbOwner = null;
 
 	
 	// inherited variables
@@ -5,6 +5,8 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.NoSuchElementException;
 import java.util.Random;
@@ -12,6 +14,23 @@ import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
+ * 
+ * <p>
+ * It also supports the <tt>mmap()</tt> syscall. The pages of a mapped file
+ * fault in straight from the file, and dirty pages are written back to it,
+ * not to swap, when they are evicted or the file descriptor is closed. While
+ * a descriptor is mapped, <tt>read()</tt>, <tt>write()</tt>, <tt>readv()</tt>
+ * and <tt>writev()</tt> on it fail.
+ * 
+ * <p>
+ * Aligned ranges of <tt>VMProcess.superpagePages</tt> pages (default 4; 1
+ * turns superpages off) are put in the TLB as one superpage entry when they
+ * can be: every page resident, in consecutive frames starting at an aligned
+ * one, with the same protection, and, unless read-only, already dirty, since
+ * the entry has one dirty bit for all of them. Frames are placed so that
+ * this is likely: a page that faults in gets the frame beside its
+ * neighbours' if it is free, or the first page of a range gets a frame in a
+ * free aligned run. The page table itself keeps one entry per page.
  */
 public class VMProcess extends UserProcess {
 	/**
@@ -20,53 +39,193 @@ public class VMProcess extends UserProcess {
 	public VMProcess() {
 		super();
 		vpnToSpn = new ConcurrentHashMap<Integer,Integer>();
-		spnLock = new Lock();
+		spnLock = new Lock("VMProcess.spnLock");
 //		pageTable = new TranslationEntry[Machine.processor().getNumPhysPages()];
 //		for (int i = 0; i < pageTable.length; i++) {
 //			pageTable[i] = new TranslationEntry(i, i, false, false, false, false);
 //		}
 		ptLocks = new Lock[pageTable.length];
 		for (int i = 0; i < ptLocks.length; i++) {
-			ptLocks[i] = new Lock();
+			ptLocks[i] = new Lock("VMProcess.ptLock");
 		}
+		
+		superpagePages = Config.getInteger("VMProcess.superpagePages", 4);
+		Lib.assertTrue(superpagePages > 0
+				&& (superpagePages & (superpagePages - 1)) == 0);
 //		spnTable = new Integer[pageTable.length];
+		vpnToMapping = new Mapping[pageTable.length];
+		
+		syscallTable = vmSyscalls;
+	}
+
+	/**
+	 * Build the table of system calls of a <tt>VMProcess</tt>: those of a
+	 * <tt>UserProcess</tt>, with <tt>mmap()</tt> added, and file descriptor
+	 * calls that know about mapped files.
+	 */
+	private static SyscallTable registerVMSyscalls() {
+		SyscallTable table = new SyscallTable(userSyscalls);
+		
+		table.register(syscallMmap, "mmap", new SyscallHandler() {
+			public int handle(UserProcess process, int a0, int a1,
+					int a2, int a3) {
+				VMProcess vmProcess = (VMProcess) process;
+				return vmProcess.handleMmap(a0, a1);
+			}
+		});
+		table.register(syscallClose, "close", new SyscallHandler() {
+			public int handle(UserProcess process, int a0, int a1,
+					int a2, int a3) {
+				VMProcess vmProcess = (VMProcess) process;
+				vmProcess.unmap(a0);
+				return vmProcess.handleClose(a0);
+			}
+		});
+		table.register(syscallRead, "read", new SyscallHandler() {
+			public int handle(UserProcess process, int a0, int a1,
+					int a2, int a3) {
+				VMProcess vmProcess = (VMProcess) process;
+				if (vmProcess.isMapped(a0))
+					return -1;
+				return vmProcess.handleRead(a0, a1, a2);
+			}
+		});
+		table.register(syscallWrite, "write", new SyscallHandler() {
+			public int handle(UserProcess process, int a0, int a1,
+					int a2, int a3) {
+				VMProcess vmProcess = (VMProcess) process;
+				if (vmProcess.isMapped(a0))
+					return -1;
+				return vmProcess.handleWrite(a0, a1, a2);
+			}
+		});
+		table.register(syscallReadv, "readv", new SyscallHandler() {
+			public int handle(UserProcess process, int a0, int a1,
+					int a2, int a3) {
+				VMProcess vmProcess = (VMProcess) process;
+				if (vmProcess.isMapped(a0))
+					return -1;
+				return vmProcess.handleReadv(a0, a1, a2);
+			}
+		});
+		table.register(syscallWritev, "writev", new SyscallHandler() {
+			public int handle(UserProcess process, int a0, int a1,
+					int a2, int a3) {
+				VMProcess vmProcess = (VMProcess) process;
+				if (vmProcess.isMapped(a0))
+					return -1;
+				return vmProcess.handleWritev(a0, a1, a2);
+			}
+		});
+		
+		return table;
 	}
 
 	/**
 	 * Save the state of this process in preparation for a context switch.
-	 * Called by <tt>UThread.saveState()</tt>.
+	 * Called by <tt>UThread.saveState()</tt>. The TLB is left alone: if the
+	 * next thread to run belongs to this process too, it can keep using it.
 	 */
 	public void saveState() {
 		super.saveState();
-		
+	}
+
+	/**
+	 * Restore the state of this process after a context switch. Called by
+	 * <tt>UThread.restoreState()</tt>. Flushes the TLB only if it holds
+	 * another process's translations.
+	 */
+	public void restoreState() {
+		if (VMKernel.tlbOwner != this) {
+			if (VMKernel.tlbOwner != null)
+				VMKernel.tlbOwner.flushTLB();
+			VMKernel.tlbOwner = this;
+		}
+	}
+	
+	/**
+	 * Copy the used and dirty bits of this process's TLB entries back into
+	 * its page table and invalidate them. The bits are or'ed in, since the
+	 * kernel may have set them in the page table too.
+	 */
+	protected void flushTLB() {
 		for (int i = 0; i < Machine.processor().getTLBSize(); i++) {
 	        TranslationEntry entry = Machine.processor().readTLBEntry(i);
 	        if (entry.valid) {
+	        	mergeTLBEntry(entry);
 	        	entry.valid = false;
 	            Machine.processor().writeTLBEntry(i, entry);
-	            entry.valid = true;
-	            pageTable[entry.vpn] = entry;
 	        }
 	    }
 	}
-
+	
 	/**
-	 * Restore the state of this process after a context switch. Called by
-	 * <tt>UThread.restoreState()</tt>.
+	 * Or the used and dirty bits of a TLB entry into the page table, for
+	 * every page the entry covers.
 	 */
-	public void restoreState() {
-//		super.restoreState();
-		
-		//Is this needed??
-//		for (int i = 0; i < Machine.processor().getTLBSize(); i++) {
-//	        TranslationEntry entry = Machine.processor().readTLBEntry(i);
-//	        if (entry.valid) {
-//	        	entry.valid = false;
-//	            Machine.processor().writeTLBEntry(i, entry);
-//	            entry.valid = true;
-//	            pageTable[entry.vpn] = new TranslationEntry(entry);
-//	        }
-//	    }
+	void mergeTLBEntry(TranslationEntry tlbEntry) {
+		for (int i = 0; i < tlbEntry.numPages; i++) {
+			TranslationEntry entry = pageTable[tlbEntry.vpn + i];
+			entry.used |= tlbEntry.used;
+			entry.dirty |= tlbEntry.dirty;
+		}
+	}
+	
+	/**
+	 * Return a TLB entry mapping the aligned range of pages around <i>vpn</i>
+	 * as one superpage, or <tt>null</tt> if the range cannot be promoted.
+	 * Called with the page's lock held.
+	 */
+	private TranslationEntry superpageFor(int vpn) {
+		int first = vpn & -superpagePages;
+		if (superpagePages == 1 || first + superpagePages > pageTable.length)
+			return null;
+		
+		TranslationEntry head = pageTable[first];
+		if (head.ppn % superpagePages != 0)
+			return null;
+		
+		for (int i = 0; i < superpagePages; i++) {
+			TranslationEntry entry = pageTable[first + i];
+			if (!entry.valid || entry.ppn != head.ppn + i
+					|| entry.readOnly != head.readOnly
+					|| !(entry.readOnly || entry.dirty))
+				return null;
+		}
+		
+		TranslationEntry superpage = new TranslationEntry(first, head.ppn,
+				true, head.readOnly, true, !head.readOnly);
+		superpage.numPages = superpagePages;
+		return superpage;
+	}
+	
+	/**
+	 * Allocate a free frame for <i>vpn</i> that keeps its aligned range of
+	 * pages promotable to a superpage: the frame beside those of its resident
+	 * neighbours, or, if none is resident, a frame in a free aligned run.
+	 * 
+	 * @param vpn the page that needs a frame.
+	 * @param zeroed <tt>true</tt> if the frame must be filled with zeroes.
+	 * @return the frame, or -1 if there is no such free frame.
+	 */
+	int allocateFrame(int vpn, boolean zeroed) {
+		int first = vpn & -superpagePages;
+		if (superpagePages == 1 || first + superpagePages > pageTable.length)
+			return -1;
+		
+		int run = -1;
+		for (int i = 0; i < superpagePages; i++) {
+			TranslationEntry entry = pageTable[first + i];
+			if (entry.valid && i != vpn - first) {
+				run = entry.ppn - i;
+				if (run < 0 || run % superpagePages != 0)
+					return -1;
+				break;
+			}
+		}
+		
+		return UserKernel.frames.allocateInRun(run, superpagePages,
+				vpn - first, zeroed);
 	}
 
 	/**
@@ -78,12 +237,14 @@ public class VMProcess extends UserProcess {
 	protected boolean loadSections() {
 //		return super.loadSections();
 		if (numPages > Machine.processor().getNumPhysPages()) {
-			coff.close();
+			image.release();
 			Lib.debug(dbgProcess, "\tinsufficient physical memory");
 			return false;
 		}
 		
-		vpnToCoffSect = new int[numPages];
+		// pages that are neither coff, stack, nor args are unmapped
+		vpnToCoffSect = new int[pageTable.length];
+		Arrays.fill(vpnToCoffSect, -1);
 //		pageTable = new TranslationEntry[numPages];
 //		for (int i = 0; i < pageTable.length; i++) {
 //			pageTable[i] = new TranslationEntry(i, i, false, false, false, false);
@@ -147,6 +308,13 @@ public class VMProcess extends UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
+		// write mapped files back; each mapping keeps its file open
+		threadLock.acquire();
+		Integer[] mapped = mappings.keySet().toArray(new Integer[0]);
+		threadLock.release();
+		for (int i = 0; i < mapped.length; i++)
+			unmap(mapped[i].intValue());
+		
 		// TODO:
 		// handle removing this process's owned swap pages before unloading
 		// the pages using the super class's unloadSections
@@ -158,7 +326,10 @@ public class VMProcess extends UserProcess {
 		}
 		spnLock.release();
 		
-		saveState();
+		if (VMKernel.tlbOwner == this) {
+			flushTLB();
+			VMKernel.tlbOwner = null;
+		}
 		
 		for (int i = 0; i < pageTable.length; i++) {
 			ptLocks[i].acquire();
@@ -179,299 +350,366 @@ public class VMProcess extends UserProcess {
 		super.unloadSections();
 	}
 	
-	private boolean vpnInTlb(int vpn) {
-		for (int i = 0; i < Machine.processor().getTLBSize(); i ++) {
-			TranslationEntry entry = Machine.processor().readTLBEntry(i);
-			if (entry.vpn == vpn && entry.valid == true)
-				return true;
-		}
-		return false;
-	}
-	
+//	private void validateEntry(int vpn, TranslationEntry entry) {
+//		if (!entry.valid) {
+//			// handle making the page valid be it reading from the coff section
+//			// or swapping in a page from memory
+//			if (entry.dirty)
+//			{
+//				entry.ppn = VMKernel.swapIn(vpn, this);
+//				entry.valid = true;
+//			}
+//			else { // entry not dirty
+//				int coffSectNum = vpnToCoffSect[vpn];
+//				entry.ppn = VMKernel.allocPage(vpn, this, false, entry.readOnly);
+//				
+//				// if in a coff section, we need to load it
+//				if (coffSectNum != -3) {
+//					// Get a page from the coff file
+//					CoffSection sect = coff.getSection(coffSectNum);
+//					sect.loadPage(getCoffSectOffset(vpn), entry.ppn);
+//
+//				}
+//				// just a new blank page for stack or args
+//				entry.valid = true;
+//			}
+//		}
+//	}
+
 	/**
-	 * Transfer data from this process's virtual memory to the specified array.
-	 * This method handles address translation details. This method must
-	 * <i>not</i> destroy the current process if an error occurs, but instead
-	 * should return the number of bytes successfully copied (or zero if no data
-	 * could be copied).
+	 * Fault in the specified page, if necessary, and pin it so that it is not
+	 * evicted until <tt>unpinPage()</tt>.
 	 * 
-	 * @param vaddr the first byte of virtual memory to read.
-	 * @param data the array where the data will be stored.
-	 * @param offset the first byte to write in the array.
-	 * @param length the number of bytes to transfer from virtual memory to the
-	 * array.
-	 * @return the number of bytes successfully transferred.
+	 * @param vpn the virtual page number.
+	 * @param writing <tt>true</tt> if the kernel will write to the page.
+	 * @return the physical page number, or -1 if the page is not mapped or is
+	 * read-only and <i>writing</i> is set.
 	 */
-	public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-//		Lib.assertTrue(offset >= 0 && length >= 0
-//				&& offset + length <= data.length);
-
-		if(!validMemoryArgs(vaddr, data, offset, length))
-			return 0;
-		
-		byte[] memory = Machine.processor().getMemory();
-		int vpn = Processor.pageFromAddress(vaddr);
+	protected int pinPage(int vpn, boolean writing) {
+		if (vpn < 0 || vpn >= numPages || vpnToCoffSect[vpn] == -1)
+			return -1;
 		
-		int vpnOffset = Processor.offsetFromAddress(vaddr);
 		TranslationEntry entry = pageTable[vpn];
+		if (writing && entry.readOnly)
+			return -1;
 		
-		if (!vpnInTlb(vpn))
-			handleTLBMiss(vaddr);
-//		validateEntry(vpn, entry);
-		// entry should now be valid
+		// the page may be evicted again before we pin it, so check under the lock
+		while (true) {
+			VMKernel.iptLock.acquire();
+			if (entry.valid && VMKernel.iPageTable[entry.ppn] != null
+					&& VMKernel.iPageTable[entry.ppn].ownProcess == this) {
+				VMKernel.iPageTable[entry.ppn].pinCount++;
+				entry.used = true;
+				if (writing)
+					entry.dirty = true;
+				VMKernel.iptLock.release();
+				break;
+			}
+			VMKernel.iptLock.release();
+			
+			// the caller may not be running this process (an AsyncIO worker,
+			// say), so never touch the TLB here
+			faultIn(vpn);
+		}
 		
-		entry.used = true;
+		return entry.ppn;
+	}
+	
+	/**
+	 * Make the specified page valid in the page table, faulting it in if
+	 * necessary, without touching the TLB.
+	 * 
+	 * @param vpn the virtual page number.
+	 */
+	private void faultIn(int vpn) {
+		ptLocks[vpn].acquire();
+		while (!pageTable[vpn].valid)
+			handlePageFault(vpn);
+		ptLocks[vpn].release();
+	}
+	
+	/**
+	 * Drop one pin taken by <tt>pinPage()</tt>. The page can be evicted again
+	 * once every thread that pinned it has unpinned it.
+	 * 
+	 * @param ppn the physical page number returned by <tt>pinPage()</tt>.
+	 */
+	protected void unpinPage(int ppn) {
 		VMKernel.iptLock.acquire();
-		VMKernel.iPageTable[entry.ppn].pinned = true;
+		VMKernel.MetaData data = VMKernel.iPageTable[ppn];
+		if (data != null && data.ownProcess == this) {
+			Lib.assertTrue(data.pinCount > 0);
+			data.pinCount--;
+			VMKernel.fullyPinned.wakeAll();
+		}
 		VMKernel.iptLock.release();
-		int realAddr = entry.ppn*pageSize + vpnOffset;
-		
-		// for now, just assume that virtual addresses equal physical addresses
-		if (realAddr < 0 || realAddr >= memory.length)
-		{
-//			entry.used = false;
-			return 0;
+	}
+
+	/**
+	 * Map a thread stack. Its pages are zero-filled on first use, like the
+	 * stack made by <tt>loadSections()</tt>.
+	 * 
+	 * @param vpn the first page of the stack.
+	 * @return <tt>true</tt>, unless some of the pages are already mapped.
+	 */
+	protected boolean allocateStack(int vpn) {
+		// a file may be mapped where the stack would go
+		for (int i = vpn; i < vpn + stackPages; i++) {
+			if (vpnToCoffSect[i] != -1)
+				return false;
 		}
 		
-		// keeps track of what's written to data
-		int written = 0;
-		int bufOffset = offset;
-		int pageOffset = vpnOffset;
-		int currAddr = realAddr;
-		int leftToWrite = length;
-		int currVpn = vpn;
-		int currPpn = entry.ppn;
+		for (int i = vpn; i < vpn + stackPages; i++) {
+			ptLocks[i].acquire();
+			vpnToCoffSect[i] = -3;
+			pageTable[i].valid = false;
+			pageTable[i].readOnly = false;
+			pageTable[i].dirty = false;
+			ptLocks[i].release();
+		}
+		return true;
+	}
+	
+	/**
+	 * Pages here may be in swap or not yet loaded, and frames are owned by a
+	 * single process in the inverted page table, so they cannot be shared.
+	 * 
+	 * @param child the new process.
+	 * @return <tt>false</tt>, since <tt>fork()</tt> is not supported.
+	 */
+	protected boolean shareAddressSpace(UserProcess child) {
+		Lib.debug(dbgProcess, "\tfork() is not supported with demand paging");
+		return false;
+	}
+	
+	/**
+	 * Unmap a thread stack, releasing its frames and swap pages.
+	 * 
+	 * @param vpn the first page of the stack.
+	 */
+	protected void freeStack(int vpn) {
+		invalidateTLB(vpn, stackPages);
 		
-		while (written < length)
-		{
-			if (pageOffset + leftToWrite > pageSize)
-			{
-				int amountToWrite = pageSize - pageOffset;
-				System.arraycopy(memory, currAddr, data, bufOffset, amountToWrite);
-				written += amountToWrite;
-				bufOffset += amountToWrite;
-				leftToWrite = length - written;
-				if (++currVpn >= numPages)
-					break;
-				else
-				{
-					TranslationEntry prevEntry = pageTable[currVpn-1];
-					VMKernel.iptLock.acquire();
-					VMKernel.iPageTable[prevEntry.ppn].pinned = false;
-					VMKernel.fullyPinned.wake();
-					VMKernel.iptLock.release();
-//					pageTable[currVpn - 1].used = false;
-					TranslationEntry currEntry = pageTable[currVpn];
-					if (!vpnInTlb(currVpn))
-						handleTLBMiss(currVpn * pageSize);
-					
-					currEntry.used = true;
-					VMKernel.iptLock.acquire();
-					VMKernel.iPageTable[currEntry.ppn].pinned = true;
-					VMKernel.iptLock.release();
-					pageOffset = 0;
-					currPpn = currEntry.ppn;
-					currAddr = currPpn * pageSize;
-				}
-			}
-			else
-			{
-				System.arraycopy(memory, currAddr, data, bufOffset, leftToWrite);
-				written += leftToWrite; // written should now equal length
-				bufOffset += leftToWrite;
+		for (int i = vpn; i < vpn + stackPages; i++) {
+			ptLocks[i].acquire();
+			TranslationEntry entry = pageTable[i];
+			vpnToCoffSect[i] = -1;
+			
+			if (entry.valid) {
+				entry.valid = false;
+				VMKernel.iptLock.acquire();
+				VMKernel.iPageTable[entry.ppn] = null;
+				VMKernel.fullyPinned.wake();
+				VMKernel.iptLock.release();
+				
+				UserKernel.frames.free(entry.ppn);
 			}
+			entry.dirty = false;
 			
+			spnLock.acquire();
+			Integer spn = vpnToSpn.remove(i);
+			spnLock.release();
+			if (spn != null) {
+				VMKernel.spLock.acquire();
+				VMKernel.swapPages.addFirst(spn.intValue());
+				VMKernel.spLock.release();
+			}
+			ptLocks[i].release();
 		}
-		TranslationEntry currEntry = pageTable[currVpn];
-		VMKernel.iptLock.acquire();
-		VMKernel.iPageTable[currEntry.ppn].pinned = false;
-		VMKernel.fullyPinned.wake();
-		VMKernel.iptLock.release();
-//		pageTable[currVpn].used = false;
-		return written;
 	}
-	
+
 	/**
-	 * Transfer data from the specified array to this process's virtual memory.
-	 * This method handles address translation details. This method must
-	 * <i>not</i> destroy the current process if an error occurs, but instead
-	 * should return the number of bytes successfully copied (or zero if no data
-	 * could be copied).
+	 * Invalidate this process's TLB entries for a range of pages, merging
+	 * their used and dirty bits into the page table.
 	 * 
-	 * @param vaddr the first byte of virtual memory to write.
-	 * @param data the array containing the data to transfer.
-	 * @param offset the first byte to transfer from the array.
-	 * @param length the number of bytes to transfer from the array to virtual
-	 * memory.
-	 * @return the number of bytes successfully transferred.
+	 * @param firstVPN the first page of the range.
+	 * @param count the number of pages in the range.
 	 */
-	public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-//		Lib.assertTrue(offset >= 0 && length >= 0
-//				&& offset + length <= data.length);
-
-		// checks to make sure the args are valid
-		if(!validMemoryArgs(vaddr, data, offset, length))
-			return 0;
+	private void invalidateTLB(int firstVPN, int count) {
+		if (VMKernel.tlbOwner != this)
+			return;
 		
-		byte[] memory = Machine.processor().getMemory();
-		int vpn = Processor.pageFromAddress(vaddr);
+		for (int i = 0; i < Machine.processor().getTLBSize(); i++) {
+			TranslationEntry entry = Machine.processor().readTLBEntry(i);
+			if (entry.valid && entry.vpn < firstVPN + count
+					&& entry.vpn + entry.numPages > firstVPN) {
+				mergeTLBEntry(entry);
+				entry.valid = false;
+				Machine.processor().writeTLBEntry(i, entry);
+			}
+		}
+	}
+	
+	/**
+	 * Handle the mmap() system call. Maps the whole file open as <i>fd</i> at
+	 * <i>address</i>, which must be page aligned, onto pages that are not
+	 * already in use. No page is read until it is touched. The mapping holds
+	 * its own reference to the open file, so its pages can still be written
+	 * back after the descriptor is closed.
+	 * 
+	 * @return the length of the file, or -1 on error.
+	 */
+	private int handleMmap(int fd, int address) {
+		if (address < 0 || address % pageSize != 0)
+			return -1;
 		
-		int vpnOffset = Processor.offsetFromAddress(vaddr);
-		TranslationEntry entry = pageTable[vpn];
+		OpenFileTable.Entry file = fileTable.reference(fd);
+		if (file == null)
+			return -1;
 		
-		// ensures the current entry is a valid one or makes it valid
-		if (!vpnInTlb(vpn))
-			handleTLBMiss(vaddr);
-//		validateEntry(vpn, entry);
-		// entry should now be valid
-
-		VMKernel.iptLock.acquire();
-		entry = pageTable[vpn];
-
+		int length = file.getFile().length();
+		int firstVPN = Processor.pageFromAddress(address);
+		int count = (length + pageSize - 1) / pageSize;
+		if (length < 0 || firstVPN + count > pageTable.length) {
+			UserKernel.openFiles.release(file);
+			return -1;
+		}
 		
-		entry.used = true;
+		threadLock.acquire();
 		
-		VMKernel.MetaData mData = VMKernel.iPageTable[entry.ppn];
-		while (mData == null) {
-			if (entry.valid)
-				System.err.println("WFT");
-			VMKernel.iptLock.release();
-			entry.ppn = VMKernel.allocPage(vpn, this, entry.readOnly);
-			VMKernel.iptLock.acquire();
-			VMKernel.iPageTable[entry.ppn] = new VMKernel.MetaData(entry.vpn, this, false);
-			Integer hi = VMKernel.physicalPages.getFirst();
-//			VMKernel.iptLock.release();
-//			handlePageFault(vpn);
-//			VMKernel.iptLock.acquire();
-			mData = VMKernel.iPageTable[entry.ppn];
+		boolean free = !mappings.containsKey(fd);
+		for (int vpn = firstVPN; vpn < firstVPN + count && free; vpn++)
+			free = (vpnToCoffSect[vpn] == -1);
+		if (!free) {
+			threadLock.release();
+			UserKernel.openFiles.release(file);
+			Lib.debug(dbgVM, "\tmmap: pages or descriptor already mapped");
+			return -1;
 		}
-		mData.pinned = true;
-		VMKernel.iptLock.release();
-		int realAddr = entry.ppn*pageSize + vpnOffset;
 		
-		// for now, just assume that virtual addresses equal physical addresses
-		if (realAddr < 0 || realAddr >= memory.length)
-		{
-//			entry.used = false;
-			return 0;
+		Mapping mapping = new Mapping(file, firstVPN, count, length);
+		mappings.put(fd, mapping);
+		for (int vpn = firstVPN; vpn < firstVPN + count; vpn++) {
+			ptLocks[vpn].acquire();
+			vpnToCoffSect[vpn] = mappedPage;
+			vpnToMapping[vpn] = mapping;
+			pageTable[vpn].valid = false;
+			pageTable[vpn].readOnly = false;
+			pageTable[vpn].dirty = false;
+			ptLocks[vpn].release();
 		}
+		numPages = Math.max(numPages, firstVPN + count);
 		
-		// keeps track of what's written to data
-		int written = 0;
-		int bufOffset = offset;
-		int pageOffset = vpnOffset;
-		int currAddr = realAddr;
-		int leftToWrite = length;
-		int currVpn = vpn;
-		int currPpn = entry.ppn;
+		threadLock.release();
 		
-		while (written < length)
-		{
-			if (pageOffset + leftToWrite > pageSize)
-			{
-				int amountToWrite = pageSize - pageOffset;
-				System.arraycopy(data, bufOffset, memory, currAddr, amountToWrite);
-				written += amountToWrite;
-				bufOffset += amountToWrite;
-				leftToWrite = length - written;
-				if (++currVpn >= numPages)
-					break;
-				else
-				{
-					TranslationEntry prevEntry = pageTable[currVpn-1];
-					VMKernel.iptLock.acquire();
-					VMKernel.iPageTable[prevEntry.ppn].pinned = false;
-					VMKernel.fullyPinned.wake();
-					VMKernel.iptLock.release();
-//					pageTable[currVpn - 1].used = false;
-					TranslationEntry currEntry = pageTable[currVpn];
-					
-					
-					// Make sure the next page is also not read only
-					if (currEntry.readOnly) {
-						Lib.debug(dbgProcess, "Somehow next entry is readOnly");
-						break;
-					}
-						
-					if (!vpnInTlb(currVpn))
-						handleTLBMiss(currVpn * pageSize);
-					
-					currEntry.used = true;
-					VMKernel.iptLock.acquire();
-					VMKernel.iPageTable[currEntry.ppn].pinned = true;
-					VMKernel.iptLock.release();
-					pageOffset = 0;
-					currPpn = currEntry.ppn;
-					currAddr = currPpn * pageSize;
-				}
-			}
-			else
-			{
-				System.arraycopy(data, bufOffset, memory, currAddr, leftToWrite);
-				written += leftToWrite; // written should now equal length
-				bufOffset += leftToWrite;
-			}
-			
-		}
-		TranslationEntry currEntry = pageTable[currVpn];
-		VMKernel.iptLock.acquire();
-		VMKernel.iPageTable[currEntry.ppn].pinned = false;
-		VMKernel.fullyPinned.wake();
-		VMKernel.iptLock.release();
-//		pageTable[currVpn].used = false;
-		return written;
+		Lib.debug(dbgVM, "\tmmap: " + count + " pages at vpn " + firstVPN);
+		return length;
 	}
 	
-	private boolean validMemoryArgs(int vaddr, byte[] data, int offset, int length) {
-		if (data == null)
-			return false;
+	/**
+	 * Test if a file descriptor is mapped by <tt>mmap()</tt>.
+	 * 
+	 * @param fd the file descriptor.
+	 * @return <tt>true</tt> if it is mapped.
+	 */
+	private boolean isMapped(int fd) {
+		threadLock.acquire();
+		boolean mapped = mappings.containsKey(fd);
+		threadLock.release();
 		
-		if (!(offset >= 0 && length >= 0
-				&& offset + length <= data.length))
-			return false;
+		return mapped;
+	}
+	
+	/**
+	 * Remove the mapping of a file descriptor, if it has one, writing its
+	 * dirty resident pages back to the file and releasing their frames and
+	 * its reference to the file.
+	 * 
+	 * @param fd the file descriptor.
+	 */
+	private void unmap(int fd) {
+		threadLock.acquire();
+		Mapping mapping = mappings.remove(fd);
+		threadLock.release();
 		
-		byte[] memory = Machine.processor().getMemory();
-
-//		if (vaddr < 0 || vaddr >= memory.length)
-//			return false;
+		if (mapping == null)
+			return;
 		
+		invalidateTLB(mapping.firstVPN, mapping.numPages);
 		
-		int vpn = Processor.pageFromAddress(vaddr);
+		for (int vpn = mapping.firstVPN; vpn < mapping.firstVPN + mapping.numPages; vpn++) {
+			ptLocks[vpn].acquire();
+			TranslationEntry entry = pageTable[vpn];
+			
+			if (entry.valid) {
+				// keep the frame from being evicted while it is written
+				VMKernel.iptLock.acquire();
+				VMKernel.iPageTable[entry.ppn].pinCount++;
+				VMKernel.iptLock.release();
+				
+				if (entry.dirty)
+					writeMappedPage(mapping, vpn, entry.ppn);
+				entry.valid = false;
+				
+				// another thread may still be transferring into the frame
+				VMKernel.iptLock.acquire();
+				while (VMKernel.iPageTable[entry.ppn].pinCount > 1)
+					VMKernel.fullyPinned.sleep();
+				VMKernel.iPageTable[entry.ppn] = null;
+				VMKernel.fullyPinned.wake();
+				VMKernel.iptLock.release();
+				
+				UserKernel.frames.free(entry.ppn);
+			}
+			entry.dirty = false;
+			vpnToCoffSect[vpn] = -1;
+			vpnToMapping[vpn] = null;
+			ptLocks[vpn].release();
+		}
+		
+		UserKernel.openFiles.release(mapping.entry);
 		
-		// vpn outside this program's address space
-		if (vpn >= numPages) {
+		Lib.debug(dbgVM, "\tunmapped " + mapping.numPages + " pages at vpn "
+				+ mapping.firstVPN);
+	}
+	
+	/**
+	 * Write a page being evicted back to its file, if it is part of a mapped
+	 * file. Called by <tt>VMKernel.swapOut()</tt> instead of writing to swap.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @param ppn the physical page that holds it.
+	 * @return <tt>true</tt> if the page was written to its file, or
+	 * <tt>false</tt> if it belongs in swap.
+	 */
+	boolean evictMappedPage(int vpn, int ppn) {
+		Mapping mapping = vpnToMapping[vpn];
+		if (mapping == null)
 			return false;
-		}
 		
-		// if it gets this far, the args are ok
+		Lib.debug(dbgVM, "\twriting back mapped page " + vpn);
+		writeMappedPage(mapping, vpn, ppn);
+		// the page is clean again: the next fault reads it from the file
+		pageTable[vpn].dirty = false;
 		return true;
 	}
-
-//	private void validateEntry(int vpn, TranslationEntry entry) {
-//		if (!entry.valid) {
-//			// handle making the page valid be it reading from the coff section
-//			// or swapping in a page from memory
-//			if (entry.dirty)
-//			{
-//				entry.ppn = VMKernel.swapIn(vpn, this);
-//				entry.valid = true;
-//			}
-//			else { // entry not dirty
-//				int coffSectNum = vpnToCoffSect[vpn];
-//				entry.ppn = VMKernel.allocPage(vpn, this, false, entry.readOnly);
-//				
-//				// if in a coff section, we need to load it
-//				if (coffSectNum != -3) {
-//					// Get a page from the coff file
-//					CoffSection sect = coff.getSection(coffSectNum);
-//					sect.loadPage(getCoffSectOffset(vpn), entry.ppn);
-//
-//				}
-//				// just a new blank page for stack or args
-//				entry.valid = true;
-//			}
-//		}
-//	}
+	
+	/**
+	 * Write one page of a mapped file from memory to the file, leaving out
+	 * the part past the end of the file.
+	 */
+	private void writeMappedPage(Mapping mapping, int vpn, int ppn) {
+		int pos = (vpn - mapping.firstVPN) * pageSize;
+		int amount = Math.min(pageSize, mapping.length - pos);
+		
+		UserKernel.coffCache.invalidate(mapping.file);
+		if (mapping.file.write(pos, Machine.processor().getMemory(),
+				ppn*pageSize, amount) != amount)
+			Lib.debug(dbgVM, "Error occurred writing back mapped page " + vpn);
+	}
+	
+	/**
+	 * Read one page of a mapped file into memory, filling the part past the
+	 * end of the file with zeroes.
+	 */
+	private void readMappedPage(Mapping mapping, int vpn, int ppn) {
+		byte[] memory = Machine.processor().getMemory();
+		int pos = (vpn - mapping.firstVPN) * pageSize;
+		int amount = Math.max(0, mapping.file.read(pos, memory, ppn*pageSize,
+				Math.min(pageSize, mapping.length - pos)));
+		
+		Arrays.fill(memory, ppn*pageSize + amount, (ppn + 1)*pageSize, (byte) 0);
+	}
 
 	/**
 	 * Handle a user exception. Called by <tt>UserKernel.exceptionHandler()</tt>
@@ -487,6 +725,12 @@ public class VMProcess extends UserProcess {
 		
 		case Processor.exceptionTLBMiss:
 			int e = Machine.processor().readRegister(Processor.regBadVAddr);
+			int missVpn = Processor.pageFromAddress(e);
+			if (missVpn >= numPages || vpnToCoffSect[missVpn] == -1) {
+				// e.g. a freed thread stack
+				super.handleException(Processor.exceptionAddressError);
+				break;
+			}
             handleTLBMiss(e);
             break;
 		case Processor.exceptionPageFault:
@@ -507,6 +751,12 @@ public class VMProcess extends UserProcess {
 		
         int tlbToBeSwapped = -1;
         
+        // not running this process (loading it for exec()), so only fault in
+        if (VMKernel.tlbOwner != this) {
+        	faultIn(missPage);
+        	return;
+        }
+        
         //loops through all the entries of the tlb checking to see if its valid.
         //If not valid, designate it as the one to be swapped out
         for(int i = 0; i < Machine.processor().getTLBSize(); i++){
@@ -534,8 +784,7 @@ public class VMProcess extends UserProcess {
         	ptLocks[swapEntry.vpn].acquire();
         	//Check entry against page table entry for validity
         	if (swapEntry.valid) {
-                this.pageTable[swapEntry.vpn].dirty = swapEntry.dirty;
-                this.pageTable[swapEntry.vpn].used = swapEntry.used;
+                mergeTLBEntry(swapEntry);
             }
         	ptLocks[swapEntry.vpn].release();
         }
@@ -544,14 +793,26 @@ public class VMProcess extends UserProcess {
         //Get the translation entry for the missed entry
         TranslationEntry entryToBeAdded = pageTable[missPage];
         
-        int loopCheck = 0;
-        while (!entryToBeAdded.valid) {
-        	ptLocks[missPage].release();
+        // keep the lock while the page is read in, which may sleep, so that
+        // another thread of this process faulting on it waits for the page
+        // instead of reading it in again into a second frame
+        while (!entryToBeAdded.valid)
             handlePageFault(missPage);
-            ptLocks[missPage].acquire();
-            if (loopCheck++ == 1)
-            	Lib.debug(dbgProcess, "In handleTLBMiss loop more than once");
-//            entryToBeAdded = new TranslationEntry(pageTable[missPage]);
+        
+        // the fault may have blocked while another process took the TLB; the
+        // page is valid now, so the next access will miss again and map it
+        if (VMKernel.tlbOwner != this) {
+        	ptLocks[missPage].release();
+        	return;
+        }
+        
+        // map the whole range at once if it can be, replacing the entries
+        // for its other pages
+        TranslationEntry superpage = superpageFor(missPage);
+        if (superpage != null) {
+        	invalidateTLB(superpage.vpn, superpage.numPages);
+        	entryToBeAdded = superpage;
+        	Lib.debug(dbgVM, "\tsuperpage at vpn " + superpage.vpn);
         }
         
         //Finally add the entry in the TLB :) 
@@ -559,11 +820,21 @@ public class VMProcess extends UserProcess {
         ptLocks[missPage].release();
 	}
 	
-	// The fault here is actually the vpn and not a badVaddr
+	// The fault here is actually the vpn and not a badVaddr; called with
+	// ptLocks[fault] held
 	protected void handlePageFault(int fault){
 		
 		TranslationEntry entry = pageTable[fault];
 		
+		// pages of a mapped file always come from the file
+		if (vpnToMapping[fault] != null) {
+			entry.ppn = VMKernel.allocPage(fault, this, false);
+			readMappedPage(vpnToMapping[fault], fault, entry.ppn);
+			entry.dirty = false;
+			entry.valid = true;
+			return;
+		}
+		
 		// handle making the page valid be it reading from the coff section
 		// or swapping in a page from memory
 		if (entry.dirty)
@@ -574,18 +845,16 @@ public class VMProcess extends UserProcess {
 		}
 		else { // entry not dirty
 			int coffSectNum = vpnToCoffSect[fault];
-			entry.ppn = VMKernel.allocPage(fault, this, entry.readOnly);
 			
 			// if in a coff section, we need to load it
 			if (coffSectNum != -3) {
+				entry.ppn = VMKernel.allocPage(fault, this, entry.readOnly);
 				// Get a page from the coff file
-				CoffSection sect = coff.getSection(coffSectNum);
-				sect.loadPage(getCoffSectOffset(fault), entry.ppn);
+				image.loadPage(coffSectNum, getCoffSectOffset(fault), entry.ppn);
 
 			} else {
-				byte[] mem = Machine.processor().getMemory();
-				byte[] buf = new byte[pageSize];
-				System.arraycopy(buf, 0, mem, entry.ppn*pageSize, pageSize);
+				entry.ppn = VMKernel.allocPage(fault, this, entry.readOnly,
+						true);
 			}
 			// just a new blank page for stack or args
 			entry.valid = true;
@@ -613,6 +882,46 @@ public class VMProcess extends UserProcess {
 	// Maps the vpn to what coffsection the page is in
 	private int[] vpnToCoffSect;
 	
+	// vpnToCoffSect value of the pages of a mapped file
+	private static final int mappedPage = -2;
+	
+	/** A file mapped into memory by mmap(). */
+	private static class Mapping {
+		Mapping(OpenFileTable.Entry entry, int firstVPN, int numPages,
+				int length) {
+			this.entry = entry;
+			this.file = entry.getFile();
+			this.firstVPN = firstVPN;
+			this.numPages = numPages;
+			this.length = length;
+		}
+		
+		OpenFileTable.Entry entry;
+		
+		OpenFile file;
+		
+		int firstVPN, numPages;
+		
+		/** The length of the file when it was mapped. */
+		int length;
+	}
+	
+	// The mapped file of each page, or null
+	private Mapping[] vpnToMapping;
+	
+	// The number of pages in a superpage
+	private int superpagePages;
+	
+	// The mappings by file descriptor; protected by threadLock
+	private HashMap<Integer, Mapping> mappings = new HashMap<Integer, Mapping>();
+	
+	private static final int syscallRead = 6, syscallWrite = 7,
+			syscallClose = 8, syscallMmap = 10, syscallReadv = 19,
+			syscallWritev = 20;
+
+	/** The system calls of every <tt>VMProcess</tt>. */
+	protected static final SyscallTable vmSyscalls = registerVMSyscalls();
+	
 	// keeps track of 
 	public Lock spnLock;
 	public ConcurrentHashMap<Integer, Integer> vpnToSpn;